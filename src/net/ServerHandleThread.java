@@ -12,6 +12,7 @@ import net.interfaces.OnConnectionChangedListener;
 import net.socket.DeviceInfo;
 import net.socket.SocketConnect;
 import net.utils.CommonUtils;
+import net.utils.SocketThreadFactory;
 
 /**
  * Created by taro on 16/2/29. 服务端使用
@@ -185,8 +186,7 @@ public class ServerHandleThread implements IServerAction, Runnable {
 		}
 		// 开启后台客户端连接监听线程
 		if (mBackgroundThread == null || !mBackgroundThread.isAlive()) {
-			mBackgroundThread = new Thread(this);
-			mBackgroundThread.setDaemon(true);
+			mBackgroundThread = SocketThreadFactory.newThread(this, "server-accept-" + mConnectPort);
 			mBackgroundThread.start();
 			System.out.println("已启动后台服务");
 		}
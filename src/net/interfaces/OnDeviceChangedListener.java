@@ -0,0 +1,23 @@
+package net.interfaces;
+
+/**
+ * Created by taro on 16/3/25.
+ * 设备接入/断开监听事件,由adb server推送的设备变化触发
+ */
+public interface OnDeviceChangedListener {
+	/**
+	 * 设备已接入并可用(状态为device)
+	 *
+	 * @param deviceToken
+	 *            设备标识
+	 */
+	public void onDeviceAttached(String deviceToken);
+
+	/**
+	 * 设备已断开或不再可用(offline/unauthorized等)
+	 *
+	 * @param deviceToken
+	 *            设备标识
+	 */
+	public void onDeviceDetached(String deviceToken);
+}
@@ -0,0 +1,22 @@
+package net.interfaces;
+
+/**
+ * 读取消息日志时每条消息记录的回调
+ */
+public interface OnMessageRecordListener {
+	/**
+	 * 读取到一条消息记录
+	 *
+	 * @param deviceToken
+	 *            设备标识
+	 * @param timestamp
+	 *            消息写入日志的时间(毫秒)
+	 * @param from
+	 *            消息来源对象:{@link net.manager.MessageInfo#MSG_FOR_SEND}客户端/
+	 *            {@link net.manager.MessageInfo#MSG_FOR_RECEIVE}服务端
+	 * @param msg
+	 *            消息内容
+	 * @return 是否继续读取,返回false时停止读取
+	 */
+	public boolean onMessageRecord(String deviceToken, long timestamp, int from, String msg);
+}
@@ -0,0 +1,25 @@
+package net.interfaces;
+
+import net.socket.SocketConnect;
+
+/**
+ * Created by taro on 16/3/28.
+ * 按消息类型注册的消息处理接口,见{@link net.manager.MessageHandlerRegistry}
+ */
+public interface OnMsgTypeHandler {
+    /**
+     * 处理指定类型的消息,设置了分发线程池时运行在处理线程中,同一设备的消息按收发顺序调用
+     *
+     * @param connector      连接对象
+     * @param deviceToken    设备标识
+     * @param socketWorkType socket对象运行在客户端还是服务端<br/>
+     *                       {@link net.socket.DeviceInfo#SOCKET_IN_CLIENT}<br/>
+     *                       {@link net.socket.DeviceInfo#SOCKET_IN_SERVER}
+     * @param isReceived     接收到的消息为true,发送的消息为false
+     * @param msgType        消息类型,消息没有类型前缀时为null
+     * @param msg            完整的消息内容
+     * @return 需要将此消息存储到消息列表时返回true, 否则返回false
+     */
+    public boolean onHandleMsg(SocketConnect connector, String deviceToken, int socketWorkType, boolean isReceived,
+                               String msgType, String msg);
+}
@@ -0,0 +1,18 @@
+package net.interfaces;
+
+import net.socket.SocketConnect;
+
+/**
+ * Created by taro on 16/3/24.
+ * 接收到对端请求消息的监听事件,处理完成后通过{@link SocketConnect#sendResponse(long, String)}回复
+ */
+public interface OnRequestReceivedListener {
+    /**
+     * 接收到需要回复的请求消息,此方法运行在接收消息的线程中,不可执行耗时操作
+     *
+     * @param connector 接收到请求的连接
+     * @param requestId 请求标识,回复时需要使用相同的标识
+     * @param msg       请求内容
+     */
+    public void onRequestReceived(SocketConnect connector, long requestId, String msg);
+}
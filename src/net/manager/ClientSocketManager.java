@@ -2,23 +2,49 @@ package net.manager;
 
 
 import net.interfaces.OnConnectionChangedListener;
+import net.interfaces.OnDeviceChangedListener;
 import net.interfaces.OnInfoChangedListener;
 import net.socket.DeviceInfo;
+import net.socket.NioSelectorLoop;
+import net.socket.SendMsgQueue;
 import net.socket.SocketConnect;
+import net.utils.AdbDeviceWatcher;
 import net.utils.AdbUtils;
 import net.utils.CommonUtils;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 多个客户端连接对象的管理
  */
 public class ClientSocketManager implements ISocketMgrAction {
+    /**
+     * 连接收发消息方式:每个连接使用独立的接收/发送线程
+     */
+    public static final int TRANSPORT_THREAD = 0;
+    /**
+     * 连接收发消息方式:所有连接共用少量的NIO selector线程
+     */
+    public static final int TRANSPORT_NIO = 1;
+    /**
+     * 同时建立连接的最大设备数量
+     */
+    public static final int CONNECT_THREAD_COUNT = 8;
+
     // 使用对象及变量
     private AdbUtils mAdb = null;
     private List<String> mDeviceTokens = null;
@@ -30,30 +56,106 @@ public class ClientSocketManager implements ISocketMgrAction {
 
     private ReentrantLock mSocketMapLock = null;
 
+    // 连接收发消息方式
+    private int mTransportType = TRANSPORT_THREAD;
+    // NIO方式使用的事件循环,多个连接轮流分配到各个事件循环中
+    private NioSelectorLoop[] mSelectorLoops = null;
+    private int mNextSelectorIndex = 0;
+    // 预设的发送队列已满处理策略
+    private int mPresetOverflowPolicy = SendMsgQueue.OVERFLOW_BLOCK_TIMEOUT;
+    private long mPresetBlockTimeout = SendMsgQueue.DEFAULT_BLOCK_TIMEOUT;
+    // 并行建立连接的线程池,首次连接时创建
+    private ExecutorService mConnectExecutor = null;
+    // 设备接入/断开监听,启动后设备列表由adb server推送更新
+    private volatile AdbDeviceWatcher mDeviceWatcher = null;
+    private volatile OnDeviceChangedListener mDeviceChangedListener = null;
+
     public ClientSocketManager(AdbUtils adbUtils) {
+        this(adbUtils, TRANSPORT_THREAD, 1);
+    }
+
+    /**
+     * 创建多客户端连接管理
+     *
+     * @param adbUtils      adb工具
+     * @param transportType 连接收发消息方式,{@link #TRANSPORT_THREAD}/{@link #TRANSPORT_NIO}
+     * @param selectorCount NIO方式时使用的selector线程数量,其它方式忽略
+     */
+    public ClientSocketManager(AdbUtils adbUtils, int transportType, int selectorCount) {
         resetAdbUtils(adbUtils);
         mClientSocketMap = new ConcurrentHashMap<String, SocketConnect>();
+        mTransportType = transportType;
+        if (transportType == TRANSPORT_NIO) {
+            mSelectorLoops = new NioSelectorLoop[selectorCount <= 0 ? 1 : selectorCount];
+            for (int i = 0; i < mSelectorLoops.length; i++) {
+                mSelectorLoops[i] = new NioSelectorLoop("nio-selector-loop-" + i);
+            }
+        }
+    }
+
+    /**
+     * 获取连接收发消息方式
+     *
+     * @return {@link #TRANSPORT_THREAD}/{@link #TRANSPORT_NIO}
+     */
+    public int getTransportType() {
+        return mTransportType;
+    }
+
+    /**
+     * 轮流获取下一个NIO事件循环,非NIO方式返回null
+     *
+     * @return
+     */
+    private synchronized NioSelectorLoop nextSelectorLoop() {
+        if (mSelectorLoops == null) {
+            return null;
+        }
+        NioSelectorLoop loop = mSelectorLoops[mNextSelectorIndex];
+        mNextSelectorIndex = (mNextSelectorIndex + 1) % mSelectorLoops.length;
+        return loop;
     }
 
     /**
      * 创建新的连接对象
      *
      * @param deviceToken 标识
-     * @param socketMap   客户端连接保存Map
      * @param adbUtils    adb工具
      * @return 创建的连接对象, 此连接对象有可能是不可用的, 因为需要设备需要启动服务并且成功无误之后才可以进行正常的连接
      */
-    private SocketConnect createNewSocketConnet(String deviceToken, Map<String, SocketConnect> socketMap,
-                                                AdbUtils adbUtils) {
+    private SocketConnect createNewSocketConnet(String deviceToken, AdbUtils adbUtils) {
+        SocketConnect socket = createSocketConnect(deviceToken);
+        startDeviceService(socket, adbUtils);
+        return socket;
+    }
+
+    /**
+     * 创建连接对象并分配端口,不通知设备
+     *
+     * @param deviceToken
+     * @return
+     */
+    private SocketConnect createSocketConnect(String deviceToken) {
         SocketConnect socket = new SocketConnect(deviceToken);
-        socket.getDeviceInfo().initialPort(socketMap);
+        socket.setSelectorLoop(nextSelectorLoop());
+        socket.getSendMsgQueue().setOverflowPolicy(mPresetOverflowPolicy, mPresetBlockTimeout);
+        socket.getDeviceInfo().initialPort();
+        return socket;
+    }
+
+    /**
+     * 通过广播通知设备使用分配的端口启动服务,成功时连接标记为设备已就绪
+     *
+     * @param socket
+     * @param adbUtils
+     */
+    private void startDeviceService(SocketConnect socket, AdbUtils adbUtils) {
         HashMap<String, Integer> intExtra = new HashMap<String, Integer>();
         intExtra.put("port", socket.getDeviceInfo().getUsbPort());
-        String result = adbUtils.broadcast(deviceToken, AdbUtils.ACTION_START_SERVICE, null, intExtra, null);
+        String result = adbUtils.broadcast(socket.getDeviceToken(), AdbUtils.ACTION_START_SERVICE, null, intExtra, null);
         if (result.contains("result=0")) {
             socket.setIsDeviceReady(true);
         }
-        return socket;
     }
 
     @Override
@@ -64,7 +166,7 @@ public class ClientSocketManager implements ISocketMgrAction {
                 continue;
             } else {
                 // 创建连接对象,但没有自动进行连接
-                SocketConnect socket = createNewSocketConnet(device, mClientSocketMap, mAdb);
+                SocketConnect socket = createNewSocketConnet(device, mAdb);
                 mClientSocketMap.put(device, socket);
             }
         }
@@ -78,24 +180,74 @@ public class ClientSocketManager implements ISocketMgrAction {
         }
     }
 
+    /**
+     * 获取并行建立连接的线程池,线程数量不超过{@link #CONNECT_THREAD_COUNT}
+     *
+     * @return
+     */
+    private synchronized ExecutorService getConnectExecutor() {
+        if (mConnectExecutor == null) {
+            mConnectExecutor = Executors.newFixedThreadPool(CONNECT_THREAD_COUNT, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "socket-connect-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mConnectExecutor;
+    }
+
     @Override
-    public void connectAll(IMsgParseMgrAction msgParseAction, OnConnectionChangedListener connectListener, OnInfoChangedListener infoChangedListener) {
-        if (mClientSocketMap == null || mClientSocketMap.size() <= 0) {
-            return;
-        } else {
-            for (SocketConnect socket : mClientSocketMap.values()) {
+    public CompletableFuture<Map<String, Boolean>> connectAll(final IMsgParseMgrAction msgParseAction,
+                                                              final OnConnectionChangedListener connectListener,
+                                                              final OnInfoChangedListener infoChangedListener) {
+        final Map<String, CompletableFuture<Boolean>> futureMap = new LinkedHashMap<String, CompletableFuture<Boolean>>();
+        if (mClientSocketMap != null) {
+            for (final SocketConnect socket : mClientSocketMap.values()) {
                 // 客户端处理线程已存在则不进行连接
-                if (!socket.isClientAlive()) {
-                    socket.setIMsgParseAction(msgParseAction);
-                    socket.setOnConnectionChangedListener(connectListener);
-                    socket.setOnInfoChangedListener(infoChangedListener);
-                    if (!socket.connectInClient(mAdb)) {
-                        System.out.println("device:" + socket.getDeviceToken() + " : 尝试连接不成功!\n isDeviceReady = "
-                                + socket.isDeviceReady());
-                    }
+                if (socket.isClientAlive()) {
+                    futureMap.put(socket.getDeviceToken(), CompletableFuture.completedFuture(true));
+                    continue;
                 }
+                socket.setIMsgParseAction(msgParseAction);
+                socket.setOnConnectionChangedListener(connectListener);
+                socket.setOnInfoChangedListener(infoChangedListener);
+                // 每个设备的端口转发及连接在线程池中并行进行
+                futureMap.put(socket.getDeviceToken(), CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+                    @Override
+                    public Boolean get() {
+                        boolean isConnected = socket.connectInClient(mAdb);
+                        if (!isConnected) {
+                            System.out.println("device:" + socket.getDeviceToken() + " : 尝试连接不成功!\n isDeviceReady = "
+                                    + socket.isDeviceReady());
+                        }
+                        return isConnected;
+                    }
+                }, getConnectExecutor()).exceptionally(new Function<Throwable, Boolean>() {
+                    @Override
+                    public Boolean apply(Throwable throwable) {
+                        CommonUtils.logError("device:" + socket.getDeviceToken() + " 连接出错: " + throwable);
+                        return false;
+                    }
+                }));
             }
         }
+        List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>(futureMap.values());
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(new Function<Void, Map<String, Boolean>>() {
+                    @Override
+                    public Map<String, Boolean> apply(Void aVoid) {
+                        Map<String, Boolean> resultMap = new LinkedHashMap<String, Boolean>();
+                        for (Map.Entry<String, CompletableFuture<Boolean>> entry : futureMap.entrySet()) {
+                            resultMap.put(entry.getKey(), entry.getValue().join());
+                        }
+                        return resultMap;
+                    }
+                });
     }
 
     @Override
@@ -118,11 +270,11 @@ public class ClientSocketManager implements ISocketMgrAction {
     }
 
     @Override
-    public void connectAllUsePresetListener() {
+    public CompletableFuture<Map<String, Boolean>> connectAllUsePresetListener() {
         if (mPresetMsgParseAction == null) {
             throw new RuntimeException("没有预设 IMsgParseAction对象,无法进行消息处理");
         }
-        connectAll(mPresetMsgParseAction, mPresetConnectionChangedListener, mPresetInfoChangedListener);
+        return connectAll(mPresetMsgParseAction, mPresetConnectionChangedListener, mPresetInfoChangedListener);
     }
 
     @Override
@@ -140,6 +292,7 @@ public class ClientSocketManager implements ISocketMgrAction {
         } else {
             for (SocketConnect socket : mClientSocketMap.values()) {
                 socket.closeClient();
+                socket.getDeviceInfo().releasePort();
             }
             mClientSocketMap.clear();
         }
@@ -152,6 +305,7 @@ public class ClientSocketManager implements ISocketMgrAction {
         } else {
             SocketConnect socket = mClientSocketMap.get(deviceToken);
             socket.closeClient();
+            socket.getDeviceInfo().releasePort();
             mClientSocketMap.remove(deviceToken);
             return true;
         }
@@ -159,7 +313,110 @@ public class ClientSocketManager implements ISocketMgrAction {
 
     @Override
     public void updateDeviceToken() {
-        mDeviceTokens = mAdb.getDevices();
+        AdbDeviceWatcher watcher = mDeviceWatcher;
+        if (watcher != null && watcher.isRunning()) {
+            // 设备列表由adb server推送,不需要再执行adb devices
+            mDeviceTokens = watcher.getDevices();
+        } else {
+            mDeviceTokens = mAdb.getDevices();
+        }
+    }
+
+    @Override
+    public synchronized void startDeviceWatcher(OnDeviceChangedListener listener) {
+        mDeviceChangedListener = listener;
+        if (mDeviceWatcher != null && mDeviceWatcher.isRunning()) {
+            return;
+        }
+        if (mAdb.getAdbClient() == null) {
+            throw new RuntimeException("adb工具未设置adb server客户端,无法监听设备变化");
+        }
+        mDeviceWatcher = new AdbDeviceWatcher(mAdb.getAdbClient(), new OnDeviceChangedListener() {
+            @Override
+            public void onDeviceAttached(String deviceToken) {
+                onWatchedDeviceChanged(deviceToken);
+            }
+
+            @Override
+            public void onDeviceDetached(String deviceToken) {
+                onWatchedDeviceChanged(deviceToken);
+            }
+        });
+        mDeviceWatcher.start();
+    }
+
+    @Override
+    public synchronized void stopDeviceWatcher() {
+        AdbDeviceWatcher watcher = mDeviceWatcher;
+        // 先清除监听,停止过程中监听线程已读取到的变化不再处理
+        mDeviceWatcher = null;
+        mDeviceChangedListener = null;
+        if (watcher != null) {
+            watcher.stop();
+        }
+    }
+
+    /**
+     * 设备接入或断开,只处理该设备的连接;创建连接需要发送adb广播,关闭连接需要等待发送线程,
+     * 均在连接线程池中进行,不阻塞设备监听线程
+     *
+     * @param deviceToken
+     */
+    private void onWatchedDeviceChanged(final String deviceToken) {
+        final AdbDeviceWatcher watcher = mDeviceWatcher;
+        if (watcher == null) {
+            return;
+        }
+        mDeviceTokens = watcher.getDevices();
+        getConnectExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                reconcileDevice(watcher, deviceToken);
+            }
+        });
+    }
+
+    /**
+     * 按设备的当前状态更新连接,执行时设备状态可能已再次变化,以执行时的状态为准
+     *
+     * @param watcher
+     * @param deviceToken
+     */
+    private void reconcileDevice(AdbDeviceWatcher watcher, String deviceToken) {
+        if (watcher != mDeviceWatcher) {
+            // 监听已停止,停止后的设备列表为空,不能按断开处理
+            return;
+        }
+        OnDeviceChangedListener listener = mDeviceChangedListener;
+        if (watcher.isDeviceAttached(deviceToken)) {
+            // 同一设备的多次变化可能同时处理,只保留一个连接对象;分配端口及广播不在map的锁中执行
+            SocketConnect socket = mClientSocketMap.get(deviceToken);
+            if (socket == null) {
+                SocketConnect newSocket = createSocketConnect(deviceToken);
+                socket = mClientSocketMap.putIfAbsent(deviceToken, newSocket);
+                if (socket == null) {
+                    socket = newSocket;
+                } else {
+                    newSocket.getDeviceInfo().releasePort();
+                }
+            }
+            // 新建的连接,或之前广播失败(设备服务未启动)的连接,重新通知设备
+            if (!socket.isDeviceReady()) {
+                startDeviceService(socket, mAdb);
+            }
+            if (mPresetMsgParseAction != null && !isSocketConnectAlive(deviceToken)) {
+                connectSocketUsePresetListener(deviceToken);
+            }
+            if (listener != null) {
+                listener.onDeviceAttached(deviceToken);
+            }
+        } else {
+            closeSocket(deviceToken);
+            mAdb.closeShellSession(deviceToken);
+            if (listener != null) {
+                listener.onDeviceDetached(deviceToken);
+            }
+        }
     }
 
     @Override
@@ -210,6 +467,15 @@ public class ClientSocketManager implements ISocketMgrAction {
         }
     }
 
+    @Override
+    public void presetSendMsgQueuePolicy(int policy, long blockTimeout) {
+        mPresetOverflowPolicy = policy;
+        mPresetBlockTimeout = blockTimeout;
+        for (SocketConnect socket : mClientSocketMap.values()) {
+            socket.getSendMsgQueue().setOverflowPolicy(policy, blockTimeout);
+        }
+    }
+
     @Override
     public IMsgParseMgrAction getPresetIMsgParseAction() {
         return mPresetMsgParseAction;
@@ -281,7 +547,11 @@ public class ClientSocketManager implements ISocketMgrAction {
         if (mClientSocketMap != null) {
             for (SocketConnect socket : mClientSocketMap.values()) {
                 if (socket != null) {
-                    socket.sendMsg(msg);
+                    // 每个连接按各自的队列策略处理,阻塞策略也只会等待有限的时间
+                    int result = socket.sendMsgForResult(msg);
+                    if (result != SendMsgQueue.RESULT_SUCCESS) {
+                        CommonUtils.logInfo("device:" + socket.getDeviceToken() + " 发送消息结果: " + result);
+                    }
                 }
             }
         }
@@ -290,11 +560,17 @@ public class ClientSocketManager implements ISocketMgrAction {
     @Override
     public void cleanEnvironment() {
         if (mClientSocketMap.size() <= 0) {
-            CommonUtils.execCommand(mAdb.removeAllForwardPort(), false, null, null);
+            mAdb.removeAllForward();
         }
         mPresetMsgParseAction = null;
         mPresetConnectionChangedListener = null;
         mPresetInfoChangedListener = null;
+        if (mClientSocketMap.size() <= 0 && mSelectorLoops != null) {
+            // 关闭事件循环线程,再次创建连接时会自动重新启动
+            for (NioSelectorLoop loop : mSelectorLoops) {
+                loop.close();
+            }
+        }
     }
 
     @Override
@@ -309,6 +585,7 @@ public class ClientSocketManager implements ISocketMgrAction {
         SocketConnect socket = getSocketByDeviceToken(deviceToken);
         if (socket != null) {
             socket.closeClient();
+            socket.getDeviceInfo().releasePort();
         }
         mClientSocketMap.remove(deviceToken);
         mAdb.broadcast(deviceToken, AdbUtils.ACTION_STOP_SERVICE, null, null, null);
@@ -322,5 +599,6 @@ public class ClientSocketManager implements ISocketMgrAction {
         for (String device : mDeviceTokens) {
             mAdb.broadcast(device, AdbUtils.ACTION_STOP_SERVICE, null, null, null);
         }
+        mAdb.closeAllShellSessions();
     }
 }
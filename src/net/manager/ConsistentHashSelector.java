@@ -0,0 +1,164 @@
+package net.manager;
+
+import net.socket.SocketConnect;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Created by taro on 16/3/29.
+ * 按任务的手机号({@link DeviceJob#getBindMobile()})选择设备,同一个手机号的任务总是分配到同一个设备:<br/>
+ * 1.有设备绑定了该手机号({@link net.socket.DeviceInfo#getBindMobile()})时使用该设备<br/>
+ * 2.否则按一致性哈希在所有已连接的设备中确定设备,设备增减时只有少部分手机号改变对应的设备<br/>
+ * 3.对应的设备正在执行任务时,任务等待该设备空闲;没有手机号的任务由备用策略选择
+ *
+ * @author taro
+ */
+public class ConsistentHashSelector implements IDeviceSelector {
+    /**
+     * 默认每个设备在哈希环上的虚拟节点数量
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final IDeviceSelector mFallbackSelector;
+    private final int mVirtualNodes;
+    // 最近一次创建的哈希环,设备不变时重复使用
+    private volatile HashRing mHashRing = null;
+
+    public ConsistentHashSelector() {
+        this(new LeastOutstandingSelector(), DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param fallbackSelector 没有手机号的任务使用的选择策略
+     * @param virtualNodes     每个设备在哈希环上的虚拟节点数量,越多分布越均匀
+     */
+    public ConsistentHashSelector(IDeviceSelector fallbackSelector, int virtualNodes) {
+        if (fallbackSelector == null) {
+            throw new RuntimeException("备用选择策略不可为null");
+        }
+        mFallbackSelector = fallbackSelector;
+        mVirtualNodes = Math.max(virtualNodes, 1);
+    }
+
+    @Override
+    public SocketConnect select(DeviceJob job, List<SocketConnect> freeDevices, List<SocketConnect> allDevices) {
+        String mobile = job == null ? null : job.getBindMobile();
+        if (mobile == null || mobile.isEmpty()) {
+            return mFallbackSelector.select(job, freeDevices, allDevices);
+        }
+        String targetToken = null;
+        for (SocketConnect connect : allDevices) {
+            if (mobile.equals(connect.getDeviceInfo().getBindMobile())) {
+                targetToken = connect.getDeviceToken();
+                break;
+            }
+        }
+        if (targetToken == null) {
+            targetToken = getHashRing(allDevices).get(hash(mobile));
+        }
+        for (SocketConnect connect : freeDevices) {
+            if (connect.getDeviceToken().equals(targetToken)) {
+                return connect;
+            }
+        }
+        // 对应的设备不空闲,等待
+        return null;
+    }
+
+    /**
+     * 获取手机号当前对应的设备标识,设备绑定的手机号不参与计算
+     *
+     * @param mobile     手机号
+     * @param allDevices 所有已连接的设备
+     * @return 没有设备时返回null
+     */
+    public String getDeviceTokenForMobile(String mobile, List<SocketConnect> allDevices) {
+        return allDevices.isEmpty() ? null : getHashRing(allDevices).get(hash(mobile));
+    }
+
+    private HashRing getHashRing(List<SocketConnect> allDevices) {
+        String[] tokens = new String[allDevices.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = allDevices.get(i).getDeviceToken();
+        }
+        Arrays.sort(tokens);
+        HashRing ring = mHashRing;
+        if (ring == null || !Arrays.equals(ring.mDeviceTokens, tokens)) {
+            ring = new HashRing(tokens, mVirtualNodes);
+            mHashRing = ring;
+        }
+        return ring;
+    }
+
+    /**
+     * 64位FNV-1a哈希,再经过混合使相近的字符串分散
+     *
+     * @param value
+     * @return
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+
+    /**
+     * 不可修改的哈希环,节点按哈希值排序
+     */
+    private static class HashRing {
+        private final String[] mDeviceTokens;
+        private final long[] mNodeHashes;
+        private final String[] mNodeTokens;
+
+        HashRing(String[] deviceTokens, int virtualNodes) {
+            mDeviceTokens = deviceTokens;
+            int nodeCount = deviceTokens.length * virtualNodes;
+            long[][] nodes = new long[nodeCount][];
+            int index = 0;
+            for (int i = 0; i < deviceTokens.length; i++) {
+                for (int j = 0; j < virtualNodes; j++) {
+                    nodes[index++] = new long[]{hash(deviceTokens[i] + "#" + j), i};
+                }
+            }
+            Arrays.sort(nodes, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] o1, long[] o2) {
+                    return Long.compare(o1[0], o2[0]);
+                }
+            });
+            mNodeHashes = new long[nodeCount];
+            mNodeTokens = new String[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                mNodeHashes[i] = nodes[i][0];
+                mNodeTokens[i] = deviceTokens[(int) nodes[i][1]];
+            }
+        }
+
+        /**
+         * 顺时针方向第一个哈希值不小于指定值的节点对应的设备
+         *
+         * @param hash
+         * @return
+         */
+        String get(long hash) {
+            if (mNodeHashes.length == 0) {
+                return null;
+            }
+            int index = Arrays.binarySearch(mNodeHashes, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return mNodeTokens[index == mNodeHashes.length ? 0 : index];
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package net.manager;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by taro on 16/3/29.
+ * 交给设备执行的任务,由{@link DeviceJobScheduler}分配到空闲的设备;
+ * 任务消息以请求方式发送,设备回复或收到完成消息时任务结束
+ *
+ * @author taro
+ */
+public class DeviceJob {
+    /**
+     * 默认的任务超时时间(毫秒)
+     */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private static final AtomicLong sIdGenerator = new AtomicLong();
+
+    private final long mId = sIdGenerator.incrementAndGet();
+    private final String mMsg;
+    private final long mTimeout;
+    private final String mBindMobile;
+    private final CompletableFuture<String> mFuture = new CompletableFuture<String>();
+    private final long mSubmitTime = System.currentTimeMillis();
+    // 以下字段只在任务分配到设备时修改
+    private volatile int mAttemptCount = 0;
+    private volatile String mDeviceToken = null;
+
+    public DeviceJob(String msg) {
+        this(msg, DEFAULT_TIMEOUT, null);
+    }
+
+    /**
+     * 创建任务
+     *
+     * @param msg        发送给设备的任务消息
+     * @param timeout    每次执行的超时时间(毫秒),超时后任务重新分配到其它设备
+     * @param bindMobile 任务对应的手机号,可为null
+     */
+    public DeviceJob(String msg, long timeout, String bindMobile) {
+        if (msg == null || msg.isEmpty()) {
+            throw new RuntimeException("任务消息不可为空");
+        }
+        mMsg = msg;
+        mTimeout = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+        mBindMobile = bindMobile;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getMsg() {
+        return mMsg;
+    }
+
+    public long getTimeout() {
+        return mTimeout;
+    }
+
+    public String getBindMobile() {
+        return mBindMobile;
+    }
+
+    public long getSubmitTime() {
+        return mSubmitTime;
+    }
+
+    /**
+     * 已分配到设备执行的次数
+     *
+     * @return
+     */
+    public int getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    /**
+     * 最后一次执行任务的设备
+     *
+     * @return 未分配时返回null
+     */
+    public String getDeviceToken() {
+        return mDeviceToken;
+    }
+
+    /**
+     * 任务结果,完成时为设备回复的内容;超过重试次数时以最后一次的错误结束;取消此结果可取消未执行的任务
+     *
+     * @return
+     */
+    public CompletableFuture<String> getFuture() {
+        return mFuture;
+    }
+
+    public boolean isDone() {
+        return mFuture.isDone();
+    }
+
+    void onAssigned(String deviceToken) {
+        mDeviceToken = deviceToken;
+        mAttemptCount++;
+    }
+
+    /**
+     * 任务消息未能发送到设备(发送队列已满),此次分配不计入执行次数
+     */
+    void onNotSent() {
+        mAttemptCount--;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceJob{id=" + mId + ", attempt=" + mAttemptCount + ", device=" + mDeviceToken + "}";
+    }
+}
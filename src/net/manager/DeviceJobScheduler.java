@@ -0,0 +1,536 @@
+package net.manager;
+
+import net.socket.DeviceInfo;
+import net.socket.SocketConnect;
+import net.utils.CommonUtils;
+import net.utils.TimingWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Created by taro on 16/3/29.
+ * 设备任务调度,将任务队列中的任务分配到空闲的已连接设备:<br/>
+ * 1.设备{@link DeviceInfo#isFree()}且连接可用时才分配任务,由{@link IDeviceSelector}在空闲设备中选择;
+ * 分配后设备标记为不空闲,直到设备回复或收到完成消息<br/>
+ * 2.任务超时或发送失败时,设备暂停分配一段时间,任务优先重新分配到其它设备,超过重试次数时任务以错误结束<br/>
+ * 3.不使用锁:任务队列为无锁队列,设备占用通过CAS更新;分配过程只在调度线程中执行,
+ * 其它线程(提交任务/设备回复/定时检查)只通知调度线程,不会等待,也不会在selector等共用线程中发送任务<br/>
+ * 4.任务消息发送时不等待发送队列,队列已满时任务重新排队,设备短暂暂停分配,不计入执行次数
+ *
+ * @author taro
+ */
+public class DeviceJobScheduler {
+    /**
+     * 默认的任务最多执行次数
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    /**
+     * 默认的设备超时/发送失败后暂停分配的时间(毫秒)
+     */
+    public static final long DEFAULT_DEVICE_COOLDOWN = 5000;
+    /**
+     * 有任务但没有空闲设备时,重新检查设备的间隔(毫秒)
+     */
+    public static final long RETRY_INTERVAL = 500;
+    /**
+     * 每次分配最多检查的等待中任务数量,队列前面的任务都需要等待指定设备时,仍可分配之后的任务
+     */
+    public static final int MAX_SCAN_JOBS = 64;
+
+    private final ISocketMgrAction mSocketMgr;
+    private final ConcurrentLinkedDeque<DeviceJob> mJobQueue = new ConcurrentLinkedDeque<DeviceJob>();
+    private final ConcurrentHashMap<String, DeviceSlot> mSlotMap = new ConcurrentHashMap<String, DeviceSlot>();
+    // 分配过程的执行计数,不为0时已有线程在分配
+    private final AtomicInteger mDispatchWip = new AtomicInteger();
+    private final AtomicBoolean mIsRetryScheduled = new AtomicBoolean(false);
+    // 执行分配过程的调度线程
+    private final ExecutorService mDispatchExecutor;
+    private final Runnable mDispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            drainLoop();
+        }
+    };
+    private volatile IDeviceSelector mDeviceSelector = new LeastOutstandingSelector();
+    private volatile int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long mDeviceCooldown = DEFAULT_DEVICE_COOLDOWN;
+    private volatile boolean mIsRunning = true;
+    // 统计数据
+    private final AtomicInteger mQueuedCount = new AtomicInteger();
+    private final AtomicInteger mRunningCount = new AtomicInteger();
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final AtomicLong mRedistributedCount = new AtomicLong();
+
+    /**
+     * 创建任务调度
+     *
+     * @param socketMgr 设备连接管理,从中获取已连接的设备
+     */
+    public DeviceJobScheduler(ISocketMgrAction socketMgr) {
+        if (socketMgr == null) {
+            throw new RuntimeException("设备连接管理不可为null");
+        }
+        mSocketMgr = socketMgr;
+        mDispatchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "device-job-dispatch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 设置任务最多执行次数及设备超时后暂停分配的时间
+     *
+     * @param maxAttempts    任务最多执行次数(包括第一次)
+     * @param deviceCooldown 暂停分配的时间(毫秒)
+     */
+    public void setRetryPolicy(int maxAttempts, long deviceCooldown) {
+        mMaxAttempts = Math.max(maxAttempts, 1);
+        mDeviceCooldown = Math.max(deviceCooldown, 0);
+    }
+
+    /**
+     * 设置设备选择策略,默认为{@link LeastOutstandingSelector}
+     *
+     * @param selector 内置策略:{@link RoundRobinSelector}/{@link LeastOutstandingSelector}/
+     *                 {@link LowestRttSelector}/{@link ConsistentHashSelector}
+     */
+    public void setDeviceSelector(IDeviceSelector selector) {
+        if (selector == null) {
+            throw new RuntimeException("设备选择策略不可为null");
+        }
+        mDeviceSelector = selector;
+        dispatchPending();
+    }
+
+    public IDeviceSelector getDeviceSelector() {
+        return mDeviceSelector;
+    }
+
+    /**
+     * 提交任务消息,使用默认的超时时间
+     *
+     * @param msg
+     * @return 任务结果
+     */
+    public CompletableFuture<String> submit(String msg) {
+        return submit(new DeviceJob(msg)).getFuture();
+    }
+
+    /**
+     * 提交任务,有空闲设备时立即分配
+     *
+     * @param job
+     * @return 提交的任务
+     */
+    public DeviceJob submit(DeviceJob job) {
+        if (!mIsRunning) {
+            job.getFuture().completeExceptionally(new CancellationException("任务调度已停止"));
+            return job;
+        }
+        mJobQueue.offerLast(job);
+        mQueuedCount.incrementAndGet();
+        dispatchPending();
+        return job;
+    }
+
+    /**
+     * 设备发送了任务完成消息(非请求回复)时调用,结束设备当前执行的任务并释放设备
+     *
+     * @param deviceToken 设备标识
+     * @param result      任务结果
+     * @return 设备有正在执行的任务返回true
+     */
+    public boolean completeDeviceJob(String deviceToken, String result) {
+        DeviceSlot slot = mSlotMap.get(getMapKey(deviceToken));
+        Assignment assignment = slot == null ? null : slot.mCurrent.get();
+        if (assignment == null || assignment == DeviceSlot.RESERVED) {
+            return false;
+        }
+        // 以完成消息结束等待中的请求,请求从连接的等待表中移除,设备的未完成请求数随之减少;
+        // 请求结束时通过回调结束任务
+        CompletableFuture<String> request = assignment.mRequest;
+        if (request != null && request.complete(result)) {
+            return true;
+        }
+        return finishAssignment(assignment, result, null);
+    }
+
+    /**
+     * 设备变为空闲或新设备连接后调用,通知调度线程尝试分配等待中的任务,不会等待;
+     * 不调用时有等待中的任务也会每隔{@link #RETRY_INTERVAL}检查一次
+     */
+    public void dispatchPending() {
+        if (mDispatchWip.getAndIncrement() != 0) {
+            // 调度线程正在分配或已通知,由调度线程再执行一次
+            return;
+        }
+        try {
+            mDispatchExecutor.execute(mDispatchTask);
+        } catch (RejectedExecutionException e) {
+            // 已停止调度
+            mDispatchWip.set(0);
+        }
+    }
+
+    /**
+     * 分配等待中的任务,只在调度线程中执行;执行期间的通知合并为再执行一次
+     */
+    private void drainLoop() {
+        int missed = 1;
+        while (true) {
+            try {
+                drainQueue();
+            } catch (Exception e) {
+                CommonUtils.logError(e);
+            }
+            missed = mDispatchWip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+        if (!mJobQueue.isEmpty() && mIsRunning) {
+            scheduleRetry(RETRY_INTERVAL);
+        }
+    }
+
+    /**
+     * 停止任务调度,等待中的任务被取消,正在执行的任务继续等待结果
+     */
+    public void shutdown() {
+        mIsRunning = false;
+        mDispatchExecutor.shutdown();
+        DeviceJob job = null;
+        while ((job = mJobQueue.pollFirst()) != null) {
+            mQueuedCount.decrementAndGet();
+            job.getFuture().completeExceptionally(new CancellationException("任务调度已停止"));
+        }
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * 设备是否正在执行任务
+     *
+     * @param deviceToken
+     * @return
+     */
+    public boolean isDeviceBusy(String deviceToken) {
+        DeviceSlot slot = mSlotMap.get(getMapKey(deviceToken));
+        return slot != null && slot.mCurrent.get() != null;
+    }
+
+    /**
+     * 设备正在执行的任务
+     *
+     * @param deviceToken
+     * @return 没有时返回null
+     */
+    public DeviceJob getDeviceJob(String deviceToken) {
+        DeviceSlot slot = mSlotMap.get(getMapKey(deviceToken));
+        Assignment assignment = slot == null ? null : slot.mCurrent.get();
+        return assignment == null || assignment == DeviceSlot.RESERVED ? null : assignment.mJob;
+    }
+
+    /**
+     * 等待分配的任务数量
+     *
+     * @return
+     */
+    public int getQueuedCount() {
+        return mQueuedCount.get();
+    }
+
+    /**
+     * 正在设备上执行的任务数量
+     *
+     * @return
+     */
+    public int getRunningCount() {
+        return mRunningCount.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * 超过重试次数以错误结束的任务数量
+     *
+     * @return
+     */
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * 超时或发送失败后重新分配的次数
+     *
+     * @return
+     */
+    public long getRedistributedCount() {
+        return mRedistributedCount.get();
+    }
+
+    /**
+     * 将等待中的任务分配到空闲设备,直到没有任务或没有空闲设备;同一时间只在一个线程中执行
+     */
+    private void drainQueue() {
+        List<SocketConnect> allDevices = new ArrayList<SocketConnect>();
+        List<SocketConnect> freeDevices = new ArrayList<SocketConnect>();
+        while (mIsRunning && !mJobQueue.isEmpty()) {
+            collectDevices(allDevices, freeDevices);
+            if (freeDevices.isEmpty() || !assignNextJob(freeDevices, allDevices)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从队列开始查找可以分配的任务(最多{@link #MAX_SCAN_JOBS}个),由选择策略选择设备后占用设备并执行
+     *
+     * @return 分配了一个任务返回true
+     */
+    private boolean assignNextJob(List<SocketConnect> freeDevices, List<SocketConnect> allDevices) {
+        IDeviceSelector selector = mDeviceSelector;
+        int scanCount = 0;
+        for (DeviceJob job : mJobQueue) {
+            if (scanCount++ >= MAX_SCAN_JOBS) {
+                break;
+            }
+            if (job.isDone()) {
+                // 已被取消的任务
+                if (mJobQueue.removeFirstOccurrence(job)) {
+                    mQueuedCount.decrementAndGet();
+                }
+                continue;
+            }
+            SocketConnect connect = selector.select(job, freeDevices, allDevices);
+            if (connect == null) {
+                // 此任务需要等待,继续分配之后的任务
+                continue;
+            }
+            DeviceSlot slot = getSlot(connect.getDeviceToken());
+            if (!slot.mCurrent.compareAndSet(null, DeviceSlot.RESERVED)) {
+                return true;
+            }
+            // 只有分配过程会移除队列中的任务,停止调度时除外
+            if (!mJobQueue.removeFirstOccurrence(job)) {
+                slot.mCurrent.compareAndSet(DeviceSlot.RESERVED, null);
+                return false;
+            }
+            mQueuedCount.decrementAndGet();
+            startJob(slot, job);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 获取所有已连接的设备,及其中空闲且未执行任务的设备
+     */
+    private void collectDevices(List<SocketConnect> allDevices, List<SocketConnect> freeDevices) {
+        allDevices.clear();
+        freeDevices.clear();
+        Set<String> deviceTokens = mSocketMgr.getConnectedDeviceToken();
+        if (deviceTokens == null) {
+            return;
+        }
+        for (String deviceToken : deviceTokens) {
+            SocketConnect connect = mSocketMgr.getSocketByDeviceToken(deviceToken);
+            if (connect == null || !connect.isClientAlive()) {
+                continue;
+            }
+            allDevices.add(connect);
+            DeviceSlot slot = mSlotMap.get(getMapKey(deviceToken));
+            if (connect.getDeviceInfo().isFree() && (slot == null || slot.mCurrent.get() == null)) {
+                freeDevices.add(connect);
+            }
+        }
+    }
+
+    private DeviceSlot getSlot(String deviceToken) {
+        String key = getMapKey(deviceToken);
+        DeviceSlot slot = mSlotMap.get(key);
+        if (slot == null) {
+            DeviceSlot newSlot = new DeviceSlot(deviceToken);
+            slot = mSlotMap.putIfAbsent(key, newSlot);
+            if (slot == null) {
+                slot = newSlot;
+            }
+        }
+        return slot;
+    }
+
+    private void startJob(DeviceSlot slot, DeviceJob job) {
+        final Assignment assignment = new Assignment(slot, job);
+        slot.mCurrent.set(assignment);
+        job.onAssigned(slot.mDeviceToken);
+        mRunningCount.incrementAndGet();
+        SocketConnect connect = mSocketMgr.getSocketByDeviceToken(slot.mDeviceToken);
+        if (connect == null) {
+            finishAssignment(assignment, null, new IllegalStateException("设备连接已移除: " + slot.mDeviceToken));
+            return;
+        }
+        connect.getDeviceInfo().setFreeState(false);
+        // 调度线程不等待发送队列,队列已满时请求以RejectedExecutionException结束
+        CompletableFuture<String> request = connect.sendRequest(job.getMsg(), job.getTimeout(), false);
+        assignment.mRequest = request;
+        request.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String result, Throwable throwable) {
+                finishAssignment(assignment, result, throwable);
+            }
+        });
+    }
+
+    /**
+     * 结束一次任务执行,设备回复与完成消息只有先到的一个有效
+     *
+     * @param assignment 任务执行
+     * @param result     任务结果
+     * @param error      执行失败的原因,成功时为null
+     * @return 是否由此次调用结束
+     */
+    private boolean finishAssignment(Assignment assignment, String result, Throwable error) {
+        DeviceSlot slot = assignment.mSlot;
+        if (!slot.mCurrent.compareAndSet(assignment, null)) {
+            return false;
+        }
+        mRunningCount.decrementAndGet();
+        DeviceJob job = assignment.mJob;
+        DeviceInfo deviceInfo = getDeviceInfo(slot.mDeviceToken);
+        if (error == null) {
+            if (deviceInfo != null) {
+                deviceInfo.setFreeState(true);
+            }
+            mCompletedCount.incrementAndGet();
+            job.getFuture().complete(result);
+        } else if (error instanceof RejectedExecutionException && !job.isDone()) {
+            // 任务消息没有发送到设备,重新排队(优先分配),设备的发送队列短暂暂停分配
+            job.onNotSent();
+            cooldownDevice(slot.mDeviceToken, RETRY_INTERVAL);
+            if (!mIsRunning) {
+                job.getFuture().completeExceptionally(new CancellationException("任务调度已停止"));
+            } else {
+                mJobQueue.offerFirst(job);
+                mQueuedCount.incrementAndGet();
+            }
+        } else {
+            if (error instanceof TimeoutException) {
+                CommonUtils.logInfo("device:" + slot.mDeviceToken + " 任务超时: " + job);
+            } else {
+                CommonUtils.logInfo("device:" + slot.mDeviceToken + " 任务执行失败: " + job + ", " + error);
+            }
+            // 设备暂停分配一段时间,保持不空闲状态
+            cooldownDevice(slot.mDeviceToken, mDeviceCooldown);
+            if (job.getAttemptCount() >= mMaxAttempts || !mIsRunning) {
+                mFailedCount.incrementAndGet();
+                job.getFuture().completeExceptionally(error);
+            } else if (!job.isDone()) {
+                // 重新分配的任务优先执行
+                mRedistributedCount.incrementAndGet();
+                mJobQueue.offerFirst(job);
+                mQueuedCount.incrementAndGet();
+            }
+        }
+        dispatchPending();
+        return true;
+    }
+
+    private void cooldownDevice(final String deviceToken, long cooldown) {
+        DeviceInfo deviceInfo = getDeviceInfo(deviceToken);
+        if (deviceInfo == null) {
+            return;
+        }
+        if (cooldown <= 0) {
+            deviceInfo.setFreeState(true);
+            return;
+        }
+        deviceInfo.setFreeState(false);
+        TimingWheel.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                DeviceInfo info = getDeviceInfo(deviceToken);
+                if (info != null && !isDeviceBusy(deviceToken)) {
+                    info.setFreeState(true);
+                }
+                dispatchPending();
+            }
+        }, cooldown);
+    }
+
+    private void scheduleRetry(long delay) {
+        if (!mIsRetryScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        TimingWheel.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                mIsRetryScheduled.set(false);
+                dispatchPending();
+            }
+        }, delay);
+    }
+
+    private DeviceInfo getDeviceInfo(String deviceToken) {
+        SocketConnect connect = mSocketMgr.getSocketByDeviceToken(deviceToken);
+        return connect == null ? null : connect.getDeviceInfo();
+    }
+
+    private static String getMapKey(String deviceToken) {
+        return deviceToken == null ? "" : deviceToken;
+    }
+
+    /**
+     * 一次任务执行,设备占用以此对象标识,避免旧的回复结束同一任务之后的执行
+     */
+    private static class Assignment {
+        private final DeviceSlot mSlot;
+        private final DeviceJob mJob;
+        // 任务消息的请求结果,发送后设置
+        private volatile CompletableFuture<String> mRequest = null;
+
+        Assignment(DeviceSlot slot, DeviceJob job) {
+            mSlot = slot;
+            mJob = job;
+        }
+    }
+
+    /**
+     * 设备的占用状态,为null时设备没有执行任务
+     */
+    private static class DeviceSlot {
+        // 已占用设备但还未取出任务
+        private static final Assignment RESERVED = new Assignment(null, null);
+
+        private final String mDeviceToken;
+        private final AtomicReference<Assignment> mCurrent = new AtomicReference<Assignment>();
+
+        DeviceSlot(String deviceToken) {
+            mDeviceToken = deviceToken;
+        }
+    }
+}
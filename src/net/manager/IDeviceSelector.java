@@ -0,0 +1,21 @@
+package net.manager;
+
+import net.socket.SocketConnect;
+
+import java.util.List;
+
+/**
+ * Created by taro on 16/3/29.
+ * 设备选择策略,{@link DeviceJobScheduler}分配任务时使用
+ */
+public interface IDeviceSelector {
+    /**
+     * 为任务选择执行的设备,运行在任务分配过程中,不可执行耗时操作
+     *
+     * @param job         等待分配的任务
+     * @param freeDevices 当前空闲可分配的设备,不为空
+     * @param allDevices  所有已连接的设备,包括正在执行任务的设备
+     * @return 选择的设备, 必须是freeDevices中的设备;返回null时此任务继续等待,先分配之后的任务
+     */
+    public SocketConnect select(DeviceJob job, List<SocketConnect> freeDevices, List<SocketConnect> allDevices);
+}
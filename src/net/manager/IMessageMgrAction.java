@@ -63,6 +63,34 @@ public interface IMessageMgrAction {
 	 */
 	public void saveAllMsg(String deviceToken, boolean isClearAfterSave, int from);
 
+	/**
+	 * 设置保存消息的日志,清除缓存消息及保存消息时写入日志;为null时不保存
+	 *
+	 * @param messageLog
+	 */
+	public void setMessageLog(MessageLog messageLog);
+
+	/**
+	 * 获取保存消息的日志
+	 *
+	 * @return
+	 */
+	public MessageLog getMessageLog();
+
+	/**
+	 * 设置后台写入消息日志,设置后清除/保存的消息由后台线程写入,不阻塞消息收发线程;为null时使用{@link #setMessageLog(MessageLog)}同步写入
+	 *
+	 * @param messagePersister
+	 */
+	public void setMessagePersister(MessagePersister messagePersister);
+
+	/**
+	 * 获取后台写入消息日志
+	 *
+	 * @return
+	 */
+	public MessagePersister getMessagePersister();
+
 	/**
 	 * 设置消息更新接口
 	 *
@@ -1,13 +1,16 @@
 package net.manager;
 
 import net.interfaces.OnConnectionChangedListener;
+import net.interfaces.OnDeviceChangedListener;
 import net.interfaces.OnInfoChangedListener;
 import net.socket.DeviceInfo;
 import net.socket.SocketConnect;
 import net.utils.AdbUtils;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by taro on 16/3/4. 客户端管理操作接口
@@ -20,13 +23,14 @@ public interface ISocketMgrAction {
     public void updateSocketClientConnect();
 
     /**
-     * 尝试连接所有已创建的连接
+     * 尝试连接所有已创建的连接,各设备的连接在有限数量的后台线程中并行进行,此方法不会阻塞
      *
      * @param msgParseAction      消息接收对象
      * @param connectListener     设备连接状态监听
      * @param infoChangedListener
+     * @return 所有设备连接完成后结束, 结果为设备标识与是否连接成功的对应关系
      */
-    public void connectAll(IMsgParseMgrAction msgParseAction, OnConnectionChangedListener connectListener, OnInfoChangedListener infoChangedListener);
+    public CompletableFuture<Map<String, Boolean>> connectAll(IMsgParseMgrAction msgParseAction, OnConnectionChangedListener connectListener, OnInfoChangedListener infoChangedListener);
 
     /**
      * 指定与某设备关联的socket对象进行连接
@@ -41,9 +45,11 @@ public interface ISocketMgrAction {
                                  OnConnectionChangedListener connectListener, OnInfoChangedListener infoChangedListener);
 
     /**
-     * 连接所有已创建的连接,使用预设的处理及监听接口
+     * 连接所有已创建的连接,使用预设的处理及监听接口,见{@link #connectAll(IMsgParseMgrAction, OnConnectionChangedListener, OnInfoChangedListener)}
+     *
+     * @return 所有设备连接完成后结束, 结果为设备标识与是否连接成功的对应关系
      */
-    public void connectAllUsePresetListener();
+    public CompletableFuture<Map<String, Boolean>> connectAllUsePresetListener();
 
     /**
      * 指定与某设备关系的socket对象进行连接,使用预设的处理及监听接口
@@ -66,10 +72,23 @@ public interface ISocketMgrAction {
     public boolean closeSocket(String deviceToken);
 
     /**
-     * 更新设备的标识token
+     * 更新设备的标识token,已启动设备监听时直接使用监听得到的设备列表
      */
     public void updateDeviceToken();
 
+    /**
+     * 启动设备接入/断开监听,设备列表由adb server推送更新;设备接入时创建连接(存在预设的处理接口时自动连接),
+     * 设备断开时关闭并移除对应的连接,其它设备的连接不受影响
+     *
+     * @param listener 设备接入/断开监听,在连接更新之后回调,可为null
+     */
+    public void startDeviceWatcher(OnDeviceChangedListener listener);
+
+    /**
+     * 停止设备接入/断开监听
+     */
+    public void stopDeviceWatcher();
+
     /**
      * 指定某个设备更新设备信息更新监听接口
      *
@@ -115,6 +134,13 @@ public interface ISocketMgrAction {
      */
     public void presetOnConnectionChangedListener(OnConnectionChangedListener listener);
 
+    /**
+     * 设置所有设备连接的发送队列已满时的处理策略,之后创建的连接同样使用此策略
+     *
+     * @param policy       {@link net.socket.SendMsgQueue#OVERFLOW_BLOCK_TIMEOUT}等队列策略
+     * @param blockTimeout 阻塞等待策略的最长等待时间(毫秒)
+     */
+    public void presetSendMsgQueuePolicy(int policy, long blockTimeout);
 
     /**
      * 获取预设的消息处理接口
@@ -192,7 +218,7 @@ public interface ISocketMgrAction {
     public void sendMsgToSocket(String deviceToken, String msg);
 
     /**
-     * 发送消息给所有的设备
+     * 发送消息给所有的设备,每个设备的发送队列已满时按各自的队列策略处理,不会无限阻塞
      *
      * @param msg
      */
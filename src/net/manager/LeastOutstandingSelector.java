@@ -0,0 +1,41 @@
+package net.manager;
+
+import net.socket.SocketConnect;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by taro on 16/3/29.
+ * 选择未完成请求最少的空闲设备({@link net.socket.DeviceLoad#getOutstanding()}),
+ * 数量相同的设备轮流选择,避免总是选择同一个设备
+ *
+ * @author taro
+ */
+public class LeastOutstandingSelector implements IDeviceSelector {
+    private final AtomicInteger mNextIndex = new AtomicInteger();
+
+    @Override
+    public SocketConnect select(DeviceJob job, List<SocketConnect> freeDevices, List<SocketConnect> allDevices) {
+        int minOutstanding = Integer.MAX_VALUE;
+        int minCount = 0;
+        for (SocketConnect connect : freeDevices) {
+            int outstanding = connect.getDeviceLoad().getOutstanding();
+            if (outstanding < minOutstanding) {
+                minOutstanding = outstanding;
+                minCount = 1;
+            } else if (outstanding == minOutstanding) {
+                minCount++;
+            }
+        }
+        // 数量最少的设备有多个时轮流选择
+        int skip = (mNextIndex.getAndIncrement() & 0x7fffffff) % minCount;
+        for (SocketConnect connect : freeDevices) {
+            if (connect.getDeviceLoad().getOutstanding() == minOutstanding && skip-- == 0) {
+                return connect;
+            }
+        }
+        // 比较期间负载发生了变化
+        return freeDevices.get(0);
+    }
+}
@@ -0,0 +1,35 @@
+package net.manager;
+
+import net.socket.SocketConnect;
+
+import java.util.List;
+
+/**
+ * Created by taro on 16/3/29.
+ * 选择平滑往返时间({@link SocketConnect#getSmoothedRoundTripTime()})最小的空闲设备;
+ * 尚未测量往返时间的设备排在已测量的设备之后,往返时间相同时选择未完成请求较少的设备
+ *
+ * @author taro
+ */
+public class LowestRttSelector implements IDeviceSelector {
+
+    @Override
+    public SocketConnect select(DeviceJob job, List<SocketConnect> freeDevices, List<SocketConnect> allDevices) {
+        SocketConnect selected = null;
+        long minRtt = Long.MAX_VALUE;
+        int minOutstanding = Integer.MAX_VALUE;
+        for (SocketConnect connect : freeDevices) {
+            long rtt = connect.getSmoothedRoundTripTime();
+            if (rtt < 0) {
+                rtt = Long.MAX_VALUE;
+            }
+            int outstanding = connect.getDeviceLoad().getOutstanding();
+            if (selected == null || rtt < minRtt || (rtt == minRtt && outstanding < minOutstanding)) {
+                selected = connect;
+                minRtt = rtt;
+                minOutstanding = outstanding;
+            }
+        }
+        return selected;
+    }
+}
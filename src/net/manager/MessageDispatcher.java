@@ -0,0 +1,350 @@
+package net.manager;
+
+import net.utils.CommonUtils;
+import net.utils.SocketThreadFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by taro on 16/3/27.
+ * 消息处理的分发线程池,使socket读取线程不执行消息处理:<br/>
+ * 1.按设备标识分到固定的处理线程(分条),同一设备的消息在同一线程中按加入顺序处理<br/>
+ * 2.每个处理线程的队列有上限,队列已满时加入消息的线程等待,读取线程因此暂停读取(反压);
+ * 不能等待的线程(发送线程)通过{@link #enqueue(String, Runnable)}加入,不受上限限制,保证同一设备的消息不会绕过队列;
+ * 共用的事件循环线程通过{@link #awaitCapacity(String, Runnable)}在队列有空位后恢复读取<br/>
+ * 3.统计队列长度/处理数量/排队时间/处理耗时
+ *
+ * @author taro
+ */
+public class MessageDispatcher {
+    /**
+     * 默认的处理线程数量
+     */
+    public static final int DEFAULT_STRIPE_COUNT = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    /**
+     * 默认的每个处理线程的队列上限
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final Stripe[] mStripes;
+    private volatile boolean mIsRunning = true;
+    // 统计数据
+    private final AtomicLong mHandledCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mTotalHandleNanos = new AtomicLong();
+    private volatile long mMaxHandleNanos = 0;
+    private volatile int mMaxQueueDepth = 0;
+
+    public MessageDispatcher() {
+        this(DEFAULT_STRIPE_COUNT, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * 创建分发线程池,处理线程立即启动
+     *
+     * @param stripeCount   处理线程数量
+     * @param queueCapacity 每个处理线程的队列上限
+     */
+    public MessageDispatcher(int stripeCount, int queueCapacity) {
+        if (stripeCount <= 0 || queueCapacity <= 0) {
+            throw new RuntimeException("处理线程数量及队列上限必须大于0");
+        }
+        mStripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            mStripes[i] = new Stripe(queueCapacity);
+            mStripes[i].mThread = SocketThreadFactory.newThread(mStripes[i], "msg-dispatch-" + i);
+            mStripes[i].mThread.start();
+        }
+    }
+
+    /**
+     * 加入消息处理,队列已满时等待直到有空位(反压)
+     *
+     * @param deviceToken 设备标识,相同设备的处理按加入顺序执行
+     * @param task        消息处理
+     * @return 是否加入成功, 分发线程池已关闭或等待时被中断返回false
+     */
+    public boolean dispatch(String deviceToken, Runnable task) {
+        Stripe stripe = getStripe(deviceToken);
+        if (Thread.currentThread() == stripe.mThread) {
+            // 处理过程中产生的同一设备的消息直接处理,避免等待自己的队列
+            runTask(task, System.nanoTime());
+            return true;
+        }
+        if (!mIsRunning) {
+            return false;
+        }
+        try {
+            stripe.mPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (!mIsRunning) {
+            // 等待期间已关闭
+            stripe.mPermits.release();
+            return false;
+        }
+        stripe.mQueue.offer(new DispatchTask(task, true));
+        updateMaxQueueDepth(stripe);
+        return true;
+    }
+
+    /**
+     * 尝试加入消息处理,队列已满时不等待
+     *
+     * @param deviceToken 设备标识
+     * @param task        消息处理
+     * @return 是否加入成功
+     */
+    public boolean tryDispatch(String deviceToken, Runnable task) {
+        Stripe stripe = getStripe(deviceToken);
+        if (!mIsRunning || !stripe.mPermits.tryAcquire()) {
+            return false;
+        }
+        stripe.mQueue.offer(new DispatchTask(task, true));
+        updateMaxQueueDepth(stripe);
+        return true;
+    }
+
+    /**
+     * 加入消息处理,不等待也不受队列上限限制,用于不能等待队列的线程(如发送线程及处理线程自身);
+     * 处理总是在队列中按加入顺序执行,不会直接在当前线程执行
+     *
+     * @param deviceToken 设备标识
+     * @param task        消息处理
+     * @return 是否加入成功, 分发线程池已关闭时返回false
+     */
+    public boolean enqueue(String deviceToken, Runnable task) {
+        if (!mIsRunning) {
+            return false;
+        }
+        Stripe stripe = getStripe(deviceToken);
+        stripe.mQueue.offer(new DispatchTask(task, false));
+        updateMaxQueueDepth(stripe);
+        return true;
+    }
+
+    /**
+     * 等待设备所在处理线程的队列有空位(剩余名额不少于上限的一半),之后执行回调;
+     * 用于不能等待的读取线程(NIO事件循环),队列已满时暂停读取,回调中恢复读取
+     *
+     * @param deviceToken 设备标识
+     * @param callback    队列有空位或分发线程池关闭后执行,可能在处理线程或当前线程中执行,不可阻塞
+     */
+    public void awaitCapacity(String deviceToken, Runnable callback) {
+        Stripe stripe = getStripe(deviceToken);
+        stripe.mWaiters.offer(callback);
+        // 加入前队列可能已经处理完
+        stripe.notifyWaiters();
+    }
+
+    /**
+     * 关闭分发线程池,已加入的消息处理完后处理线程结束
+     */
+    public synchronized void shutdown() {
+        if (!mIsRunning) {
+            return;
+        }
+        mIsRunning = false;
+        for (Stripe stripe : mStripes) {
+            // 唤醒等待中的处理线程,队列没有上限,结束标记总能加入
+            stripe.mQueue.offer(new DispatchTask(null, false));
+            stripe.notifyWaiters();
+        }
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    public int getStripeCount() {
+        return mStripes.length;
+    }
+
+    /**
+     * 所有处理线程中等待处理的消息数量
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Stripe stripe : mStripes) {
+            depth += stripe.mQueue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * 单个处理线程曾经等待处理的最大消息数量
+     *
+     * @return
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * 已处理的消息数量
+     *
+     * @return
+     */
+    public long getHandledCount() {
+        return mHandledCount.get();
+    }
+
+    /**
+     * 处理时抛出异常的消息数量
+     *
+     * @return
+     */
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * 消息的平均排队时间(微秒)
+     *
+     * @return
+     */
+    public long getAverageWaitMicros() {
+        long count = mHandledCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mTotalWaitNanos.get() / count);
+    }
+
+    /**
+     * 消息的平均处理耗时(微秒)
+     *
+     * @return
+     */
+    public long getAverageHandleMicros() {
+        long count = mHandledCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mTotalHandleNanos.get() / count);
+    }
+
+    /**
+     * 消息的最大处理耗时(微秒)
+     *
+     * @return
+     */
+    public long getMaxHandleMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(mMaxHandleNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "depth=" + getQueueDepth() + ", maxDepth=" + mMaxQueueDepth + ", handled=" + getHandledCount()
+                + ", failed=" + getFailedCount() + ", avgWait=" + getAverageWaitMicros() + "us, avgHandle="
+                + getAverageHandleMicros() + "us, maxHandle=" + getMaxHandleMicros() + "us";
+    }
+
+    private Stripe getStripe(String deviceToken) {
+        int hash = deviceToken == null ? 0 : deviceToken.hashCode();
+        // 打散哈希值的高位
+        hash ^= (hash >>> 16);
+        return mStripes[(hash & 0x7fffffff) % mStripes.length];
+    }
+
+    private void updateMaxQueueDepth(Stripe stripe) {
+        int depth = stripe.mQueue.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    private void runTask(Runnable task, long startTime) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            mFailedCount.incrementAndGet();
+            CommonUtils.logError(e);
+        }
+        long handleNanos = System.nanoTime() - startTime;
+        mHandledCount.incrementAndGet();
+        mTotalHandleNanos.addAndGet(handleNanos);
+        if (handleNanos > mMaxHandleNanos) {
+            mMaxHandleNanos = handleNanos;
+        }
+    }
+
+    /**
+     * 等待处理的消息
+     */
+    private static class DispatchTask {
+        private final Runnable mTask;
+        // 是否占用了队列上限的名额
+        private final boolean mHasPermit;
+        private final long mEnqueueTime = System.nanoTime();
+
+        DispatchTask(Runnable task, boolean hasPermit) {
+            mTask = task;
+            mHasPermit = hasPermit;
+        }
+    }
+
+    /**
+     * 单个处理线程及其队列,队列本身没有上限,上限由名额控制,只限制可以等待的加入方
+     */
+    private class Stripe implements Runnable {
+        private final LinkedBlockingQueue<DispatchTask> mQueue = new LinkedBlockingQueue<DispatchTask>();
+        private final Semaphore mPermits;
+        // 剩余名额达到此数量时通知等待空位的回调
+        private final int mResumeThreshold;
+        private final ConcurrentLinkedQueue<Runnable> mWaiters = new ConcurrentLinkedQueue<Runnable>();
+        private Thread mThread = null;
+
+        Stripe(int queueCapacity) {
+            mPermits = new Semaphore(queueCapacity);
+            mResumeThreshold = Math.max(1, queueCapacity / 2);
+        }
+
+        /**
+         * 队列有空位或已关闭时执行等待空位的回调
+         */
+        void notifyWaiters() {
+            if (mWaiters.isEmpty() || (mIsRunning && mPermits.availablePermits() < mResumeThreshold)) {
+                return;
+            }
+            Runnable callback = null;
+            while ((callback = mWaiters.poll()) != null) {
+                try {
+                    callback.run();
+                } catch (Exception e) {
+                    CommonUtils.logError(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                DispatchTask task = null;
+                try {
+                    task = mQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task.mTask == null) {
+                    if (mQueue.isEmpty()) {
+                        return;
+                    }
+                    // 关闭前已加入的消息在结束标记之后,处理完再结束
+                    mQueue.offer(task);
+                    continue;
+                }
+                if (task.mHasPermit) {
+                    mPermits.release();
+                    notifyWaiters();
+                }
+                long startTime = System.nanoTime();
+                mTotalWaitNanos.addAndGet(startTime - task.mEnqueueTime);
+                runTask(task.mTask, startTime);
+            }
+        }
+    }
+}
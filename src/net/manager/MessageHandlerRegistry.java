@@ -0,0 +1,167 @@
+package net.manager;
+
+import net.interfaces.OnMsgTypeHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Created by taro on 16/3/28.
+ * 按消息类型分发的消息处理表:<br/>
+ * 1.消息类型为消息开头到第一个{@link #TYPE_SEPARATOR}之间的内容,如 "pay:{...}" 的类型为 "pay",
+ * 类型只能由字母/数字/'_'/'-'组成,遇到其它字符(如JSON消息开头的'{')立即认为没有类型,
+ * 只检查消息开头最多{@link #MAX_TYPE_LENGTH}个字符,不扫描整个消息<br/>
+ * 2.按类型查找处理接口为哈希表查找,耗时只与类型长度有关,与注册的类型数量无关<br/>
+ * 3.可在运行中注册/移除处理接口,没有对应处理接口的消息交给默认处理接口
+ *
+ * @author taro
+ */
+public class MessageHandlerRegistry {
+    /**
+     * 消息类型与消息内容的分隔符
+     */
+    public static final char TYPE_SEPARATOR = ':';
+    /**
+     * 消息类型的最大长度,超过此长度未找到分隔符时认为消息没有类型
+     */
+    public static final int MAX_TYPE_LENGTH = 32;
+
+    private final ConcurrentHashMap<String, OnMsgTypeHandler> mHandlerMap = new ConcurrentHashMap<String, OnMsgTypeHandler>();
+    private volatile OnMsgTypeHandler mFallbackHandler = null;
+
+    /**
+     * 解析消息类型
+     *
+     * @param msg
+     * @return 消息类型, 消息没有类型前缀时返回null(不创建新的字符串)
+     */
+    public static String decodeType(String msg) {
+        if (msg == null) {
+            return null;
+        }
+        int end = Math.min(msg.length(), MAX_TYPE_LENGTH + 1);
+        for (int i = 0; i < end; i++) {
+            char c = msg.charAt(i);
+            if (c == TYPE_SEPARATOR) {
+                return i == 0 ? null : msg.substring(0, i);
+            }
+            if (!isTypeChar(c)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 是否为消息类型可使用的字符:[A-Za-z0-9_-]
+     *
+     * @param c
+     * @return
+     */
+    private static boolean isTypeChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+    }
+
+    /**
+     * 获取消息中类型之后的内容
+     *
+     * @param msgType 消息类型,由{@link #decodeType(String)}获取
+     * @param msg     完整的消息内容
+     * @return
+     */
+    public static String getMsgBody(String msgType, String msg) {
+        return msgType == null ? msg : msg.substring(msgType.length() + 1);
+    }
+
+    /**
+     * 注册消息类型的处理接口,同一类型已有处理接口时替换
+     *
+     * @param msgType 消息类型
+     * @param handler 处理接口
+     * @return 原来的处理接口, 不存在时返回null
+     */
+    public OnMsgTypeHandler register(String msgType, OnMsgTypeHandler handler) {
+        if (msgType == null || msgType.isEmpty() || msgType.length() > MAX_TYPE_LENGTH) {
+            throw new RuntimeException("消息类型不可为空,长度不可超过" + MAX_TYPE_LENGTH + ": " + msgType);
+        }
+        for (int i = 0; i < msgType.length(); i++) {
+            if (!isTypeChar(msgType.charAt(i))) {
+                throw new RuntimeException("消息类型只能由字母/数字/'_'/'-'组成: " + msgType);
+            }
+        }
+        if (handler == null) {
+            throw new RuntimeException("消息处理接口不可为null");
+        }
+        return mHandlerMap.put(msgType, handler);
+    }
+
+    /**
+     * 移除消息类型的处理接口
+     *
+     * @param msgType 消息类型
+     * @return 被移除的处理接口, 不存在时返回null
+     */
+    public OnMsgTypeHandler unregister(String msgType) {
+        return msgType == null ? null : mHandlerMap.remove(msgType);
+    }
+
+    /**
+     * 移除消息类型的处理接口,只在当前注册的是指定的处理接口时移除
+     *
+     * @param msgType 消息类型
+     * @param handler 需要移除的处理接口
+     * @return 是否移除
+     */
+    public boolean unregister(String msgType, OnMsgTypeHandler handler) {
+        return msgType != null && handler != null && mHandlerMap.remove(msgType, handler);
+    }
+
+    /**
+     * 设置默认处理接口,处理没有类型或类型未注册的消息
+     *
+     * @param handler 为null时使用{@link MessageParseManager}中原有的处理方法
+     */
+    public void setFallbackHandler(OnMsgTypeHandler handler) {
+        mFallbackHandler = handler;
+    }
+
+    public OnMsgTypeHandler getFallbackHandler() {
+        return mFallbackHandler;
+    }
+
+    /**
+     * 获取消息类型的处理接口
+     *
+     * @param msgType 消息类型
+     * @return 已注册的处理接口, 不存在时返回默认处理接口(可能为null)
+     */
+    public OnMsgTypeHandler getHandler(String msgType) {
+        OnMsgTypeHandler handler = msgType == null ? null : mHandlerMap.get(msgType);
+        return handler != null ? handler : mFallbackHandler;
+    }
+
+    /**
+     * 是否注册了消息类型的处理接口
+     *
+     * @param msgType
+     * @return
+     */
+    public boolean isRegistered(String msgType) {
+        return msgType != null && mHandlerMap.containsKey(msgType);
+    }
+
+    /**
+     * 已注册的消息类型数量
+     *
+     * @return
+     */
+    public int size() {
+        return mHandlerMap.size();
+    }
+
+    /**
+     * 移除所有已注册的处理接口,不包括默认处理接口
+     */
+    public void clear() {
+        mHandlerMap.clear();
+    }
+}
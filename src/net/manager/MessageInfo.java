@@ -1,9 +1,10 @@
 package net.manager;
 
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
+import java.io.IOException;
+
 import net.utils.CommonUtils;
 
 /**
@@ -23,52 +24,90 @@ public class MessageInfo {
 	 * 默认的缓存消息数量
 	 */
 	private int MSG_CACHE_COUNT = 200;
+	/**
+	 * 清除缓存消息时保留的最新消息比例
+	 */
+	private static final float MSG_REMAIN_RATIO = 0.2f;
 	private String mDeviceToken = "";
-	private List<String> mClientMsgList = null;
-	private List<String> mServerMsgList = null;
+	// 超过缓存数量时由cleanMsg清除,因此容量比缓存数量多一条
+	private MessageRingBuffer mClientMsgList = null;
+	private MessageRingBuffer mServerMsgList = null;
 
+	// 设备消息的组合操作(检测数量后添加/清除)使用的锁,每个设备独立,不同设备之间互不影响
 	private ReentrantLock mMsgLock = null;
+	// 保存被清除的消息,为null时不保存
+	private volatile MessageLog mMessageLog = null;
+	// 后台写入消息日志,设置时优先使用,不在调用线程中写入文件
+	private volatile MessagePersister mMessagePersister = null;
 
 	public MessageInfo(String deviceToken) {
-		mClientMsgList = new LinkedList<String>();
-		mServerMsgList = new LinkedList<String>();
+		mClientMsgList = new MessageRingBuffer(MSG_CACHE_COUNT + 1);
+		mServerMsgList = new MessageRingBuffer(MSG_CACHE_COUNT + 1);
 		mDeviceToken = deviceToken;
 		mMsgLock = new ReentrantLock();
 	}
 
 	/**
-	 * 添加消息
-	 * @param msgList
-	 * @param msg
-     */
-	private void addMsg(List<String> msgList, String msg) {
-		msgList.add(msg);
+	 * 设置保存消息的日志,为null时清除/保存的消息不写入文件
+	 *
+	 * @param messageLog
+	 */
+	public void setMessageLog(MessageLog messageLog) {
+		mMessageLog = messageLog;
+	}
+
+	public MessageLog getMessageLog() {
+		return mMessageLog;
 	}
 
 	/**
-	 * 移除消息
-	 * @param msgList
-	 * @param index
-     * @return
-     */
-	private String removeMsg(List<String> msgList, int index) {
-		return msgList.remove(index);
+	 * 设置后台写入消息日志,设置后清除/保存的消息加入后台写入队列,不在调用线程中写入文件
+	 *
+	 * @param messagePersister
+	 */
+	public void setMessagePersister(MessagePersister messagePersister) {
+		mMessagePersister = messagePersister;
+	}
+
+	public MessagePersister getMessagePersister() {
+		return mMessagePersister;
 	}
 
 	/**
-	 * 根据消息来源获取对应的消息列表(客户端或者服务端的)
+	 * 根据消息来源获取对应的消息缓存(客户端或者服务端的)
 	 *
 	 * @param from
 	 * @return
 	 */
-	public List<String> getMsgListByFrom(int from) {
-		List<String> oldMsgList = null;
+	private MessageRingBuffer getMsgBufferByFrom(int from) {
 		if (MSG_FOR_SEND == from) {
-			oldMsgList = mClientMsgList;
+			return mClientMsgList;
 		} else if (MSG_FOR_RECEIVE == from) {
-			oldMsgList = mServerMsgList;
+			return mServerMsgList;
 		}
-		return oldMsgList;
+		return null;
+	}
+
+	/**
+	 * 根据消息来源获取对应的消息列表(客户端或者服务端的)
+	 *
+	 * @param from
+	 * @return 消息列表的只读快照,按接收顺序(最旧的在前),不受之后新增/清除消息的影响;来源不正确时返回null
+	 */
+	public List<String> getMsgListByFrom(int from) {
+		MessageRingBuffer msgBuffer = getMsgBufferByFrom(from);
+		return msgBuffer == null ? null : msgBuffer.snapshot();
+	}
+
+	/**
+	 * 获取缓存的消息数量
+	 *
+	 * @param from
+	 * @return
+	 */
+	public int getMsgCountByFrom(int from) {
+		MessageRingBuffer msgBuffer = getMsgBufferByFrom(from);
+		return msgBuffer == null ? 0 : msgBuffer.size();
 	}
 
 	/**
@@ -92,14 +131,21 @@ public class MessageInfo {
 		if (CommonUtils.isEmptyString(msg)) {
 			return -1;
 		} else {
-			int size = 0;
-			List<String> msgList = getMsgListByFrom(from);
-			if (msgList != null) {
-				// 新消息总是添加在最前
-				addMsg(msgList, msg);
-				size = msgList.size();
+			MessageRingBuffer msgBuffer = getMsgBufferByFrom(from);
+			if (msgBuffer == null) {
+				return 0;
+			}
+			mMsgLock.lock();
+			try {
+				if (msgBuffer.isFull()) {
+					// 未及时清除(如未设置消息更新监听)时先清除旧消息,避免直接覆盖
+					List<String> oldMsgList = evictMsg(msgBuffer);
+					writeToFile(oldMsgList, oldMsgList.size(), from);
+				}
+				return msgBuffer.append(msg);
+			} finally {
+				mMsgLock.unlock();
 			}
-			return size;
 		}
 	}
 
@@ -111,12 +157,19 @@ public class MessageInfo {
 	 * @param from
 	 */
 	public void clearMsg(boolean isSaveMsg, int from) {
-		if (isSaveMsg) {
-			saveAllMsg(from);
+		MessageRingBuffer msgBuffer = getMsgBufferByFrom(from);
+		if (msgBuffer == null) {
+			return;
 		}
-		List<String> msgList = getMsgListByFrom(from);
-		if (msgList != null) {
-			msgList.clear();
+		mMsgLock.lock();
+		try {
+			// 保存的正好是被清除的消息,清除期间添加的消息不会丢失也不会重复保存
+			List<String> oldMsgList = msgBuffer.evictOldest(msgBuffer.size());
+			if (isSaveMsg) {
+				writeToFile(oldMsgList, oldMsgList.size(), from);
+			}
+		} finally {
+			mMsgLock.unlock();
 		}
 	}
 
@@ -126,60 +179,54 @@ public class MessageInfo {
 	 * @param from
 	 */
 	public void saveAllMsg(int from) {
-		List<String> oldMsgList = getMsgListByFrom(from);
-		int saveCount = oldMsgList == null ? 0 : oldMsgList.size();
+		mMsgLock.lock();
+		try {
+			List<String> oldMsgList = getMsgListByFrom(from);
+			int saveCount = oldMsgList == null ? 0 : oldMsgList.size();
 
-		writeToFile(oldMsgList, saveCount, from);
+			writeToFile(oldMsgList, saveCount, from);
+		} finally {
+			mMsgLock.unlock();
+		}
 	}
 
 	/**
-	 * 清除缓存消息
+	 * 清除缓存消息,超过缓存数量时一次清除最旧的消息,只保留最新的部分消息
 	 *
 	 * @param from
 	 * @return 返回被清除(保存到文件中)的缓存消息数量
 	 */
 	public int cleanMsg(int from) {
-		int saveCount = 0;
-		List<String> oldMsgList = getMsgListByFrom(from);
+		MessageRingBuffer msgBuffer = getMsgBufferByFrom(from);
 		// 超过默认的缓存消息数量上限,进行保存
-		if (oldMsgList != null && oldMsgList.size() > MSG_CACHE_COUNT) {
-			int remainCount = (int) (MSG_CACHE_COUNT * 0.2);
-			saveCount = oldMsgList.size() - remainCount;
-			LinkedList<String> newMsgList = new LinkedList<String>();
-			// **************************************************
-			// old消息列表中的前部分消息为最新的消息
-			// 后部分消息为旧消息
-			// **************************************************
-			if (remainCount < saveCount) {
-				for (int i = 0; i < remainCount; i++) {
-					// 将old消息列表的前remainCount保存到new消息列表中
-					// new消息列表将保存下来,old消息列表将被保存到文件中
-					newMsgList.add(newMsgList.size(), oldMsgList.get(0));
-					oldMsgList.remove(0);
-				}
-			} else {
-				List<String> tempList = null;
-				for (int i = 0; i < saveCount; i++) {
-					// 将old消息列表的最后saveCount保存到new消息列表中
-					// 此时new消息列表中保存的消息将保存到文件中(暂存)
-					newMsgList.add(oldMsgList.remove(oldMsgList.size() - 1));
-				}
-				// 将new消息列表引用转到old消息列表(用于保存到文件)
-				tempList = newMsgList;
-				newMsgList = (LinkedList<String>) oldMsgList;
-				// 将old消息列表引用转到new消息列表(缓存部分)
-				oldMsgList = tempList;
-			}
-			// 保存消息
-			writeToFile(oldMsgList, saveCount, from);
-
-			if (MSG_FOR_SEND == from) {
-				mClientMsgList = newMsgList;
-			} else if (MSG_FOR_RECEIVE == from) {
-				mServerMsgList = newMsgList;
+		if (msgBuffer == null || msgBuffer.size() <= MSG_CACHE_COUNT) {
+			return 0;
+		}
+		List<String> oldMsgList = null;
+		mMsgLock.lock();
+		try {
+			// 加锁后再次检测,其它线程可能已经清除
+			if (msgBuffer.size() <= MSG_CACHE_COUNT) {
+				return 0;
 			}
+			oldMsgList = evictMsg(msgBuffer);
+			// 在锁内保存(设置后台写入时只加入队列),保证同一设备的消息按清除顺序写入文件
+			writeToFile(oldMsgList, oldMsgList.size(), from);
+		} finally {
+			mMsgLock.unlock();
 		}
-		return saveCount;
+		return oldMsgList.size();
+	}
+
+	/**
+	 * 清除最旧的消息,只保留最新的部分消息;需要持有mMsgLock
+	 *
+	 * @param msgBuffer
+	 * @return 被清除的消息
+	 */
+	private List<String> evictMsg(MessageRingBuffer msgBuffer) {
+		int remainCount = (int) (MSG_CACHE_COUNT * MSG_REMAIN_RATIO);
+		return msgBuffer.evictOldest(msgBuffer.size() - remainCount);
 	}
 
 	/**
@@ -192,6 +239,22 @@ public class MessageInfo {
 	 * @param from
 	 */
 	public void writeToFile(List<String> oldMsgList, int count, int from) {
-		//TODO: 将指定量的消息写到文件中保存,未确定要保存的形式及类型...
+		if (oldMsgList == null || count <= 0) {
+			return;
+		}
+		List<String> saveList = count < oldMsgList.size() ? oldMsgList.subList(0, count) : oldMsgList;
+		MessagePersister messagePersister = mMessagePersister;
+		if (messagePersister != null) {
+			messagePersister.enqueue(mDeviceToken, from, saveList);
+			return;
+		}
+		MessageLog messageLog = mMessageLog;
+		if (messageLog != null) {
+			try {
+				messageLog.append(mDeviceToken, from, saveList);
+			} catch (IOException e) {
+				CommonUtils.logError(e);
+			}
+		}
 	}
 }
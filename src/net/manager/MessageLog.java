@@ -0,0 +1,457 @@
+package net.manager;
+
+import net.interfaces.OnMessageRecordListener;
+import net.utils.CommonUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Created by taro on 16/3/26.
+ * 消息日志,每个设备一个目录,消息只追加写入分段文件,当前分段超过大小上限时创建新的分段:<br/>
+ * 记录格式为[4字节内容长度][4字节CRC32][8字节时间][1字节消息来源][UTF-8内容],CRC32包括时间/来源/内容<br/>
+ * 打开设备日志时检查最后一个分段,从第一条不完整或校验失败的记录处截断(写入过程中程序退出),之后继续追加<br/>
+ * 每次写入的多条消息编码后以一次write写入,写入只到系统缓存,需要落盘时调用{@link #force(String)}
+ *
+ * @author taro
+ */
+public class MessageLog {
+    /**
+     * 默认的分段文件大小上限
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    /**
+     * 记录头的长度
+     */
+    static final int RECORD_HEADER_LENGTH = 4 + 4 + 8 + 1;
+    /**
+     * 单条消息内容的最大长度,超过时认为记录已损坏
+     */
+    static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File mBaseDir;
+    private final long mSegmentSize;
+    private final ConcurrentHashMap<String, DeviceLog> mDeviceLogs = new ConcurrentHashMap<String, DeviceLog>();
+
+    /**
+     * 创建消息日志,使用默认的分段大小
+     *
+     * @param baseDir 日志根目录,不存在时创建
+     */
+    public MessageLog(File baseDir) {
+        this(baseDir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * 创建消息日志
+     *
+     * @param baseDir     日志根目录,不存在时创建
+     * @param segmentSize 分段文件大小上限,单条记录超过上限时独占一个分段
+     */
+    public MessageLog(File baseDir, long segmentSize) {
+        if (baseDir == null || segmentSize <= RECORD_HEADER_LENGTH) {
+            throw new RuntimeException("消息日志目录不可为null且分段大小必须大于记录头长度");
+        }
+        if (!baseDir.isDirectory() && !baseDir.mkdirs()) {
+            throw new RuntimeException("无法创建消息日志目录: " + baseDir);
+        }
+        mBaseDir = baseDir;
+        mSegmentSize = segmentSize;
+    }
+
+    public File getBaseDir() {
+        return mBaseDir;
+    }
+
+    /**
+     * 追加写入多条消息,所有消息使用相同的时间
+     *
+     * @param deviceToken 设备标识
+     * @param from        消息来源:{@link MessageInfo#MSG_FOR_SEND}/{@link MessageInfo#MSG_FOR_RECEIVE}
+     * @param msgList     消息列表,为null或空字符串的消息不写入
+     * @throws IOException
+     */
+    public void append(String deviceToken, int from, List<String> msgList) throws IOException {
+        if (msgList == null || msgList.isEmpty()) {
+            return;
+        }
+        Batch batch = new Batch(System.currentTimeMillis(), from, msgList);
+        getDeviceLog(deviceToken).append(Collections.singletonList(batch));
+    }
+
+    /**
+     * 追加写入设备的多批消息,所有消息编码后以一次write写入(分段已满时除外)
+     *
+     * @param deviceToken 设备标识
+     * @param batches     按写入顺序的多批消息
+     * @throws IOException
+     */
+    void appendBatches(String deviceToken, List<Batch> batches) throws IOException {
+        if (batches == null || batches.isEmpty()) {
+            return;
+        }
+        getDeviceLog(deviceToken).append(batches);
+    }
+
+    /**
+     * 将设备日志已写入的数据落盘
+     *
+     * @param deviceToken
+     * @throws IOException
+     */
+    public void force(String deviceToken) throws IOException {
+        DeviceLog deviceLog = mDeviceLogs.get(deviceToken == null ? "" : deviceToken);
+        if (deviceLog != null) {
+            deviceLog.force();
+        }
+    }
+
+    /**
+     * 按写入顺序读取设备的所有消息记录
+     *
+     * @param deviceToken 设备标识
+     * @param listener    每条记录的回调,返回false时停止读取
+     * @return 读取的记录数量
+     * @throws IOException
+     */
+    public int readRecords(String deviceToken, OnMessageRecordListener listener) throws IOException {
+        File[] segments = listSegments(getDeviceDir(deviceToken));
+        int count = 0;
+        for (File segment : segments) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+            try {
+                Record record = null;
+                while ((record = readRecord(in)) != null) {
+                    count++;
+                    if (!listener.onMessageRecord(deviceToken, record.mTimestamp, record.mFrom, record.mMsg)) {
+                        return count;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 获取设备日志的所有分段文件,按写入顺序
+     *
+     * @param deviceToken
+     * @return
+     */
+    public List<File> getSegments(String deviceToken) {
+        return Arrays.asList(listSegments(getDeviceDir(deviceToken)));
+    }
+
+    /**
+     * 关闭所有设备日志,之后写入时重新打开
+     */
+    public void close() {
+        for (String deviceToken : new ArrayList<String>(mDeviceLogs.keySet())) {
+            DeviceLog deviceLog = mDeviceLogs.remove(deviceToken);
+            if (deviceLog != null) {
+                deviceLog.close();
+            }
+        }
+    }
+
+    private DeviceLog getDeviceLog(String deviceToken) {
+        String key = deviceToken == null ? "" : deviceToken;
+        DeviceLog deviceLog = mDeviceLogs.get(key);
+        if (deviceLog == null) {
+            DeviceLog newLog = new DeviceLog(getDeviceDir(deviceToken));
+            deviceLog = mDeviceLogs.putIfAbsent(key, newLog);
+            if (deviceLog == null) {
+                deviceLog = newLog;
+            }
+        }
+        return deviceLog;
+    }
+
+    /**
+     * 设备日志目录,设备标识中文件名不允许的字符替换为_
+     *
+     * @param deviceToken
+     * @return
+     */
+    private File getDeviceDir(String deviceToken) {
+        String name = CommonUtils.isEmptyString(deviceToken) ? "_" : deviceToken.replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(mBaseDir, name);
+    }
+
+    private static File[] listSegments(File deviceDir) {
+        File[] segments = deviceDir.listFiles();
+        if (segments == null) {
+            return new File[0];
+        }
+        List<File> segmentList = new ArrayList<File>(segments.length);
+        for (File segment : segments) {
+            if (parseSegmentIndex(segment) >= 0) {
+                segmentList.add(segment);
+            }
+        }
+        segments = segmentList.toArray(new File[segmentList.size()]);
+        // 文件名中的序号为固定长度,按文件名排序即为写入顺序
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static long parseSegmentIndex(File segment) {
+        String name = segment.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 读取一条记录
+     *
+     * @param in
+     * @return 已读取到末尾或记录不完整/校验失败时返回null
+     * @throws IOException
+     */
+    static Record readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_RECORD_LENGTH) {
+                return null;
+            }
+            int crc = in.readInt();
+            long timestamp = in.readLong();
+            byte from = in.readByte();
+            byte[] content = new byte[length];
+            in.readFully(content);
+            if (crc != computeCrc(timestamp, from, content)) {
+                return null;
+            }
+            return new Record(timestamp, from, new String(content, CHARSET), RECORD_HEADER_LENGTH + length);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    static int computeCrc(long timestamp, byte from, byte[] content) {
+        CRC32 crc32 = new CRC32();
+        for (int i = 56; i >= 0; i -= 8) {
+            crc32.update((int) (timestamp >>> i));
+        }
+        crc32.update(from);
+        crc32.update(content, 0, content.length);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * 日志中的一条记录
+     */
+    static class Record {
+        final long mTimestamp;
+        final int mFrom;
+        final String mMsg;
+        // 记录在文件中占用的长度
+        final int mSize;
+
+        Record(long timestamp, int from, String msg, int size) {
+            mTimestamp = timestamp;
+            mFrom = from;
+            mMsg = msg;
+            mSize = size;
+        }
+    }
+
+    /**
+     * 同一时间写入的一批消息
+     */
+    static class Batch {
+        final long mTimestamp;
+        final int mFrom;
+        final List<String> mMsgList;
+
+        Batch(long timestamp, int from, List<String> msgList) {
+            mTimestamp = timestamp;
+            mFrom = from;
+            mMsgList = msgList;
+        }
+    }
+
+    /**
+     * 单个设备的日志,写入当前分段,超过大小上限时创建新的分段
+     */
+    private class DeviceLog {
+        private final File mDeviceDir;
+        private RandomAccessFile mFile = null;
+        private FileChannel mChannel = null;
+        private long mSegmentIndex = -1;
+        // 编码记录使用的缓存,只在持有锁时使用
+        private ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+
+        DeviceLog(File deviceDir) {
+            mDeviceDir = deviceDir;
+        }
+
+        synchronized void append(List<Batch> batches) throws IOException {
+            try {
+                appendRecords(batches);
+            } catch (IOException e) {
+                // 写入失败时关闭当前分段,下次写入时重新打开并截断不完整的记录
+                closeSegment();
+                throw e;
+            }
+        }
+
+        private void appendRecords(List<Batch> batches) throws IOException {
+            openIfNeeded();
+            long size = mChannel.size();
+            mBuffer.clear();
+            for (Batch batch : batches) {
+                for (String msg : batch.mMsgList) {
+                    if (CommonUtils.isEmptyString(msg)) {
+                        continue;
+                    }
+                    byte[] content = msg.getBytes(CHARSET);
+                    int recordLength = RECORD_HEADER_LENGTH + content.length;
+                    if (size + mBuffer.position() + recordLength > mSegmentSize && size + mBuffer.position() > 0) {
+                        // 当前分段已满,写入已编码的记录后创建新的分段;记录不跨分段
+                        writeBuffer();
+                        rollover();
+                        size = 0;
+                    }
+                    ensureBufferCapacity(recordLength);
+                    mBuffer.putInt(content.length);
+                    mBuffer.putInt(computeCrc(batch.mTimestamp, (byte) batch.mFrom, content));
+                    mBuffer.putLong(batch.mTimestamp);
+                    mBuffer.put((byte) batch.mFrom);
+                    mBuffer.put(content);
+                }
+            }
+            writeBuffer();
+        }
+
+        synchronized void force() throws IOException {
+            if (mChannel != null) {
+                mChannel.force(false);
+            }
+        }
+
+        synchronized void close() {
+            closeSegment();
+        }
+
+        private void writeBuffer() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        private void ensureBufferCapacity(int length) {
+            if (mBuffer.remaining() >= length) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + length));
+            mBuffer.flip();
+            buffer.put(mBuffer);
+            mBuffer = buffer;
+        }
+
+        /**
+         * 首次写入时打开最后一个分段并截断末尾不完整的记录
+         *
+         * @throws IOException
+         */
+        private void openIfNeeded() throws IOException {
+            if (mChannel != null) {
+                return;
+            }
+            if (!mDeviceDir.isDirectory() && !mDeviceDir.mkdirs()) {
+                throw new IOException("无法创建设备日志目录: " + mDeviceDir);
+            }
+            File[] segments = listSegments(mDeviceDir);
+            if (segments.length == 0) {
+                openSegment(0);
+                return;
+            }
+            File last = segments[segments.length - 1];
+            openSegment(parseSegmentIndex(last));
+            long validLength = recover(last);
+            if (validLength < mChannel.size()) {
+                CommonUtils.logInfo("消息日志末尾记录不完整,截断: " + last + " " + mChannel.size() + " -> " + validLength);
+                mChannel.truncate(validLength);
+            }
+            mChannel.position(validLength);
+        }
+
+        /**
+         * 检查分段文件,返回最后一条完整记录结束的位置
+         *
+         * @param segment
+         * @return
+         * @throws IOException
+         */
+        private long recover(File segment) throws IOException {
+            long validLength = 0;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+            try {
+                Record record = null;
+                while ((record = readRecord(in)) != null) {
+                    validLength += record.mSize;
+                }
+            } finally {
+                in.close();
+            }
+            return validLength;
+        }
+
+        private void rollover() throws IOException {
+            long nextIndex = mSegmentIndex + 1;
+            // 之后的落盘只作用于新的分段,关闭前先将旧分段落盘
+            mChannel.force(false);
+            closeSegment();
+            openSegment(nextIndex);
+        }
+
+        private void openSegment(long index) throws IOException {
+            File segment = new File(mDeviceDir, String.format("%s%012d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+            mFile = new RandomAccessFile(segment, "rw");
+            mChannel = mFile.getChannel();
+            mChannel.position(mChannel.size());
+            mSegmentIndex = index;
+        }
+
+        private void closeSegment() {
+            if (mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException e) {
+                    CommonUtils.logError(e);
+                }
+            }
+            mFile = null;
+            mChannel = null;
+        }
+    }
+}
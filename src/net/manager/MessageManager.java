@@ -4,19 +4,24 @@ import net.interfaces.OnMessageChangedListener;
 import net.interfaces.OnMsgActionListener;
 import net.socket.SocketConnect;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * 消息管理
+ * 消息管理,各设备的接收/发送线程会同时添加消息:<br/>
+ * 设备消息对象保存在ConcurrentHashMap中,添加消息只使用该设备自己的锁,不同设备之间互不影响;
+ * 界面获取的消息列表为快照,不阻塞消息的添加
  */
 public class MessageManager implements IMessageMgrAction, OnMsgActionListener {
 	// 消息更新监听事件
-	private OnMessageChangedListener mOnMessageChangedListener = null;
-	private Map<String, MessageInfo> mMsgMap = null;
+	private volatile OnMessageChangedListener mOnMessageChangedListener = null;
+	private ConcurrentHashMap<String, MessageInfo> mMsgMap = null;
+	// 保存消息的日志,为null时不保存
+	private volatile MessageLog mMessageLog = null;
+	// 后台写入消息日志,设置时优先使用
+	private volatile MessagePersister mMessagePersister = null;
 
 	public MessageManager() {
-		mMsgMap = new HashMap<String, MessageInfo>();
+		mMsgMap = new ConcurrentHashMap<String, MessageInfo>();
 	}
 
 	/**
@@ -26,18 +31,34 @@ public class MessageManager implements IMessageMgrAction, OnMsgActionListener {
 	 * @return 返回的必定不是null, 或者是已存在的消息对象, 或者是空的消息对象
 	 */
 	private MessageInfo checkDeviceToken(String deviceToken) {
-		MessageInfo info = mMsgMap.get(deviceToken);
-		// 标识不存在,直接创建新的消息对象
+		String key = getMapKey(deviceToken);
+		MessageInfo info = mMsgMap.get(key);
+		// 标识不存在,直接创建新的消息对象;多个线程同时创建时只保留第一个
 		if (info == null) {
-			info = new MessageInfo(deviceToken);
-			mMsgMap.put(deviceToken, info);
+			MessageInfo newInfo = new MessageInfo(deviceToken);
+			newInfo.setMessageLog(mMessageLog);
+			newInfo.setMessagePersister(mMessagePersister);
+			info = mMsgMap.putIfAbsent(key, newInfo);
+			if (info == null) {
+				info = newInfo;
+			}
 		}
 		return info;
 	}
 
+	/**
+	 * ConcurrentHashMap不允许null,设备标识为null时使用空字符串
+	 *
+	 * @param deviceToken
+	 * @return
+	 */
+	private static String getMapKey(String deviceToken) {
+		return deviceToken == null ? "" : deviceToken;
+	}
+
 	@Override
 	public MessageInfo getMsgInfoByDevice(String deviceToken) {
-		return mMsgMap.get(deviceToken);
+		return mMsgMap.get(getMapKey(deviceToken));
 	}
 
 	@Override
@@ -45,13 +66,14 @@ public class MessageManager implements IMessageMgrAction, OnMsgActionListener {
 		MessageInfo info = checkDeviceToken(deviceToken);
 		// 添加到消息对象中
 		info.appendMsg(msg, from);
-		if (mOnMessageChangedListener != null) {
+		OnMessageChangedListener listener = mOnMessageChangedListener;
+		if (listener != null) {
 			// 通知消息添加
-			mOnMessageChangedListener.onAppendMsg(deviceToken, msg, from);
+			listener.onAppendMsg(deviceToken, msg, from);
 			int cleanCount=info.cleanMsg(from);
             if(cleanCount>0) {
                 // 通知尝试清除多余消息
-                mOnMessageChangedListener.onCleanMsg(deviceToken, cleanCount, from);
+                listener.onCleanMsg(deviceToken, cleanCount, from);
             }
 		}
 	}
@@ -59,9 +81,10 @@ public class MessageManager implements IMessageMgrAction, OnMsgActionListener {
 	@Override
 	public void clearMsg(String deviceToken, int from) {
 		boolean isSaveMsg = false;
+		OnMessageChangedListener listener = mOnMessageChangedListener;
 		// 通知是否清除消息前进行保存操作
-		if (mOnMessageChangedListener != null) {
-			isSaveMsg = mOnMessageChangedListener.isSaveMsgBeforeClearMsg(deviceToken, from);
+		if (listener != null) {
+			isSaveMsg = listener.isSaveMsgBeforeClearMsg(deviceToken, from);
 		}
 		// 清除消息
 		MessageInfo info = checkDeviceToken(deviceToken);
@@ -77,6 +100,32 @@ public class MessageManager implements IMessageMgrAction, OnMsgActionListener {
 		}
 	}
 
+	@Override
+	public void setMessageLog(MessageLog messageLog) {
+		mMessageLog = messageLog;
+		for (MessageInfo info : mMsgMap.values()) {
+			info.setMessageLog(messageLog);
+		}
+	}
+
+	@Override
+	public MessageLog getMessageLog() {
+		return mMessageLog;
+	}
+
+	@Override
+	public void setMessagePersister(MessagePersister messagePersister) {
+		mMessagePersister = messagePersister;
+		for (MessageInfo info : mMsgMap.values()) {
+			info.setMessagePersister(messagePersister);
+		}
+	}
+
+	@Override
+	public MessagePersister getMessagePersister() {
+		return mMessagePersister;
+	}
+
 	@Override
 	public void setOnMessageChangedListener(OnMessageChangedListener listener) {
 		mOnMessageChangedListener = listener;
@@ -3,18 +3,22 @@ package net.manager;
 
 import net.interfaces.OnDeviceFreeStateCallBack;
 import net.interfaces.OnMsgActionListener;
+import net.interfaces.OnMsgTypeHandler;
 import net.socket.DeviceInfo;
 import net.socket.SocketConnect;
 import net.utils.CommonUtils;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by taro on 16/3/8.
+ * 消息解析,设置了分发线程池时消息在线程池中解析,同一设备的消息按收发顺序处理,socket收发线程只负责加入队列
  */
 public class MessageParseManager implements IMsgParseMgrAction {
-    private OnMsgActionListener mMsgActionListener = null;
+    private volatile OnMsgActionListener mMsgActionListener = null;
+    private volatile MessageDispatcher mDispatcher = null;
+    private final MessageHandlerRegistry mHandlerRegistry = new MessageHandlerRegistry();
     private Map<String, OnDeviceFreeStateCallBack> mDeviceFreeStateCallbackMap = null;
 
     public MessageParseManager() {
@@ -22,21 +26,124 @@ public class MessageParseManager implements IMsgParseMgrAction {
     }
 
     /**
-     * 设备状态改变时监听回调接口
+     * 设备状态改变时监听回调接口,使用默认的分发线程池
      *
      * @param msgListener 消息接收发送处理接口,用于存储数据等
      */
     public MessageParseManager(OnMsgActionListener msgListener) {
+        this(msgListener, new MessageDispatcher());
+    }
+
+    /**
+     * 设备状态改变时监听回调接口
+     *
+     * @param msgListener 消息接收发送处理接口,用于存储数据等
+     * @param dispatcher  消息解析的分发线程池,为null时在socket收发线程中直接解析
+     */
+    public MessageParseManager(OnMsgActionListener msgListener, MessageDispatcher dispatcher) {
         mMsgActionListener = msgListener;
-        mDeviceFreeStateCallbackMap = new HashMap<String, OnDeviceFreeStateCallBack>();
+        mDispatcher = dispatcher;
+        mDeviceFreeStateCallbackMap = new ConcurrentHashMap<String, OnDeviceFreeStateCallBack>();
+    }
+
+    /**
+     * 设置消息解析的分发线程池,原来的线程池不会被关闭
+     *
+     * @param dispatcher 为null时在socket收发线程中直接解析
+     */
+    public void setMessageDispatcher(MessageDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * 获取消息解析的分发线程池,可用于获取队列长度/处理耗时等统计数据
+     *
+     * @return
+     */
+    public MessageDispatcher getMessageDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * 获取按消息类型分发的消息处理表,可在运行中注册/移除处理接口;
+     * 没有对应处理接口且未设置默认处理接口的消息,使用handle*方法处理
+     *
+     * @return
+     */
+    public MessageHandlerRegistry getHandlerRegistry() {
+        return mHandlerRegistry;
+    }
+
+    /**
+     * 关闭分发线程池,已加入的消息解析完后线程结束,之后的消息在socket收发线程中直接解析
+     */
+    public void shutdown() {
+        MessageDispatcher dispatcher = mDispatcher;
+        mDispatcher = null;
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
     }
 
     @Override
-    public void onParseReceivedMsg(SocketConnect connector, String deviceToken, int socketWorkType, String msg) {
+    public void onParseReceivedMsg(final SocketConnect connector, final String deviceToken,
+                                   final int socketWorkType, final String msg) {
+        MessageDispatcher dispatcher = mDispatcher;
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                parseReceivedMsg(connector, deviceToken, socketWorkType, msg);
+            }
+        };
+        if (dispatcher != null && connector != null && connector.inSelectorLoop()) {
+            // 事件循环线程由多个连接共用,不能等待队列;队列已满时消息仍按顺序加入队列,只暂停读取该连接,有空位后恢复
+            if (dispatcher.tryDispatch(deviceToken, task)) {
+                return;
+            }
+            if (dispatcher.enqueue(deviceToken, task)) {
+                connector.setReceivePaused(true);
+                dispatcher.awaitCapacity(deviceToken, new Runnable() {
+                    @Override
+                    public void run() {
+                        connector.setReceivePaused(false);
+                    }
+                });
+                return;
+            }
+            task.run();
+            return;
+        }
+        // 独立的读取线程在队列已满时在此等待,暂停读取该连接的数据
+        if (dispatcher == null || !dispatcher.dispatch(deviceToken, task)) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void onParseSentMsg(final SocketConnect connector, final String deviceToken,
+                               final int socketWorkType, final String msg) {
+        MessageDispatcher dispatcher = mDispatcher;
+        // 发送线程不等待队列,避免与在解析中发送消息的处理线程互相等待;不受队列上限限制,保证同一设备的消息按顺序处理
+        if (dispatcher == null || !dispatcher.enqueue(deviceToken, new Runnable() {
+            @Override
+            public void run() {
+                parseSentMsg(connector, deviceToken, socketWorkType, msg);
+            }
+        })) {
+            parseSentMsg(connector, deviceToken, socketWorkType, msg);
+        }
+    }
+
+    private void parseReceivedMsg(SocketConnect connector, String deviceToken, int socketWorkType, String msg) {
         boolean isSaveMsg = false;
         try {
             CommonUtils.logInfo("接收到的消息:" + msg);
-            if (socketWorkType == DeviceInfo.SOCKET_IN_SERVER) {
+            // 消息类型只解析一次,已注册类型的消息交给对应的处理接口
+            String msgType = MessageHandlerRegistry.decodeType(msg);
+            OnMsgTypeHandler handler = mHandlerRegistry.getHandler(msgType);
+            if (handler != null) {
+                isSaveMsg = handler.onHandleMsg(connector, deviceToken, socketWorkType, true, msgType, msg);
+            } else if (socketWorkType == DeviceInfo.SOCKET_IN_SERVER) {
                 // 处理来自服务端的消息
                 isSaveMsg = handleMsgReceiveFromClient(connector, deviceToken, msg);
             } else if (socketWorkType == DeviceInfo.SOCKET_IN_CLIENT) {
@@ -47,17 +154,21 @@ public class MessageParseManager implements IMsgParseMgrAction {
             // 可能会解析出错
             CommonUtils.logError(e);
         }
-        if (isSaveMsg && mMsgActionListener != null) {
-            mMsgActionListener.onReceiveMsg(connector, deviceToken, socketWorkType, msg);
+        OnMsgActionListener listener = mMsgActionListener;
+        if (isSaveMsg && listener != null) {
+            listener.onReceiveMsg(connector, deviceToken, socketWorkType, msg);
         }
     }
 
-    @Override
-    public void onParseSentMsg(SocketConnect connector, String deviceToken, int socketWorkType, String msg) {
+    private void parseSentMsg(SocketConnect connector, String deviceToken, int socketWorkType, String msg) {
         boolean isSaveMsg = false;
         try {
             CommonUtils.logInfo("发送的消息:" + msg);
-            if (socketWorkType == DeviceInfo.SOCKET_IN_SERVER) {
+            String msgType = MessageHandlerRegistry.decodeType(msg);
+            OnMsgTypeHandler handler = mHandlerRegistry.getHandler(msgType);
+            if (handler != null) {
+                isSaveMsg = handler.onHandleMsg(connector, deviceToken, socketWorkType, false, msgType, msg);
+            } else if (socketWorkType == DeviceInfo.SOCKET_IN_SERVER) {
                 isSaveMsg = handleMsgSendFromServer(deviceToken, connector, msg);
             } else if (socketWorkType == DeviceInfo.SOCKET_IN_CLIENT) {
                 isSaveMsg = handleMsgSendFromClient(deviceToken, connector, msg);
@@ -66,8 +177,9 @@ public class MessageParseManager implements IMsgParseMgrAction {
             // 可能会解析出错
             CommonUtils.logError(e);
         }
-        if (isSaveMsg && mMsgActionListener != null) {
-            mMsgActionListener.onSendMsg(connector, deviceToken, socketWorkType, msg);
+        OnMsgActionListener listener = mMsgActionListener;
+        if (isSaveMsg && listener != null) {
+            listener.onSendMsg(connector, deviceToken, socketWorkType, msg);
         }
     }
 
@@ -0,0 +1,409 @@
+package net.manager;
+
+import net.utils.CommonUtils;
+import net.utils.SocketThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by taro on 16/3/26.
+ * 消息日志的后台写入,保存消息时只加入无锁队列,不阻塞socket收发线程:<br/>
+ * 1.单个写入线程收到消息后等待一个合并时间窗口,之后取出队列中的消息,按设备合并后每个设备写入一次(组提交)<br/>
+ * 2.落盘方式:不主动落盘/每隔指定时间落盘/每次写入后落盘<br/>
+ * 3.统计队列长度/最大队列长度/写入及落盘次数<br/>
+ * 4.未启动或已停止时保存的消息在调用线程中直接写入,不会丢失;加入消息不需要锁
+ *
+ * @author taro
+ */
+public class MessagePersister implements Runnable {
+    /**
+     * 落盘方式:只写入系统缓存,由系统决定落盘时间
+     */
+    public static final int DURABILITY_NONE = 0;
+    /**
+     * 落盘方式:每隔指定时间将写入过的设备日志落盘
+     */
+    public static final int DURABILITY_INTERVAL = 1;
+    /**
+     * 落盘方式:每次写入后立即落盘
+     */
+    public static final int DURABILITY_BATCH = 2;
+    /**
+     * 默认的合并时间窗口(毫秒)
+     */
+    public static final long DEFAULT_BATCH_WINDOW = 20;
+    /**
+     * 默认的落盘间隔(毫秒)
+     */
+    public static final long DEFAULT_FORCE_INTERVAL = 1000;
+    /**
+     * 每次组提交最多取出的消息批数,避免消息持续加入时一直不能写入
+     */
+    public static final int MAX_BATCH_SIZE = 1024;
+
+    private final MessageLog mMessageLog;
+    private final ConcurrentLinkedQueue<PendingWrite> mQueue = new ConcurrentLinkedQueue<PendingWrite>();
+    private volatile int mDurability = DURABILITY_INTERVAL;
+    private volatile long mForceInterval = DEFAULT_FORCE_INTERVAL;
+    private volatile long mBatchWindow = DEFAULT_BATCH_WINDOW;
+    private volatile boolean mIsRunning = false;
+    private volatile Thread mWriterThread = null;
+    // 写入线程停止前的最后一次写入及停止后的直接写入持有此锁;加入队列不需要锁
+    private final Object mDrainLock = new Object();
+    // 写入线程是否已写完停止前的消息,之后由加入消息的线程直接写入
+    private boolean mIsWriterDone = true;
+    // 以下字段只在写入线程中访问(写入线程结束后在持有mDrainLock时访问)
+    private final Set<String> mDirtyDevices = new HashSet<String>();
+    private long mLastForceTime = 0;
+    // 统计数据
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private volatile int mMaxQueueDepth = 0;
+    private final AtomicLong mEnqueuedCount = new AtomicLong();
+    private final AtomicLong mWrittenCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private volatile long mBatchCount = 0;
+    private volatile long mForceCount = 0;
+
+    /**
+     * 创建后台写入
+     *
+     * @param messageLog 写入的消息日志
+     */
+    public MessagePersister(MessageLog messageLog) {
+        if (messageLog == null) {
+            throw new RuntimeException("消息日志不可为null");
+        }
+        mMessageLog = messageLog;
+    }
+
+    public MessageLog getMessageLog() {
+        return mMessageLog;
+    }
+
+    /**
+     * 设置落盘方式
+     *
+     * @param durability    {@link #DURABILITY_NONE}/{@link #DURABILITY_INTERVAL}/{@link #DURABILITY_BATCH}
+     * @param forceInterval 落盘间隔(毫秒),只在{@link #DURABILITY_INTERVAL}时有效
+     */
+    public void setDurability(int durability, long forceInterval) {
+        if (durability < DURABILITY_NONE || durability > DURABILITY_BATCH) {
+            throw new RuntimeException("落盘方式不正确: " + durability);
+        }
+        mDurability = durability;
+        mForceInterval = Math.max(forceInterval, 0);
+        LockSupport.unpark(mWriterThread);
+    }
+
+    public int getDurability() {
+        return mDurability;
+    }
+
+    /**
+     * 设置合并时间窗口,窗口内加入的消息一起写入
+     *
+     * @param batchWindow 时间(毫秒),为0时收到消息立即写入
+     */
+    public void setBatchWindow(long batchWindow) {
+        mBatchWindow = Math.max(batchWindow, 0);
+    }
+
+    /**
+     * 启动写入线程,已启动时不做任何操作
+     */
+    public synchronized void start() {
+        if (mIsRunning) {
+            return;
+        }
+        Thread previous = mWriterThread;
+        if (previous != null) {
+            // 停止后立即启动时,等待上一个写入线程写完剩余的消息
+            try {
+                previous.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        synchronized (mDrainLock) {
+            mIsWriterDone = false;
+        }
+        mIsRunning = true;
+        mWriterThread = SocketThreadFactory.newThread(this, "message-persister");
+        mWriterThread.start();
+    }
+
+    /**
+     * 停止写入线程,停止前写入并落盘队列中的所有消息;停止期间保存的消息由写入线程写入或在停止后直接写入
+     */
+    public void stop() {
+        Thread writerThread = null;
+        synchronized (this) {
+            if (!mIsRunning) {
+                return;
+            }
+            mIsRunning = false;
+            writerThread = mWriterThread;
+        }
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * 加入需要保存的消息,立即返回;未启动或已停止时在当前线程中直接写入
+     *
+     * @param deviceToken 设备标识
+     * @param from        消息来源:{@link MessageInfo#MSG_FOR_SEND}/{@link MessageInfo#MSG_FOR_RECEIVE}
+     * @param msgList     消息列表,加入后不可再修改
+     */
+    public void enqueue(String deviceToken, int from, List<String> msgList) {
+        if (msgList == null || msgList.isEmpty()) {
+            return;
+        }
+        offer(deviceToken, from, msgList);
+        // 加入后再检查状态:停止前加入的消息由写入线程写入,之后加入的消息由此线程写入
+        if (!mIsRunning) {
+            drainStopped();
+        }
+    }
+
+    private void offer(String deviceToken, int from, List<String> msgList) {
+        mQueue.offer(new PendingWrite(deviceToken, from, msgList));
+        mEnqueuedCount.addAndGet(msgList.size());
+        int depth = mQueueDepth.incrementAndGet();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+        if (depth == 1) {
+            // 队列由空变为非空时唤醒写入线程
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    /**
+     * 没有写入线程时在当前线程中写入队列中的消息,没有定时落盘,除不主动落盘外写入后立即落盘;
+     * 写入线程还未写完停止前的消息时由写入线程写入
+     */
+    private void drainStopped() {
+        synchronized (mDrainLock) {
+            if (!mIsWriterDone) {
+                return;
+            }
+            while (writeBatch() > 0) {
+                // 直到队列为空
+            }
+            if (mDurability != DURABILITY_NONE) {
+                forceDirtyDevices();
+            } else {
+                mDirtyDevices.clear();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean isBacklogged = false;
+        while (mIsRunning) {
+            waitForWork();
+            if (!mIsRunning) {
+                break;
+            }
+            if (!isBacklogged) {
+                // 等待合并时间窗口,窗口内加入的消息一起写入;队列积压时不再等待
+                sleepNanos(TimeUnit.MILLISECONDS.toNanos(mBatchWindow));
+            }
+            isBacklogged = writeBatch() >= MAX_BATCH_SIZE;
+        }
+        // 停止前写入剩余的消息并落盘,之后加入的消息由加入的线程直接写入
+        synchronized (mDrainLock) {
+            while (writeBatch() > 0) {
+                // 直到队列为空
+            }
+            forceDirtyDevices();
+            mIsWriterDone = true;
+        }
+    }
+
+    /**
+     * 等待新的消息,需要定时落盘时最多等待到下一次落盘时间
+     */
+    private void waitForWork() {
+        while (mIsRunning && mQueue.isEmpty()) {
+            if (mDurability == DURABILITY_INTERVAL && !mDirtyDevices.isEmpty()) {
+                long waitTime = mLastForceTime + mForceInterval - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    forceDirtyDevices();
+                    continue;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitTime));
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private void sleepNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0 && mIsRunning) {
+            LockSupport.parkNanos(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * 取出队列中的消息(最多{@link #MAX_BATCH_SIZE}批),按设备合并后每个设备写入一次,再按落盘方式落盘
+     *
+     * @return 取出的消息批数
+     */
+    private int writeBatch() {
+        Map<String, List<MessageLog.Batch>> deviceBatches = new LinkedHashMap<String, List<MessageLog.Batch>>();
+        PendingWrite pendingWrite = null;
+        int pollCount = 0;
+        while (pollCount < MAX_BATCH_SIZE && (pendingWrite = mQueue.poll()) != null) {
+            pollCount++;
+            mQueueDepth.decrementAndGet();
+            List<MessageLog.Batch> batches = deviceBatches.get(pendingWrite.mDeviceToken);
+            if (batches == null) {
+                batches = new ArrayList<MessageLog.Batch>();
+                deviceBatches.put(pendingWrite.mDeviceToken, batches);
+            }
+            batches.add(pendingWrite.mBatch);
+        }
+        if (deviceBatches.isEmpty()) {
+            return 0;
+        }
+        for (Map.Entry<String, List<MessageLog.Batch>> entry : deviceBatches.entrySet()) {
+            int msgCount = 0;
+            for (MessageLog.Batch batch : entry.getValue()) {
+                msgCount += batch.mMsgList.size();
+            }
+            try {
+                mMessageLog.appendBatches(entry.getKey(), entry.getValue());
+                mWrittenCount.addAndGet(msgCount);
+                mDirtyDevices.add(entry.getKey());
+            } catch (IOException e) {
+                mFailedCount.addAndGet(msgCount);
+                CommonUtils.logError(e);
+            }
+        }
+        mBatchCount++;
+        int durability = mDurability;
+        if (durability == DURABILITY_BATCH
+                || (durability == DURABILITY_INTERVAL
+                && System.currentTimeMillis() - mLastForceTime >= mForceInterval)) {
+            forceDirtyDevices();
+        }
+        return pollCount;
+    }
+
+    private void forceDirtyDevices() {
+        for (String deviceToken : mDirtyDevices) {
+            try {
+                mMessageLog.force(deviceToken);
+            } catch (IOException e) {
+                CommonUtils.logError(e);
+            }
+        }
+        if (!mDirtyDevices.isEmpty()) {
+            mForceCount++;
+        }
+        mDirtyDevices.clear();
+        mLastForceTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 队列中等待写入的消息批数
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * 队列中曾经等待写入的最大消息批数
+     *
+     * @return
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * 加入队列的消息数量
+     *
+     * @return
+     */
+    public long getEnqueuedCount() {
+        return mEnqueuedCount.get();
+    }
+
+    /**
+     * 已写入日志的消息数量
+     *
+     * @return
+     */
+    public long getWrittenCount() {
+        return mWrittenCount.get();
+    }
+
+    /**
+     * 写入失败的消息数量
+     *
+     * @return
+     */
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * 组提交的次数
+     *
+     * @return
+     */
+    public long getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * 落盘的次数
+     *
+     * @return
+     */
+    public long getForceCount() {
+        return mForceCount;
+    }
+
+    /**
+     * 等待写入的一批消息
+     */
+    private static class PendingWrite {
+        private final String mDeviceToken;
+        private final MessageLog.Batch mBatch;
+
+        PendingWrite(String deviceToken, int from, List<String> msgList) {
+            mDeviceToken = deviceToken;
+            mBatch = new MessageLog.Batch(System.currentTimeMillis(), from, msgList);
+        }
+    }
+}
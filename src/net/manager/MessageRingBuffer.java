@@ -0,0 +1,193 @@
+package net.manager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Created by taro on 16/3/26.
+ * 固定容量的消息环形缓存,按添加顺序保存消息:<br/>
+ * 1.添加消息为O(1),不需要创建节点对象;缓存已满时覆盖最旧的消息<br/>
+ * 2.可一次移除最旧的多条消息(批量清除),只移动读取位置<br/>
+ * 3.获取消息时返回当前内容的快照,快照不受之后的添加/清除影响,可在其它线程中遍历;
+ * 获取快照时先以乐观读复制,复制期间有写入时才加读锁重新复制,不阻塞写入
+ *
+ * @author taro
+ */
+public class MessageRingBuffer {
+    private final String[] mItems;
+    private final int mMask;
+    private final int mCapacity;
+    private final StampedLock mLock = new StampedLock();
+    // 下一条消息的序号,及最旧的消息的序号;消息所在位置为 序号 & mMask
+    private long mWriteSeq = 0;
+    private long mReadSeq = 0;
+
+    /**
+     * 创建环形缓存
+     *
+     * @param capacity 最多保存的消息数量
+     */
+    public MessageRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new RuntimeException("消息缓存容量必须大于0");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mItems = new String[size];
+        mMask = size - 1;
+        mCapacity = capacity;
+    }
+
+    /**
+     * 添加消息,缓存已满时覆盖最旧的消息
+     *
+     * @param msg
+     * @return 添加后的消息数量
+     */
+    public int append(String msg) {
+        long stamp = mLock.writeLock();
+        try {
+            if (mWriteSeq - mReadSeq >= mCapacity) {
+                mItems[(int) (mReadSeq & mMask)] = null;
+                mReadSeq++;
+            }
+            mItems[(int) (mWriteSeq & mMask)] = msg;
+            mWriteSeq++;
+            return (int) (mWriteSeq - mReadSeq);
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 移除最旧的多条消息
+     *
+     * @param count 移除的数量,超过当前数量时移除所有消息
+     * @return 被移除的消息, 按添加顺序
+     */
+    public List<String> evictOldest(int count) {
+        long stamp = mLock.writeLock();
+        try {
+            int evictCount = (int) Math.min(Math.max(count, 0), mWriteSeq - mReadSeq);
+            if (evictCount <= 0) {
+                return Collections.emptyList();
+            }
+            List<String> evicted = new ArrayList<String>(evictCount);
+            for (int i = 0; i < evictCount; i++) {
+                int index = (int) (mReadSeq & mMask);
+                evicted.add(mItems[index]);
+                // 释放引用
+                mItems[index] = null;
+                mReadSeq++;
+            }
+            return evicted;
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 清除所有消息
+     */
+    public void clear() {
+        long stamp = mLock.writeLock();
+        try {
+            Arrays.fill(mItems, null);
+            mReadSeq = mWriteSeq;
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 获取所有消息的快照
+     *
+     * @return 按添加顺序(最旧的在前)的只读列表, 不受之后的修改影响
+     */
+    public List<String> snapshot() {
+        long stamp = mLock.tryOptimisticRead();
+        String[] copy = copyItems();
+        if (!mLock.validate(stamp)) {
+            // 复制期间有写入,加读锁重新复制
+            stamp = mLock.readLock();
+            try {
+                copy = copyItems();
+            } finally {
+                mLock.unlockRead(stamp);
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(copy));
+    }
+
+    /**
+     * 按添加顺序复制所有消息,乐观读时读取到的序号可能不一致,需要保证不越界
+     *
+     * @return
+     */
+    private String[] copyItems() {
+        long readSeq = mReadSeq;
+        int size = (int) Math.max(0, Math.min(mWriteSeq - readSeq, mItems.length));
+        String[] copy = new String[size];
+        int start = (int) (readSeq & mMask);
+        int firstPart = Math.min(size, mItems.length - start);
+        System.arraycopy(mItems, start, copy, 0, firstPart);
+        System.arraycopy(mItems, 0, copy, firstPart, size - firstPart);
+        return copy;
+    }
+
+    /**
+     * 当前的消息数量
+     *
+     * @return
+     */
+    public int size() {
+        long stamp = mLock.tryOptimisticRead();
+        long size = mWriteSeq - mReadSeq;
+        if (!mLock.validate(stamp)) {
+            stamp = mLock.readLock();
+            try {
+                size = mWriteSeq - mReadSeq;
+            } finally {
+                mLock.unlockRead(stamp);
+            }
+        }
+        return (int) size;
+    }
+
+    /**
+     * 最多保存的消息数量
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * 缓存是否已满,再添加消息将覆盖最旧的消息
+     *
+     * @return
+     */
+    public boolean isFull() {
+        return size() >= mCapacity;
+    }
+
+    /**
+     * 累计添加过的消息数量
+     *
+     * @return
+     */
+    public long getTotalAppended() {
+        long stamp = mLock.readLock();
+        try {
+            return mWriteSeq;
+        } finally {
+            mLock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.manager;
+
+import net.socket.SocketConnect;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by taro on 16/3/29.
+ * 轮询选择空闲设备
+ *
+ * @author taro
+ */
+public class RoundRobinSelector implements IDeviceSelector {
+    private final AtomicInteger mNextIndex = new AtomicInteger();
+
+    @Override
+    public SocketConnect select(DeviceJob job, List<SocketConnect> freeDevices, List<SocketConnect> allDevices) {
+        int index = (mNextIndex.getAndIncrement() & 0x7fffffff) % freeDevices.size();
+        return freeDevices.get(index);
+    }
+}
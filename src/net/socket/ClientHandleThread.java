@@ -3,29 +3,38 @@ package net.socket;
 import net.interfaces.OnConnectionChangedListener;
 import net.manager.IMsgParseMgrAction;
 import net.utils.CommonUtils;
+import net.utils.SocketThreadFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * 连接socket处理线程,此线程只负责处理接收消息与发送消息
+ * 连接socket处理线程,此线程只负责处理接收消息与发送消息;
+ * 接收/发送线程均由{@link SocketThreadFactory}创建,可以使用普通的后台线程或虚拟线程;
+ * 心跳由{@link HeartbeatMonitor}在共用的时间轮中处理,不占用独立线程
  *
  * @author taro
  */
-public class ClientHandleThread extends Thread implements IClientAction {
-
+public class ClientHandleThread implements Runnable, IClientTransport {
+    // 单次读取数据的缓冲区大小
+    private static final int READ_BUFFER_SIZE = 8192;
+    // 发送数据的缓冲区大小,同一批发送的消息合并写入
+    private static final int SEND_BUFFER_SIZE = 8192;
     private volatile boolean mIsClientAlive = false;
     private String TAG_CLIENT = "";
     // 发送消息的处理线程
     private SendMsgQueueHandleThread mSendMsgQueueHandleThread = null;
-    // 发送心跳检测线程
-    private SendHeartbeatThread mSendHeartbeatThread = null;
+    // 接收消息的线程
+    private Thread mReceiveThread = null;
     // 消息缓存的列表
-    private LinkedBlockingQueue<String> mSendMsgQueue = null;
+    private SendMsgQueue mSendMsgQueue = null;
     // 客户端
     private Socket mClient = null;
     private SocketConnect mParentConnect = null;
@@ -33,12 +42,8 @@ public class ClientHandleThread extends Thread implements IClientAction {
     private IMsgParseMgrAction mMsgParseAction = null;
     // 连接状态更新监听接口
     private OnConnectionChangedListener mOnConnectionChangedListener = null;
-    // 最后一次心跳(或者消息)接收到的时间
-    // 由于服务端会持续发送心跳消息,一旦接收不到任何消息,即存在断连的可能
-    // 消息间隔不超过5秒
-    private long mLastHeartbeatTimestamp = 0;
-    // 是否需要检测心跳连接(客户端的操作)
-    private boolean mIsNeedCheckHeartbeat = false;
+    // 心跳发送及超时检测,由共用的时间轮驱动
+    private HeartbeatMonitor mHeartbeatMonitor = null;
 
     /**
      * 创建socket处理线程
@@ -64,8 +69,11 @@ public class ClientHandleThread extends Thread implements IClientAction {
         mParentConnect = connect;
         mClient = client;
         mMsgParseAction = action;
-        mSendMsgQueue = new LinkedBlockingQueue<String>(100);
+        mSendMsgQueue = connect.getSendMsgQueue();
+        // 队列在之前的连接关闭时已关闭
+        mSendMsgQueue.open();
         mSendMsgQueueHandleThread = new SendMsgQueueHandleThread();
+        mHeartbeatMonitor = new HeartbeatMonitor(connect, this);
         mIsClientAlive = true;
     }
 
@@ -78,6 +86,17 @@ public class ClientHandleThread extends Thread implements IClientAction {
         }
     }
 
+    /**
+     * 获取后台线程名称,客户端以设备标识区分,服务端以客户端标识区分
+     *
+     * @param prefix
+     * @return
+     */
+    private String getThreadName(String prefix) {
+        String deviceToken = mParentConnect.getDeviceToken();
+        return prefix + (deviceToken != null ? deviceToken : getTag());
+    }
+
     @Override
     public synchronized void closeClient() {
         if (mOnConnectionChangedListener != null) {
@@ -85,18 +104,15 @@ public class ClientHandleThread extends Thread implements IClientAction {
             mOnConnectionChangedListener.onConnectClosing(mParentConnect.getDeviceToken(),
                     mParentConnect.getSocketWorkType());
         }
-        if (!mClient.isClosed()) {
+        if (mClient != null && !mClient.isClosed()) {
             try {
                 mIsClientAlive = false;
-                if (mSendHeartbeatThread != null && mSendHeartbeatThread.isRunning()) {
-                    mSendHeartbeatThread.stop();
-                    mSendHeartbeatThread = null;
-                }
+                mHeartbeatMonitor.stop();
                 // 关闭发送消息线程
                 if (mSendMsgQueueHandleThread != null && mSendMsgQueueHandleThread.isRunning()) {
                     //TODO:发送线程关闭消息
                     try {
-                        this.sleep(1000);
+                        Thread.sleep(1000);
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
@@ -104,12 +120,16 @@ public class ClientHandleThread extends Thread implements IClientAction {
                     mSendMsgQueueHandleThread = null;
                 }
                 // 关闭接收消息的线程
-                if (this.isAlive()) {
-                    this.interrupt();
+                if (isTransportAlive()) {
+                    mReceiveThread.interrupt();
                 }
+                // 未发送的消息不再发送,关闭队列并唤醒等待加入队列的线程
+                mSendMsgQueue.close();
                 // 关闭连接
                 mClient.close();
                 mClient = null;
+                // 等待回复的请求不会再收到回复
+                mParentConnect.onTransportClosed();
                 mParentConnect.getDeviceInfo().updateDeviceConnectState(false);
             } catch (IOException e) {
                 e.printStackTrace();
@@ -120,9 +140,8 @@ public class ClientHandleThread extends Thread implements IClientAction {
 
     @Override
     public void startHeartbeatConnect() {
-        if (mSendHeartbeatThread == null || !mSendHeartbeatThread.isRunning()) {
-            mSendHeartbeatThread = new SendHeartbeatThread();
-            mSendHeartbeatThread.start();
+        if (mIsClientAlive) {
+            mHeartbeatMonitor.startHeartbeat();
         }
     }
 
@@ -131,6 +150,25 @@ public class ClientHandleThread extends Thread implements IClientAction {
         return mIsClientAlive;
     }
 
+    @Override
+    public boolean isTransportAlive() {
+        Thread receiveThread = mReceiveThread;
+        return receiveThread != null && receiveThread.isAlive();
+    }
+
+    @Override
+    public synchronized void startTransport() {
+        if (mReceiveThread == null) {
+            mReceiveThread = SocketThreadFactory.newThread(this, getThreadName("socket-receive-"));
+            mReceiveThread.start();
+        }
+    }
+
+    @Override
+    public void setReceivePaused(boolean isPaused) {
+        // 接收线程在消息处理队列已满时直接等待,不需要暂停读取
+    }
+
     @Override
     public void setIMsgParseAction(IMsgParseMgrAction action) {
         mMsgParseAction = action;
@@ -153,19 +191,72 @@ public class ClientHandleThread extends Thread implements IClientAction {
 
     @Override
     public void sendMsg(String output) {
-        if (!CommonUtils.isEmptyString(output)) {
-            try {
-                // 将消息存入发送队列
-                mSendMsgQueue.put(output);
-                if (mSendMsgQueueHandleThread == null) {
-                    mSendMsgQueueHandleThread = new SendMsgQueueHandleThread();
-                }
-                // 发送线程启动发送
-                mSendMsgQueueHandleThread.sendMsg();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                CommonUtils.logError(e);
+        sendMsgForResult(output);
+    }
+
+    @Override
+    public int sendMsgForResult(String output) {
+        return sendMsgForResult(output, SendMsgQueue.PRIORITY_BULK);
+    }
+
+    @Override
+    public void sendMsg(String output, int priority) {
+        sendMsgForResult(output, priority);
+    }
+
+    @Override
+    public int sendMsgForResult(String output, int priority) {
+        if (CommonUtils.isEmptyString(output)) {
+            return SendMsgQueue.RESULT_INVALID;
+        }
+        return sendFrame(SendFrame.data(output), priority, true);
+    }
+
+    @Override
+    public int sendFrame(SendFrame frame, int priority, boolean isAllowWait) {
+        if (!mIsClientAlive) {
+            return SendMsgQueue.RESULT_INVALID;
+        }
+        // 将消息存入发送队列,队列已满时按队列策略处理
+        int result = mSendMsgQueue.offerFrame(frame, priority, isAllowWait);
+        if (result == SendMsgQueue.RESULT_SUCCESS || result == SendMsgQueue.RESULT_DROPPED_OLDEST) {
+            SendMsgQueueHandleThread sendThread = mSendMsgQueueHandleThread;
+            if (sendThread == null) {
+                sendThread = new SendMsgQueueHandleThread();
+                mSendMsgQueueHandleThread = sendThread;
             }
+            // 发送线程启动发送
+            sendThread.sendMsg();
+        } else {
+            CommonUtils.logInfo("消息未能加入发送队列,结果: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * 处理接收到的完整消息帧
+     *
+     * @param type    消息类型
+     * @param payload 消息内容
+     */
+    private void handleReceivedFrame(byte type, ByteBuffer payload) {
+        if (type == FrameCodec.TYPE_PING || type == FrameCodec.TYPE_PONG) {
+            mHeartbeatMonitor.onHeartbeatFrame(type, FrameCodec.readId(payload));
+            return;
+        }
+        mParentConnect.getDeviceLoad().onReceived();
+        if (type == FrameCodec.TYPE_REQUEST) {
+            mParentConnect.onRequestReceived(FrameCodec.readId(payload), FrameCodec.decodeStringAfterId(payload));
+        } else if (type == FrameCodec.TYPE_RESPONSE) {
+            mParentConnect.onResponseReceived(FrameCodec.readId(payload), FrameCodec.decodeStringAfterId(payload));
+        } else if (type == FrameCodec.TYPE_DATA) {
+            // 回调传递读取到的字符串数据
+            if (mMsgParseAction != null) {
+                mMsgParseAction.onParseReceivedMsg(mParentConnect, mParentConnect.getDeviceToken(),
+                        mParentConnect.getSocketWorkType(), FrameCodec.decodeString(payload));
+            }
+        } else {
+            CommonUtils.logInfo("未知的消息类型: " + type);
         }
     }
 
@@ -176,41 +267,41 @@ public class ClientHandleThread extends Thread implements IClientAction {
             InputStream in = null;
             try {
                 in = mClient.getInputStream();
-                String receiveMsg = null;
-                byte[] buffer = new byte[1024];
-                StringBuilder bufferContainer = new StringBuilder();
-                while (mIsClientAlive) {
-                    // 存在数据可读
-                    if (in.available() > 0) {
-                        // 读取数据并转成字符串
-                        receiveMsg = CommonUtils.readOnceStrFromInputStream(in, buffer, bufferContainer, false);
-                        // 回调传递读取到的字符串数据
-                        if (mMsgParseAction != null) {
-                            mMsgParseAction.onParseReceivedMsg(mParentConnect, mParentConnect.getDeviceToken(),
-                                    mParentConnect.getSocketWorkType(), receiveMsg);
-                        }
-                        if (!CommonUtils.isEmptyString(receiveMsg)) {
-                            mLastHeartbeatTimestamp = System.currentTimeMillis();
-                        }
+                ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                FrameDecoder decoder = new FrameDecoder();
+                FrameDecoder.OnFrameDecodedListener frameListener = new FrameDecoder.OnFrameDecodedListener() {
+                    @Override
+                    public void onFrameDecoded(byte type, ByteBuffer payload) {
+                        handleReceivedFrame(type, payload);
                     }
-                    // 每一次读取数据后暂停500毫秒的时间
-                    Thread.sleep(500);
-                    if (mIsNeedCheckHeartbeat) {
-                        long keepTime = System.currentTimeMillis() - mLastHeartbeatTimestamp;
-                        if (keepTime > 10000) {
-                            // 超过10秒未有任何连接消息
-                            CommonUtils.logInfo("已超过心跳连接时间!!!!!!");
-                            if (mOnConnectionChangedListener != null) {
-                                mOnConnectionChangedListener.onConnectTimeout(mParentConnect.getDeviceToken(),
-                                        mParentConnect.getSocketWorkType());
-                            }
-                        }
+                };
+                mHeartbeatMonitor.start();
+                while (mIsClientAlive) {
+                    // 阻塞读取,数据到达时立即返回,空闲时不占用CPU
+                    int readSize = in.read(readBuffer.array(), 0, readBuffer.capacity());
+                    if (readSize < 0) {
+                        // 对端已关闭连接
+                        CommonUtils.logInfo("连接已被对端关闭");
+                        break;
                     }
+                    mHeartbeatMonitor.onReceived();
+                    readBuffer.clear();
+                    readBuffer.limit(readSize);
+                    // 按帧解析,每一条完整的消息回调一次
+                    decoder.decode(readBuffer, frameListener);
                 }
             } catch (Exception e) {
-                e.printStackTrace();
-                CommonUtils.logError(e);
+                // 主动关闭连接时阻塞的读取会抛出异常,不需要处理
+                if (mIsClientAlive) {
+                    e.printStackTrace();
+                    CommonUtils.logError(e);
+                }
             } finally {
+                mHeartbeatMonitor.stop();
+                if (mIsClientAlive) {
+                    // 连接异常中断,关闭连接并通知
+                    closeClient();
+                }
                 // 关闭流
                 if (in != null) {
                     try {
@@ -224,68 +315,6 @@ public class ClientHandleThread extends Thread implements IClientAction {
         }
     }
 
-    /**
-     * 客户端的发送消息线程
-     *
-     * @author taro
-     */
-    private class SendHeartbeatThread implements Runnable {
-        private volatile boolean mIsRunning = false;
-        private Thread mHeartbeatThread = null;
-
-        /**
-         * 获取当前发送数据后台线程是否正在进行
-         *
-         * @return
-         */
-        public boolean isRunning() {
-            return mIsRunning;
-        }
-
-        /**
-         * 关闭发送消息的线程
-         */
-        public void stop() {
-            if (mHeartbeatThread != null && mHeartbeatThread.isAlive()) {
-                mIsRunning = false;
-                mHeartbeatThread.interrupt();
-                mHeartbeatThread = null;
-            }
-        }
-
-        /**
-         * 通知发送开始发送消息
-         */
-        public synchronized void start() {
-            if (mSendMsgQueue == null || mClient == null || !mIsClientAlive) {
-                return;
-            } else {
-                if (mHeartbeatThread == null) {
-                    mHeartbeatThread = new Thread(this);
-                    mHeartbeatThread.setDaemon(true);
-                    mHeartbeatThread.start();
-                }
-            }
-        }
-
-        @Override
-        public void run() {
-            mIsRunning = true;
-            try {
-                while (mIsRunning && mIsClientAlive) {
-                    //TODO:发送心跳消息
-                    // 每5000毫秒发一次心跳消息
-                    Thread.sleep(5000);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                CommonUtils.logError(e);
-            } finally {
-                mIsRunning = false;
-            }
-        }
-    }
-
     /**
      * 客户端的发送消息线程
      *
@@ -323,8 +352,7 @@ public class ClientHandleThread extends Thread implements IClientAction {
                 return;
             } else {
                 if (mSendMsgThread == null) {
-                    mSendMsgThread = new Thread(this);
-                    mSendMsgThread.setDaemon(true);
+                    mSendMsgThread = SocketThreadFactory.newThread(this, getThreadName("socket-send-"));
                     mSendMsgThread.start();
                 }
             }
@@ -335,19 +363,33 @@ public class ClientHandleThread extends Thread implements IClientAction {
             mIsRunning = true;
             OutputStream outputStream = null;
             try {
-                outputStream = mClient.getOutputStream();
-                int sleepTime = 500;
+                outputStream = new BufferedOutputStream(mClient.getOutputStream(), SEND_BUFFER_SIZE);
+                List<SendFrame> outputList = new ArrayList<SendFrame>();
                 while (mIsRunning && mIsClientAlive) {
-                    String output = mSendMsgQueue.poll();
-                    if (CommonUtils.sendStringToOutputStream(outputStream, output, false)) {
-                        if (mMsgParseAction != null) {
-                            mMsgParseAction.onParseSentMsg(mParentConnect, mParentConnect.getDeviceToken(),
-                                    mParentConnect.getSocketWorkType(), output);
+                    // 阻塞等待新消息,消息到达时立即唤醒
+                    outputList.add(mSendMsgQueue.take());
+                    // 一并取出所有等待中的消息,合并为一次写入
+                    mSendMsgQueue.drainTo(outputList);
+                    for (SendFrame frame : outputList) {
+                        // 以帧的形式发送,接收端可以准确区分每一条消息
+                        ByteBuffer buffer = frame.encode();
+                        outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    }
+                    outputStream.flush();
+                    mHeartbeatMonitor.onSent();
+                    if (mMsgParseAction != null) {
+                        for (SendFrame frame : outputList) {
+                            if (frame.isUserMsg()) {
+                                mMsgParseAction.onParseSentMsg(mParentConnect, mParentConnect.getDeviceToken(),
+                                        mParentConnect.getSocketWorkType(), frame.msg);
+                            }
                         }
                     }
-                    // 最多每500毫秒发一次消息
-                    Thread.sleep(sleepTime);
+                    outputList.clear();
                 }
+            } catch (InterruptedException e) {
+                // 关闭发送线程时中断等待,不需要处理
+                CommonUtils.logInfo("发送消息线程已中止");
             } catch (Exception e) {
                 e.printStackTrace();
                 CommonUtils.logError(e);
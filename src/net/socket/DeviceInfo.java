@@ -2,8 +2,6 @@ package net.socket;
 
 import net.interfaces.OnInfoChangedListener;
 
-import java.util.Map;
-import java.util.Random;
 
 /**
  * Created by taro on 16/3/14. 设备相关信息
@@ -266,17 +264,26 @@ public class DeviceInfo implements IDeviceAction {
     }
 
     /**
-     * 客户端使用:初始化端口
-     *
-     * @param clientSocketMap 保存的多个客户端连接socketConnect
+     * 客户端使用:初始化端口,从{@link PortAllocator}分配本地端口,已分配过端口时先释放原来的端口
      */
-    public void initialPort(Map<String, SocketConnect> clientSocketMap) {
-        // 创建随机端口
-        this.mLocalPort = createRandomLocalPort(clientSocketMap);
+    public void initialPort() {
+        releasePort();
+        this.mLocalPort = PortAllocator.getInstance().acquire();
         // 创建adb转发端口,每一个客户端需要对应的是不同的设备,所以每一个客户端需要的转发端口是独立的,不可复用
         this.mUsbPort = getUsbPortFromLocalPort(this.mLocalPort);
     }
 
+    /**
+     * 客户端使用:释放分配的端口,连接不再使用时调用
+     */
+    public void releasePort() {
+        if (this.mLocalPort > 0) {
+            PortAllocator.getInstance().release(this.mLocalPort);
+            this.mLocalPort = -1;
+            this.mUsbPort = -1;
+        }
+    }
+
     /**
      * 成功创建连接
      *
@@ -310,34 +317,6 @@ public class DeviceInfo implements IDeviceAction {
         return localPort + 1;
     }
 
-    /**
-     * 获取随机生成的端口号
-     *
-     * @param clientSocketMap 设备标识与端口号绑定的map,每一个设备标识 =(对应) 一个本地端口号
-     * @return
-     */
-    public static int createRandomLocalPort(Map<String, SocketConnect> clientSocketMap) {
-        Random random = new Random(System.currentTimeMillis());
-        if (clientSocketMap == null || clientSocketMap.size() <= 0) {
-            return START_PORT + random.nextInt(PORT_BOUND);
-        } else {
-            boolean isUsed = false;
-            while (true) {
-                isUsed = false;
-                int port = START_PORT + random.nextInt(PORT_BOUND);
-                for (SocketConnect socket : clientSocketMap.values()) {
-                    if (socket != null && socket.getDeviceInfo().isContainPort(port)) {
-                        isUsed = true;
-                        break;
-                    }
-                }
-                if (!isUsed) {
-                    return port;
-                }
-            }
-        }
-    }
-
     @Override
     public void setOnInfoChangedListener(OnInfoChangedListener listener) {
         mOnInfoChangedListener = listener;
@@ -0,0 +1,68 @@
+package net.socket;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created by taro on 16/3/29.
+ * 设备连接的负载统计,在消息收发线程中更新,只使用原子计数,不加锁:<br/>
+ * 1.未完成的请求数量,发送请求时增加,收到回复/超时/连接关闭时减少<br/>
+ * 2.累计发送及接收的消息数量
+ *
+ * @author taro
+ */
+public class DeviceLoad {
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private final LongAdder mSentCount = new LongAdder();
+    private final LongAdder mReceivedCount = new LongAdder();
+
+    /**
+     * 发送请求,等待回复
+     */
+    public void onRequestStarted() {
+        mOutstanding.incrementAndGet();
+    }
+
+    /**
+     * 请求结束(收到回复/超时/连接关闭)
+     */
+    public void onRequestFinished() {
+        mOutstanding.decrementAndGet();
+    }
+
+    /**
+     * 消息已加入发送队列
+     */
+    public void onSent() {
+        mSentCount.increment();
+    }
+
+    /**
+     * 接收到消息
+     */
+    public void onReceived() {
+        mReceivedCount.increment();
+    }
+
+    /**
+     * 未完成的请求数量
+     *
+     * @return
+     */
+    public int getOutstanding() {
+        return mOutstanding.get();
+    }
+
+    public long getSentCount() {
+        return mSentCount.sum();
+    }
+
+    public long getReceivedCount() {
+        return mReceivedCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "outstanding=" + getOutstanding() + ", sent=" + getSentCount() + ", received=" + getReceivedCount();
+    }
+}
@@ -0,0 +1,182 @@
+package net.socket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Created by taro on 16/3/18.
+ * 消息帧编码,每一条消息以固定长度的帧头开始,帧头包括消息内容长度及消息类型:<br/>
+ * [4字节 内容长度(大端)][1字节 消息类型][内容]<br/>
+ * 带标识的消息类型(心跳等),内容的前8个字节为消息标识:[8字节 标识][内容]<br/>
+ * 接收端根据帧头确定每一条消息的边界,不再受TCP合并/拆分数据的影响,解码见{@link FrameDecoder}
+ *
+ * @author taro
+ */
+public class FrameCodec {
+    /**
+     * 帧头长度
+     */
+    public static final int HEADER_LENGTH = 5;
+    /**
+     * 单帧内容的最大长度,超过此长度的帧视为数据错误
+     */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    /**
+     * 消息类型:普通的字符串消息
+     */
+    public static final byte TYPE_DATA = 0x1;
+    /**
+     * 消息类型:心跳请求,标识为发送时间,对端收到后以相同的标识回复{@link #TYPE_PONG}
+     */
+    public static final byte TYPE_PING = 0x2;
+    /**
+     * 消息类型:心跳回复,标识为对应心跳请求的标识
+     */
+    public static final byte TYPE_PONG = 0x3;
+    /**
+     * 消息类型:需要回复的请求,标识为请求标识,对端以相同的标识回复{@link #TYPE_RESPONSE}
+     */
+    public static final byte TYPE_REQUEST = 0x4;
+    /**
+     * 消息类型:请求的回复,标识为对应请求的标识
+     */
+    public static final byte TYPE_RESPONSE = 0x5;
+    /**
+     * 消息标识的长度
+     */
+    public static final int ID_LENGTH = 8;
+    /**
+     * 消息内容使用的编码
+     */
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private FrameCodec() {
+    }
+
+    /**
+     * 将字符串消息编码为完整的帧
+     *
+     * @param type 消息类型
+     * @param msg  消息内容
+     * @return 可直接写出的帧数据(position为0, limit为帧长度)
+     */
+    public static ByteBuffer encode(byte type, String msg) {
+        byte[] payload = msg == null ? new byte[0] : msg.getBytes(CHARSET);
+        return encode(type, payload, 0, payload.length);
+    }
+
+    /**
+     * 将字节内容编码为完整的帧
+     *
+     * @param type    消息类型
+     * @param payload 内容
+     * @param offset  内容开始位置
+     * @param length  内容长度
+     * @return 可直接写出的帧数据(position为0, limit为帧长度)
+     */
+    public static ByteBuffer encode(byte type, byte[] payload, int offset, int length) {
+        checkFrameLength(length);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+        frame.putInt(length);
+        frame.put(type);
+        frame.put(payload, offset, length);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 将带标识的字符串消息编码为完整的帧
+     *
+     * @param type 消息类型
+     * @param id   消息标识
+     * @param msg  消息内容,可为null
+     * @return 可直接写出的帧数据(position为0, limit为帧长度)
+     */
+    public static ByteBuffer encode(byte type, long id, String msg) {
+        byte[] payload = msg == null ? new byte[0] : msg.getBytes(CHARSET);
+        checkFrameLength(ID_LENGTH + payload.length);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + ID_LENGTH + payload.length);
+        frame.putInt(ID_LENGTH + payload.length);
+        frame.put(type);
+        frame.putLong(id);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 消息类型是否带有标识
+     *
+     * @param type
+     * @return
+     */
+    public static boolean hasId(byte type) {
+        return type == TYPE_PING || type == TYPE_PONG || type == TYPE_REQUEST || type == TYPE_RESPONSE;
+    }
+
+    /**
+     * 读取带标识的帧内容中的标识
+     *
+     * @param payload 帧内容,读取后position不变
+     * @return
+     */
+    public static long readId(ByteBuffer payload) {
+        if (payload.remaining() < ID_LENGTH) {
+            throw new IllegalStateException("帧内容长度不足,无法读取标识");
+        }
+        return payload.getLong(payload.position());
+    }
+
+    /**
+     * 将带标识的帧内容中标识之后的部分解码为字符串
+     *
+     * @param payload 帧内容,读取后position不变
+     * @return
+     */
+    public static String decodeStringAfterId(ByteBuffer payload) {
+        ByteBuffer content = payload.duplicate();
+        content.position(payload.position() + ID_LENGTH);
+        return decodeString(content);
+    }
+
+    /**
+     * 将字符串消息以帧的形式写到输出流,不会flush
+     *
+     * @param out  输出流
+     * @param type 消息类型
+     * @param msg  消息内容
+     * @throws IOException
+     */
+    public static void writeFrame(OutputStream out, byte type, String msg) throws IOException {
+        ByteBuffer frame = encode(type, msg);
+        out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+    }
+
+    /**
+     * 将帧内容解码为字符串,帧内容在堆内存中时不会产生额外的复制
+     *
+     * @param payload 帧内容,读取后position不变
+     * @return
+     */
+    public static String decodeString(ByteBuffer payload) {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+                    CHARSET);
+        } else {
+            return CHARSET.decode(payload.duplicate()).toString();
+        }
+    }
+
+    /**
+     * 检测帧内容长度是否正确
+     *
+     * @param length
+     */
+    static void checkFrameLength(int length) {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IllegalStateException("帧内容长度不正确: " + length);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package net.socket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by taro on 16/3/18.
+ * 增量式的消息帧解码,每次读取到的数据直接交给{@link #decode(ByteBuffer, OnFrameDecodedListener)}处理,
+ * 每一个完整的帧回调一次;在一次读取中完整到达的帧直接以原缓冲区的视图回调,不会复制数据,
+ * 只有跨越多次读取的帧才会暂存到内部缓冲区中.帧格式见{@link FrameCodec}<br/>
+ * 此对象不是线程安全的,每个连接使用独立的解码对象
+ *
+ * @author taro
+ */
+public class FrameDecoder {
+    // 暂存缓冲区的初始大小
+    private static final int INITIAL_PENDING_SIZE = 1024;
+    // 暂存缓冲区超过此大小时,在完成一帧后恢复为初始大小
+    private static final int MAX_RETAIN_PENDING_SIZE = 64 * 1024;
+
+    // 暂存不完整的帧(写模式)
+    private ByteBuffer mPendingBuffer = null;
+
+    public FrameDecoder() {
+        mPendingBuffer = ByteBuffer.allocate(INITIAL_PENDING_SIZE);
+    }
+
+    /**
+     * 解码读取到的数据,每解码出一个完整的帧回调一次;不完整的部分暂存,等待下一次数据到达
+     *
+     * @param in       读取到的数据(读模式),处理后数据将被全部消耗
+     * @param listener 帧回调接口
+     * @throws IllegalStateException 帧长度不正确,数据已无法继续解析
+     */
+    public void decode(ByteBuffer in, OnFrameDecodedListener listener) {
+        // 先补全上一次未完整的帧
+        if (mPendingBuffer.position() > 0 && !fillPendingFrame(in, listener)) {
+            return;
+        }
+        while (in.remaining() >= FrameCodec.HEADER_LENGTH) {
+            int start = in.position();
+            int length = in.getInt(start);
+            FrameCodec.checkFrameLength(length);
+            int frameEnd = start + FrameCodec.HEADER_LENGTH + length;
+            if (frameEnd > in.limit()) {
+                break;
+            }
+            byte type = in.get(start + 4);
+            // 完整的帧直接使用原缓冲区的视图
+            ByteBuffer payload = in.duplicate();
+            payload.limit(frameEnd);
+            payload.position(start + FrameCodec.HEADER_LENGTH);
+            in.position(frameEnd);
+            listener.onFrameDecoded(type, payload);
+        }
+        if (in.hasRemaining()) {
+            // 不完整的帧暂存
+            ensurePendingCapacity(in.remaining());
+            mPendingBuffer.put(in);
+        }
+    }
+
+    /**
+     * 清除暂存的不完整帧
+     */
+    public void reset() {
+        mPendingBuffer = ByteBuffer.allocate(INITIAL_PENDING_SIZE);
+    }
+
+    /**
+     * 使用新到达的数据补全暂存的帧
+     *
+     * @param in
+     * @param listener
+     * @return 暂存的帧已完整并回调返回true, 数据不足返回false
+     */
+    private boolean fillPendingFrame(ByteBuffer in, OnFrameDecodedListener listener) {
+        if (mPendingBuffer.position() < FrameCodec.HEADER_LENGTH) {
+            transfer(in, FrameCodec.HEADER_LENGTH - mPendingBuffer.position());
+            if (mPendingBuffer.position() < FrameCodec.HEADER_LENGTH) {
+                return false;
+            }
+        }
+        int length = mPendingBuffer.getInt(0);
+        FrameCodec.checkFrameLength(length);
+        int frameLength = FrameCodec.HEADER_LENGTH + length;
+        ensurePendingCapacity(frameLength - mPendingBuffer.position());
+        transfer(in, frameLength - mPendingBuffer.position());
+        if (mPendingBuffer.position() < frameLength) {
+            return false;
+        }
+        byte type = mPendingBuffer.get(4);
+        ByteBuffer payload = mPendingBuffer.duplicate();
+        payload.limit(frameLength);
+        payload.position(FrameCodec.HEADER_LENGTH);
+        listener.onFrameDecoded(type, payload);
+        if (mPendingBuffer.capacity() > MAX_RETAIN_PENDING_SIZE) {
+            reset();
+        } else {
+            mPendingBuffer.clear();
+        }
+        return true;
+    }
+
+    /**
+     * 从输入数据中复制最多count个字节到暂存缓冲区
+     *
+     * @param in
+     * @param count
+     */
+    private void transfer(ByteBuffer in, int count) {
+        int size = Math.min(count, in.remaining());
+        if (size <= 0) {
+            return;
+        }
+        ByteBuffer part = in.duplicate();
+        part.limit(in.position() + size);
+        mPendingBuffer.put(part);
+        in.position(in.position() + size);
+    }
+
+    /**
+     * 确保暂存缓冲区剩余空间足够
+     *
+     * @param required
+     */
+    private void ensurePendingCapacity(int required) {
+        if (mPendingBuffer.remaining() >= required) {
+            return;
+        }
+        int newCapacity = Math.max(mPendingBuffer.capacity() * 2, mPendingBuffer.position() + required);
+        ByteBuffer newBuffer = ByteBuffer.allocate(newCapacity);
+        mPendingBuffer.flip();
+        newBuffer.put(mPendingBuffer);
+        mPendingBuffer = newBuffer;
+    }
+
+    /**
+     * 帧解码回调接口
+     */
+    public interface OnFrameDecodedListener {
+        /**
+         * 解码出完整的帧,payload只在回调期间有效,需要保留的数据必须在回调中复制或转换
+         *
+         * @param type    消息类型
+         * @param payload 帧内容
+         */
+        public void onFrameDecoded(byte type, ByteBuffer payload);
+    }
+}
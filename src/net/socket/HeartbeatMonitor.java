@@ -0,0 +1,140 @@
+package net.socket;
+
+import net.interfaces.OnConnectionChangedListener;
+import net.utils.CommonUtils;
+import net.utils.TimingWheel;
+
+/**
+ * Created by taro on 16/3/23.
+ * 单个连接的心跳处理,由共用的时间轮定时驱动:<br/>
+ * 1.连接空闲超过{@link #HEARTBEAT_INTERVAL}时发送心跳请求,近期有消息收发时不发送<br/>
+ * 2.收到心跳回复时计算往返时间并更新到连接<br/>
+ * 3.启动心跳检测后,超过{@link #HEARTBEAT_TIMEOUT}未收到任何数据即通知连接超时
+ *
+ * @author taro
+ */
+final class HeartbeatMonitor implements Runnable {
+    /**
+     * 心跳检测的间隔时间(毫秒)
+     */
+    static final long HEARTBEAT_CHECK_INTERVAL = 1000;
+    /**
+     * 连接空闲超过此时间(毫秒)时发送心跳请求
+     */
+    static final long HEARTBEAT_INTERVAL = 5000;
+    /**
+     * 超过此时间(毫秒)未接收到任何数据即认为连接超时
+     */
+    static final long HEARTBEAT_TIMEOUT = 10000;
+
+    private final SocketConnect mParentConnect;
+    private final IClientTransport mTransport;
+    // 最后一次接收到数据的时间
+    private volatile long mLastReceiveTimestamp = 0;
+    // 最后一次发送数据的时间
+    private volatile long mLastSendTimestamp = 0;
+    // 最后一次通知连接超时的时间,避免每次检测都重复通知
+    private long mLastTimeoutNotifyTimestamp = 0;
+    // 是否需要发送心跳及检测超时
+    private volatile boolean mIsNeedCheckHeartbeat = false;
+    private TimingWheel.Timeout mCheckTimeout = null;
+
+    HeartbeatMonitor(SocketConnect connect, IClientTransport transport) {
+        mParentConnect = connect;
+        mTransport = transport;
+    }
+
+    /**
+     * 开始定时检测,此时只回复对端的心跳请求,不主动发送心跳
+     */
+    synchronized void start() {
+        if (mCheckTimeout == null) {
+            long now = System.currentTimeMillis();
+            mLastReceiveTimestamp = now;
+            mLastSendTimestamp = now;
+            mCheckTimeout = TimingWheel.getInstance().schedule(this, HEARTBEAT_CHECK_INTERVAL);
+        }
+    }
+
+    /**
+     * 启动心跳,空闲时主动发送心跳请求并检测连接超时
+     */
+    void startHeartbeat() {
+        mLastReceiveTimestamp = System.currentTimeMillis();
+        mIsNeedCheckHeartbeat = true;
+        start();
+    }
+
+    /**
+     * 停止定时检测
+     */
+    synchronized void stop() {
+        mIsNeedCheckHeartbeat = false;
+        if (mCheckTimeout != null) {
+            mCheckTimeout.cancel();
+            mCheckTimeout = null;
+        }
+    }
+
+    /**
+     * 接收到数据时调用
+     */
+    void onReceived() {
+        mLastReceiveTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * 发送数据时调用
+     */
+    void onSent() {
+        mLastSendTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * 处理接收到的心跳帧
+     *
+     * @param type {@link FrameCodec#TYPE_PING}/{@link FrameCodec#TYPE_PONG}
+     * @param id   心跳标识,即心跳请求发送时的时间(纳秒)
+     */
+    void onHeartbeatFrame(byte type, long id) {
+        if (type == FrameCodec.TYPE_PING) {
+            // 以相同的标识回复,由对端计算往返时间
+            mTransport.sendFrame(SendFrame.withId(FrameCodec.TYPE_PONG, id, null), SendMsgQueue.PRIORITY_CONTROL, false);
+        } else if (type == FrameCodec.TYPE_PONG) {
+            long rtt = (System.nanoTime() - id) / 1000;
+            if (rtt >= 0) {
+                mParentConnect.updateRoundTripTime(rtt);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!mTransport.isClientAlive()) {
+            return;
+        }
+        if (mIsNeedCheckHeartbeat) {
+            long now = System.currentTimeMillis();
+            if (now - mLastReceiveTimestamp > HEARTBEAT_TIMEOUT
+                    && now - mLastTimeoutNotifyTimestamp > HEARTBEAT_TIMEOUT) {
+                // 超过10秒未有任何连接消息
+                mLastTimeoutNotifyTimestamp = now;
+                CommonUtils.logInfo("已超过心跳连接时间!!!!!!");
+                OnConnectionChangedListener listener = mTransport.getOnConnectionChangedListener();
+                if (listener != null) {
+                    listener.onConnectTimeout(mParentConnect.getDeviceToken(), mParentConnect.getSocketWorkType());
+                }
+            }
+            if (now - Math.max(mLastReceiveTimestamp, mLastSendTimestamp) >= HEARTBEAT_INTERVAL) {
+                // 连接空闲,发送心跳请求;发送队列已满时放弃本次心跳,不阻塞时间轮线程
+                mTransport.sendFrame(SendFrame.withId(FrameCodec.TYPE_PING, System.nanoTime(), null),
+                        SendMsgQueue.PRIORITY_CONTROL, false);
+            }
+        }
+        synchronized (this) {
+            if (mCheckTimeout != null) {
+                mCheckTimeout = TimingWheel.getInstance().schedule(this, HEARTBEAT_CHECK_INTERVAL);
+            }
+        }
+    }
+}
@@ -21,6 +21,32 @@ public interface IClientAction {
 	 */
 	public void sendMsg(String output);
 
+	/**
+	 * 发送消息,与{@link #sendMsg(String)}相同,但返回消息加入发送队列的结果;
+	 * 队列已满时根据发送队列设置的策略处理,见{@link SendMsgQueue#setOverflowPolicy(int, long)}
+	 *
+	 * @param output
+	 * @return {@link SendMsgQueue#RESULT_SUCCESS}等加入发送队列的结果
+	 */
+	public int sendMsgForResult(String output);
+
+	/**
+	 * 以指定优先级发送消息,控制消息(心跳/停止/状态查询等)使用{@link SendMsgQueue#PRIORITY_CONTROL}可优先于普通消息发送
+	 *
+	 * @param output
+	 * @param priority {@link SendMsgQueue#PRIORITY_CONTROL}/{@link SendMsgQueue#PRIORITY_BULK}
+	 */
+	public void sendMsg(String output, int priority);
+
+	/**
+	 * 以指定优先级发送消息,并返回消息加入发送队列的结果
+	 *
+	 * @param output
+	 * @param priority {@link SendMsgQueue#PRIORITY_CONTROL}/{@link SendMsgQueue#PRIORITY_BULK}
+	 * @return {@link SendMsgQueue#RESULT_SUCCESS}等加入发送队列的结果
+	 */
+	public int sendMsgForResult(String output, int priority);
+
 	/**
 	 * 关闭客户端连接
 	 */
@@ -0,0 +1,45 @@
+package net.socket;
+
+import net.interfaces.OnConnectionChangedListener;
+
+/**
+ * Created by taro on 16/3/18.
+ * 连接的收发消息实现,可以是每个连接独立线程的阻塞方式,也可以是多个连接共用selector线程的NIO方式
+ */
+interface IClientTransport extends IClientAction {
+    /**
+     * 当前收发消息的后台处理是否仍在运行
+     *
+     * @return
+     */
+    public boolean isTransportAlive();
+
+    /**
+     * 启动后台收发消息处理,已启动时不做任何操作
+     */
+    public void startTransport();
+
+    /**
+     * 将帧加入发送队列并通知发送
+     *
+     * @param frame
+     * @param priority    {@link SendMsgQueue#PRIORITY_CONTROL}/{@link SendMsgQueue#PRIORITY_BULK}
+     * @param isAllowWait 发送队列已满时是否按队列策略处理,为false时直接丢弃
+     * @return {@link SendMsgQueue#RESULT_SUCCESS}等加入发送队列的结果
+     */
+    public int sendFrame(SendFrame frame, int priority, boolean isAllowWait);
+
+    /**
+     * 暂停/恢复读取连接的数据,读取的数据无法及时处理时暂停读取(反压)
+     *
+     * @param isPaused
+     */
+    public void setReceivePaused(boolean isPaused);
+
+    /**
+     * 获取连接状态更新监听
+     *
+     * @return
+     */
+    public OnConnectionChangedListener getOnConnectionChangedListener();
+}
@@ -1,7 +1,10 @@
 package net.socket;
 
+import net.interfaces.OnRequestReceivedListener;
 import net.utils.AdbUtils;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Created by taro on 16/3/8.
  */
@@ -68,4 +71,82 @@ public interface ISocketAction extends IClientAction,IDeviceAction {
 	 * 开始接收消息
 	 */
 	public boolean startReceiveMsg();
+
+	/**
+	 * 获取连接的发送消息队列,可设置队列已满时的处理策略及获取队列统计数据
+	 *
+	 * @return
+	 */
+	public SendMsgQueue getSendMsgQueue();
+
+	/**
+	 * 发送需要回复的请求,请求与回复通过帧中的请求标识关联,同一连接可以同时等待多个请求的回复
+	 *
+	 * @param output
+	 *            请求内容
+	 * @param timeout
+	 *            等待回复的最长时间(毫秒)
+	 * @return 收到回复时以回复内容结束;超时时以TimeoutException结束,发送失败或连接关闭时以IOException结束
+	 */
+	public CompletableFuture<String> sendRequest(String output, long timeout);
+
+	/**
+	 * 发送需要回复的请求
+	 *
+	 * @param output
+	 *            请求内容
+	 * @param timeout
+	 *            等待回复的最长时间(毫秒)
+	 * @param isAllowWait
+	 *            发送队列已满时是否按队列策略处理(可能等待),为false时不等待
+	 * @return 同{@link #sendRequest(String, long)};请求未能加入发送队列(队列已满/被拒绝/等待超时)时以
+	 *         {@link java.util.concurrent.RejectedExecutionException}结束,此时请求一定没有发送
+	 */
+	public CompletableFuture<String> sendRequest(String output, long timeout, boolean isAllowWait);
+
+	/**
+	 * 回复对端的请求,见{@link OnRequestReceivedListener}
+	 *
+	 * @param requestId
+	 *            请求标识
+	 * @param output
+	 *            回复内容
+	 * @return {@link SendMsgQueue#RESULT_SUCCESS}等加入发送队列的结果
+	 */
+	public int sendResponse(long requestId, String output);
+
+	/**
+	 * 设置接收到对端请求的监听,未设置时请求按普通消息交给{@link net.manager.IMsgParseMgrAction}处理
+	 *
+	 * @param listener
+	 */
+	public void setOnRequestReceivedListener(OnRequestReceivedListener listener);
+
+	/**
+	 * 获取等待回复的请求数量
+	 *
+	 * @return
+	 */
+	public int getPendingRequestCount();
+
+	/**
+	 * 获取最近一次心跳的往返时间
+	 *
+	 * @return 往返时间(微秒),尚未测量时返回-1
+	 */
+	public long getRoundTripTime();
+
+	/**
+	 * 获取平滑后的心跳往返时间,可用于比较不同设备的连接质量
+	 *
+	 * @return 平滑往返时间(微秒),尚未测量时返回-1
+	 */
+	public long getSmoothedRoundTripTime();
+
+	/**
+	 * 获取连接的负载统计(未完成的请求数量/收发消息数量),可用于选择负载较低的设备
+	 *
+	 * @return
+	 */
+	public DeviceLoad getDeviceLoad();
 }
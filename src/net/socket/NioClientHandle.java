@@ -0,0 +1,370 @@
+package net.socket;
+
+import net.interfaces.OnConnectionChangedListener;
+import net.manager.IMsgParseMgrAction;
+import net.utils.CommonUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Created by taro on 16/3/18.
+ * NIO方式的连接收发消息处理,连接的读写事件由{@link NioSelectorLoop}统一处理,不需要为每个连接创建线程
+ *
+ * @author taro
+ */
+public class NioClientHandle implements IClientTransport {
+    // 单次读取数据的缓冲区大小
+    private static final int READ_BUFFER_SIZE = 8192;
+    // 单次聚集写入的最大消息数量
+    private static final int MAX_WRITE_BATCH = 64;
+
+    private volatile boolean mIsClientAlive = false;
+    // 是否已开始注册到事件循环,注册在事件循环线程中异步完成
+    private final AtomicBoolean mIsStarted = new AtomicBoolean(false);
+    private SocketChannel mChannel = null;
+    private SelectionKey mSelectionKey = null;
+    private NioSelectorLoop mSelectorLoop = null;
+    private SocketConnect mParentConnect = null;
+    // 接收消息回调的接口
+    private IMsgParseMgrAction mMsgParseAction = null;
+    // 连接状态更新监听接口
+    private OnConnectionChangedListener mOnConnectionChangedListener = null;
+    // 发送消息队列,来自父级连接
+    private SendMsgQueue mSendMsgQueue = null;
+    // 已从发送队列中取出但未完全写出的消息,只在事件循环线程中使用
+    private ArrayDeque<PendingWrite> mPendingWrites = null;
+    private List<SendFrame> mDrainList = null;
+    // 是否已经通知事件循环关注写事件
+    private AtomicBoolean mIsWriteScheduled = null;
+    // 读取缓冲及帧解码,只在事件循环线程中使用
+    private ByteBuffer mReadBuffer = null;
+    private FrameDecoder mFrameDecoder = null;
+    private FrameDecoder.OnFrameDecodedListener mFrameListener = null;
+    // 心跳发送及超时检测,与阻塞方式的连接共用同一个时间轮
+    private HeartbeatMonitor mHeartbeatMonitor = null;
+
+    /**
+     * 创建NIO连接处理
+     *
+     * @param connect 来自父级的连接信息
+     * @param channel 已建立连接的socket通道
+     * @param loop    处理此连接读写事件的selector事件循环
+     */
+    public NioClientHandle(SocketConnect connect, SocketChannel channel, NioSelectorLoop loop) {
+        if (connect == null || channel == null || loop == null) {
+            throw new RuntimeException("socket连接,通道及事件循环对象不可为null");
+        }
+        mParentConnect = connect;
+        mChannel = channel;
+        mSelectorLoop = loop;
+        mSendMsgQueue = connect.getSendMsgQueue();
+        // 队列在之前的连接关闭时已关闭
+        mSendMsgQueue.open();
+        mPendingWrites = new ArrayDeque<PendingWrite>();
+        mDrainList = new ArrayList<SendFrame>();
+        mHeartbeatMonitor = new HeartbeatMonitor(connect, this);
+        mIsWriteScheduled = new AtomicBoolean(false);
+        mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        mFrameDecoder = new FrameDecoder();
+        mFrameListener = new FrameDecoder.OnFrameDecodedListener() {
+            @Override
+            public void onFrameDecoded(byte type, ByteBuffer payload) {
+                handleReceivedFrame(type, payload);
+            }
+        };
+        try {
+            mChannel.configureBlocking(false);
+        } catch (IOException e) {
+            CommonUtils.logError(e);
+            throw new RuntimeException("设置socket通道为非阻塞模式失败");
+        }
+        mIsClientAlive = true;
+    }
+
+    /**
+     * 获取连接的socket通道
+     *
+     * @return
+     */
+    SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * 连接已注册到事件循环中,运行在事件循环线程
+     *
+     * @param key
+     */
+    void onRegistered(SelectionKey key) {
+        mSelectionKey = key;
+        mHeartbeatMonitor.start();
+        // 注册前已存在待发送的消息
+        if (mSendMsgQueue.getQueueDepth() > 0) {
+            mIsWriteScheduled.set(true);
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * 通道可读,运行在事件循环线程
+     *
+     * @throws IOException
+     */
+    void onReadable() throws IOException {
+        int readSize = mChannel.read(mReadBuffer);
+        if (readSize < 0) {
+            CommonUtils.logInfo("连接已被对端关闭");
+            closeClient();
+            return;
+        }
+        if (readSize == 0) {
+            return;
+        }
+        mHeartbeatMonitor.onReceived();
+        mReadBuffer.flip();
+        // 按帧解析,不完整的帧由解码对象暂存,读取缓冲区可以直接清空
+        mFrameDecoder.decode(mReadBuffer, mFrameListener);
+        mReadBuffer.clear();
+    }
+
+    /**
+     * 处理接收到的完整消息帧
+     *
+     * @param type    消息类型
+     * @param payload 消息内容
+     */
+    private void handleReceivedFrame(byte type, ByteBuffer payload) {
+        if (type == FrameCodec.TYPE_PING || type == FrameCodec.TYPE_PONG) {
+            mHeartbeatMonitor.onHeartbeatFrame(type, FrameCodec.readId(payload));
+            return;
+        }
+        mParentConnect.getDeviceLoad().onReceived();
+        if (type == FrameCodec.TYPE_REQUEST) {
+            mParentConnect.onRequestReceived(FrameCodec.readId(payload), FrameCodec.decodeStringAfterId(payload));
+        } else if (type == FrameCodec.TYPE_RESPONSE) {
+            mParentConnect.onResponseReceived(FrameCodec.readId(payload), FrameCodec.decodeStringAfterId(payload));
+        } else if (type == FrameCodec.TYPE_DATA) {
+            if (mMsgParseAction != null) {
+                mMsgParseAction.onParseReceivedMsg(mParentConnect, mParentConnect.getDeviceToken(),
+                        mParentConnect.getSocketWorkType(), FrameCodec.decodeString(payload));
+            }
+        } else {
+            CommonUtils.logInfo("未知的消息类型: " + type);
+        }
+    }
+
+    /**
+     * 通道可写,聚集写入等待中的消息,运行在事件循环线程
+     *
+     * @throws IOException
+     */
+    void onWritable() throws IOException {
+        // 上一批写完后才从发送队列中取出消息,未写出的消息留在有上限的发送队列中,生产者因此受到反压
+        if (mPendingWrites.isEmpty()) {
+            mSendMsgQueue.drainTo(mDrainList, MAX_WRITE_BATCH);
+            for (SendFrame frame : mDrainList) {
+                mPendingWrites.offer(new PendingWrite(frame));
+            }
+            mDrainList.clear();
+        }
+        if (mPendingWrites.size() > 0) {
+            ByteBuffer[] buffers = new ByteBuffer[mPendingWrites.size()];
+            int index = 0;
+            for (PendingWrite write : mPendingWrites) {
+                buffers[index++] = write.buffer;
+            }
+            // 聚集写入,一次系统调用写出多条消息
+            if (mChannel.write(buffers) > 0) {
+                mHeartbeatMonitor.onSent();
+            }
+            PendingWrite write = null;
+            while ((write = mPendingWrites.peek()) != null && !write.buffer.hasRemaining()) {
+                mPendingWrites.poll();
+                if (mMsgParseAction != null && write.frame.isUserMsg()) {
+                    mMsgParseAction.onParseSentMsg(mParentConnect, mParentConnect.getDeviceToken(),
+                            mParentConnect.getSocketWorkType(), write.frame.msg);
+                }
+            }
+        }
+        // 未写完的消息保持关注写事件,等待发送缓冲区可用
+        if (mPendingWrites.isEmpty()) {
+            mSelectionKey.interestOps(mSelectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+            mIsWriteScheduled.set(false);
+            // 清除关注写事件期间可能有新的消息加入
+            if (mSendMsgQueue.getQueueDepth() > 0 && mIsWriteScheduled.compareAndSet(false, true)) {
+                mSelectionKey.interestOps(mSelectionKey.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * 通知事件循环关注写事件
+     */
+    private void scheduleWrite() {
+        if (!mIsWriteScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mSelectorLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mSelectionKey != null && mSelectionKey.isValid()) {
+                    mSelectionKey.interestOps(mSelectionKey.interestOps() | SelectionKey.OP_WRITE);
+                } else {
+                    // 尚未注册,注册时会再次检查待发送消息
+                    mIsWriteScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setReceivePaused(final boolean isPaused) {
+        // 只能在事件循环线程中修改关注事件,在事件循环线程中调用时直接修改
+        mSelectorLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mSelectionKey == null || !mSelectionKey.isValid()) {
+                    return;
+                }
+                if (isPaused) {
+                    mSelectionKey.interestOps(mSelectionKey.interestOps() & ~SelectionKey.OP_READ);
+                } else {
+                    mSelectionKey.interestOps(mSelectionKey.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean isTransportAlive() {
+        // 注册完成前的消息在注册时发送,已开始注册即可视为可用
+        return mIsStarted.get() && mIsClientAlive && mChannel.isOpen();
+    }
+
+    @Override
+    public void startTransport() {
+        if (mIsClientAlive && mIsStarted.compareAndSet(false, true)) {
+            mSelectorLoop.register(this);
+        }
+    }
+
+    @Override
+    public String getTag() {
+        return mParentConnect.getDeviceInfo().getClientTag();
+    }
+
+    @Override
+    public void sendMsg(String output) {
+        sendMsgForResult(output);
+    }
+
+    @Override
+    public int sendMsgForResult(String output) {
+        return sendMsgForResult(output, SendMsgQueue.PRIORITY_BULK);
+    }
+
+    @Override
+    public void sendMsg(String output, int priority) {
+        sendMsgForResult(output, priority);
+    }
+
+    @Override
+    public int sendMsgForResult(String output, int priority) {
+        if (CommonUtils.isEmptyString(output)) {
+            return SendMsgQueue.RESULT_INVALID;
+        }
+        return sendFrame(SendFrame.data(output), priority, true);
+    }
+
+    @Override
+    public int sendFrame(SendFrame frame, int priority, boolean isAllowWait) {
+        if (!mIsClientAlive) {
+            return SendMsgQueue.RESULT_INVALID;
+        }
+        // 队列已满时按队列策略处理,事件循环取出消息后才会释放队列空间
+        int result = mSendMsgQueue.offerFrame(frame, priority, isAllowWait);
+        if (result == SendMsgQueue.RESULT_SUCCESS || result == SendMsgQueue.RESULT_DROPPED_OLDEST) {
+            scheduleWrite();
+        } else {
+            CommonUtils.logInfo("消息未能加入发送队列,结果: " + result);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void closeClient() {
+        if (!mIsClientAlive) {
+            return;
+        }
+        if (mOnConnectionChangedListener != null) {
+            CommonUtils.logInfo("socket 连接正在关闭...");
+            mOnConnectionChangedListener.onConnectClosing(mParentConnect.getDeviceToken(),
+                    mParentConnect.getSocketWorkType());
+        }
+        mIsClientAlive = false;
+        mHeartbeatMonitor.stop();
+        try {
+            // 关闭通道时对应的selectionKey会自动取消
+            mChannel.close();
+        } catch (IOException e) {
+            CommonUtils.logError(e);
+        }
+        // 未发送的消息不再发送,关闭队列并唤醒等待加入队列的线程
+        mSendMsgQueue.close();
+        // 等待回复的请求不会再收到回复
+        mParentConnect.onTransportClosed();
+        mParentConnect.getDeviceInfo().updateDeviceConnectState(false);
+    }
+
+    @Override
+    public void startHeartbeatConnect() {
+        if (mIsClientAlive) {
+            mHeartbeatMonitor.startHeartbeat();
+        }
+    }
+
+    @Override
+    public boolean isClientAlive() {
+        return mIsClientAlive;
+    }
+
+    @Override
+    public void setIMsgParseAction(IMsgParseMgrAction action) {
+        mMsgParseAction = action;
+    }
+
+    @Override
+    public IMsgParseMgrAction getIMsgParseAction() {
+        return mMsgParseAction;
+    }
+
+    @Override
+    public void setOnConnectionChangedListener(OnConnectionChangedListener listener) {
+        mOnConnectionChangedListener = listener;
+    }
+
+    @Override
+    public OnConnectionChangedListener getOnConnectionChangedListener() {
+        return mOnConnectionChangedListener;
+    }
+
+    /**
+     * 等待写入的帧,保存原帧用于发送完成后的回调
+     */
+    private static class PendingWrite {
+        private SendFrame frame = null;
+        private ByteBuffer buffer = null;
+
+        private PendingWrite(SendFrame frame) {
+            this.frame = frame;
+            this.buffer = frame.encode();
+        }
+    }
+}
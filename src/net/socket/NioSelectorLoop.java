@@ -0,0 +1,221 @@
+package net.socket;
+
+import net.utils.CommonUtils;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Created by taro on 16/3/18.
+ * NIO selector事件循环线程,一个线程负责处理多个连接的读写事件,
+ * 避免每个设备连接都需要创建独立的接收/发送线程
+ *
+ * @author taro
+ */
+public class NioSelectorLoop implements Runnable {
+    // 每次启动创建新的selector及线程,事件循环线程只处理自己启动时的selector
+    private volatile Selector mSelector = null;
+    private volatile Thread mLoopThread = null;
+    private volatile boolean mIsRunning = false;
+    // 需要在selector线程中执行的任务(注册连接/修改关注事件等),只能在selector线程中操作selectionKey
+    private ConcurrentLinkedQueue<Runnable> mPendingTasks = null;
+    private String mName = null;
+
+    /**
+     * 创建selector事件循环
+     *
+     * @param name 事件循环线程名称
+     */
+    public NioSelectorLoop(String name) {
+        mName = name;
+        mPendingTasks = new ConcurrentLinkedQueue<Runnable>();
+    }
+
+    /**
+     * 启动事件循环线程,已启动时不做任何操作
+     */
+    public synchronized void start() {
+        if (mIsRunning) {
+            return;
+        }
+        Thread previous = mLoopThread;
+        if (previous != null && previous != Thread.currentThread()) {
+            // 关闭后立即重新启动时,等待上一次的事件循环线程关闭其连接后结束,避免与新的事件循环争抢任务
+            try {
+                previous.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            mSelector = Selector.open();
+        } catch (IOException e) {
+            CommonUtils.logError(e);
+            throw new RuntimeException("创建selector失败");
+        }
+        mIsRunning = true;
+        mLoopThread = new Thread(this, mName);
+        mLoopThread.setDaemon(true);
+        mLoopThread.start();
+    }
+
+    /**
+     * 关闭事件循环,所有注册在此循环上的连接都将被关闭
+     */
+    public synchronized void close() {
+        if (!mIsRunning) {
+            return;
+        }
+        mIsRunning = false;
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * 事件循环是否正在运行
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * 当前线程是否为事件循环线程
+     *
+     * @return
+     */
+    public boolean inLoopThread() {
+        return Thread.currentThread() == mLoopThread;
+    }
+
+    /**
+     * 在事件循环线程中执行任务,若当前已在事件循环线程中则直接执行
+     *
+     * @param task
+     */
+    public void execute(Runnable task) {
+        if (task == null) {
+            return;
+        }
+        if (inLoopThread()) {
+            task.run();
+        } else {
+            mPendingTasks.offer(task);
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * 注册连接到事件循环中,开始监听连接的读事件
+     *
+     * @param handle
+     */
+    void register(final NioClientHandle handle) {
+        start();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = handle.getChannel().register(mSelector, SelectionKey.OP_READ, handle);
+                    handle.onRegistered(key);
+                } catch (IOException e) {
+                    CommonUtils.logError(e);
+                    handle.closeClient();
+                }
+            }
+        });
+    }
+
+    /**
+     * 执行所有等待中的任务
+     */
+    private void runPendingTasks() {
+        Runnable task = null;
+        while ((task = mPendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                CommonUtils.logError(e);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        CommonUtils.logInfo("selector 事件循环启动: " + mName);
+        Selector selector = mSelector;
+        try {
+            while (mIsRunning && mSelector == selector) {
+                runPendingTasks();
+                selector.select();
+                runPendingTasks();
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    NioClientHandle handle = (NioClientHandle) key.attachment();
+                    if (!key.isValid() || handle == null) {
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            handle.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handle.onWritable();
+                        }
+                    } catch (Exception e) {
+                        // 单个连接出错时只关闭该连接,不影响其它连接
+                        if (handle.isClientAlive()) {
+                            CommonUtils.logError(e);
+                        }
+                        handle.closeClient();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            CommonUtils.logError(e);
+        } catch (IOException e) {
+            CommonUtils.logError(e);
+        } finally {
+            boolean isCurrent = mSelector == selector;
+            if (isCurrent) {
+                // 已重新启动时不影响新的事件循环
+                mIsRunning = false;
+            }
+            closeAllChannel(selector, isCurrent);
+        }
+    }
+
+    /**
+     * 关闭所有注册在selector上的连接及selector
+     *
+     * @param selector
+     * @param isCurrent 是否仍为当前的selector,已重新启动时不清除新的事件循环的任务
+     */
+    private void closeAllChannel(Selector selector, boolean isCurrent) {
+        try {
+            for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                Object attachment = key.attachment();
+                if (attachment instanceof NioClientHandle) {
+                    ((NioClientHandle) attachment).closeClient();
+                }
+            }
+            selector.close();
+        } catch (Exception e) {
+            CommonUtils.logError(e);
+        }
+        if (isCurrent) {
+            mPendingTasks.clear();
+        }
+    }
+}
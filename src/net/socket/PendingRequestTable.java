@@ -0,0 +1,117 @@
+package net.socket;
+
+import net.utils.CommonUtils;
+import net.utils.TimingWheel;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Created by taro on 16/3/24.
+ * 单个连接中等待回复的请求,以请求标识关联回复消息;同一连接可以同时存在多个等待中的请求<br/>
+ * 每个请求的超时由共用的时间轮处理,超时后从表中移除并以{@link TimeoutException}结束;
+ * 请求结果被外部完成或取消时也从表中移除
+ *
+ * @author taro
+ */
+final class PendingRequestTable {
+    private final AtomicLong mIdGenerator = new AtomicLong();
+    private final ConcurrentHashMap<Long, PendingRequest> mPendingMap = new ConcurrentHashMap<Long, PendingRequest>();
+
+    /**
+     * 添加等待回复的请求
+     *
+     * @param timeout 等待回复的最长时间(毫秒)
+     * @return 新的请求
+     */
+    PendingRequest create(long timeout) {
+        final long id = mIdGenerator.incrementAndGet();
+        final PendingRequest request = new PendingRequest(id);
+        mPendingMap.put(id, request);
+        request.timeout = TimingWheel.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mPendingMap.remove(id, request)) {
+                    request.future.completeExceptionally(new TimeoutException("请求超时未回复: " + id));
+                }
+            }
+        }, timeout);
+        // 请求结果被外部完成或取消时同样移除请求,不再等待回复
+        request.future.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String result, Throwable throwable) {
+                if (mPendingMap.remove(id, request)) {
+                    request.timeout.cancel();
+                }
+            }
+        });
+        return request;
+    }
+
+    /**
+     * 接收到回复消息,结束对应的请求
+     *
+     * @param id  请求标识
+     * @param msg 回复内容
+     * @return 请求已超时或不存在时返回false
+     */
+    boolean complete(long id, String msg) {
+        PendingRequest request = mPendingMap.remove(id);
+        if (request == null) {
+            CommonUtils.logInfo("回复的请求已超时或不存在: " + id);
+            return false;
+        }
+        request.timeout.cancel();
+        return request.future.complete(msg);
+    }
+
+    /**
+     * 请求未能发送时移除请求
+     *
+     * @param request
+     * @param cause
+     */
+    void fail(PendingRequest request, Throwable cause) {
+        if (mPendingMap.remove(request.id, request)) {
+            request.timeout.cancel();
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * 连接关闭时结束所有等待中的请求
+     *
+     * @param cause
+     */
+    void failAll(Throwable cause) {
+        for (Map.Entry<Long, PendingRequest> entry : mPendingMap.entrySet()) {
+            fail(entry.getValue(), cause);
+        }
+    }
+
+    /**
+     * 获取等待回复的请求数量
+     *
+     * @return
+     */
+    int size() {
+        return mPendingMap.size();
+    }
+
+    /**
+     * 等待回复的请求
+     */
+    static final class PendingRequest {
+        final long id;
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        private volatile TimingWheel.Timeout timeout = null;
+
+        private PendingRequest(long id) {
+            this.id = id;
+        }
+    }
+}
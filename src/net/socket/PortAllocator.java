@@ -0,0 +1,172 @@
+package net.socket;
+
+import net.utils.CommonUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.BitSet;
+
+/**
+ * Created by taro on 16/3/26.
+ * 客户端本地端口的分配工具,每个设备占用一对端口:本地端口及由本地端口生成的USB转发端口<br/>
+ * 端口对按槽位编号保存在位图中,槽位 i 对应的本地端口为 {@link DeviceInfo#START_PORT} + 1 + 2i;
+ * 分配时从上一次分配的位置之后查找空闲槽位(均摊O(1)),并检测本地端口是否可以被系统绑定,
+ * 刚释放的端口不会被马上再次分配
+ *
+ * @author taro
+ */
+public class PortAllocator {
+    private static PortAllocator mPortAllocator = null;
+
+    private final int mFirstPort;
+    private final int mSlotCount;
+    // 已分配的槽位
+    private final BitSet mLeasedSlots;
+    // 下一次开始查找的槽位
+    private int mNextSlot = 0;
+    private boolean mIsCheckBind = true;
+
+    /**
+     * 获取所有客户端连接共用的端口分配工具
+     *
+     * @return
+     */
+    public synchronized static PortAllocator getInstance() {
+        if (mPortAllocator == null) {
+            mPortAllocator = new PortAllocator(DeviceInfo.START_PORT + 1, DeviceInfo.END_PORT);
+        }
+        return mPortAllocator;
+    }
+
+    /**
+     * 创建端口分配工具
+     *
+     * @param firstPort 可分配的第一个本地端口
+     * @param lastPort  可分配的最后一个端口(包括USB转发端口)
+     */
+    public PortAllocator(int firstPort, int lastPort) {
+        if (firstPort <= 0 || lastPort > 65535 || lastPort - firstPort < 1) {
+            throw new RuntimeException("端口范围不正确: " + firstPort + " - " + lastPort);
+        }
+        mFirstPort = firstPort;
+        mSlotCount = (lastPort - firstPort + 1) / 2;
+        mLeasedSlots = new BitSet(mSlotCount);
+    }
+
+    /**
+     * 设置分配时是否检测本地端口可以被系统绑定,默认检测
+     *
+     * @param isCheckBind
+     */
+    public synchronized void setCheckBind(boolean isCheckBind) {
+        mIsCheckBind = isCheckBind;
+    }
+
+    /**
+     * 分配一对端口,USB转发端口由{@link DeviceInfo#getUsbPortFromLocalPort(int)}获取
+     *
+     * @return 本地端口
+     * @throws RuntimeException 没有可用的端口
+     */
+    public synchronized int acquire() {
+        int checkedCount = 0;
+        int slot = mNextSlot;
+        while (checkedCount < mSlotCount) {
+            slot = mLeasedSlots.nextClearBit(slot);
+            if (slot >= mSlotCount) {
+                slot = mLeasedSlots.nextClearBit(0);
+                if (slot >= mSlotCount) {
+                    break;
+                }
+            }
+            checkedCount++;
+            int port = getPortOfSlot(slot);
+            if (!mIsCheckBind || isBindable(port)) {
+                mLeasedSlots.set(slot);
+                mNextSlot = slot + 1 >= mSlotCount ? 0 : slot + 1;
+                return port;
+            }
+            // 端口已被其它程序占用,查找下一个槽位
+            slot = slot + 1 >= mSlotCount ? 0 : slot + 1;
+        }
+        throw new RuntimeException("没有可用的本地端口,已分配: " + mLeasedSlots.cardinality());
+    }
+
+    /**
+     * 释放端口,未分配的端口不做任何操作
+     *
+     * @param localPort {@link #acquire()}返回的本地端口
+     * @return 是否释放成功
+     */
+    public synchronized boolean release(int localPort) {
+        int slot = getSlotOfPort(localPort);
+        if (slot < 0 || !mLeasedSlots.get(slot)) {
+            return false;
+        }
+        mLeasedSlots.clear(slot);
+        return true;
+    }
+
+    /**
+     * 端口是否已被分配,本地端口及USB转发端口均可检测
+     *
+     * @param port
+     * @return
+     */
+    public synchronized boolean isLeased(int port) {
+        int slot = getSlotOfPort(port);
+        if (slot < 0 && port - 1 >= mFirstPort) {
+            slot = getSlotOfPort(port - 1);
+        }
+        return slot >= 0 && mLeasedSlots.get(slot);
+    }
+
+    /**
+     * 已分配的端口对数量
+     *
+     * @return
+     */
+    public synchronized int getLeasedCount() {
+        return mLeasedSlots.cardinality();
+    }
+
+    private int getPortOfSlot(int slot) {
+        return mFirstPort + 2 * slot;
+    }
+
+    private int getSlotOfPort(int port) {
+        int offset = port - mFirstPort;
+        if (offset < 0 || offset % 2 != 0 || offset / 2 >= mSlotCount) {
+            return -1;
+        }
+        return offset / 2;
+    }
+
+    /**
+     * 检测本地端口是否可以被绑定(adb转发时需要在本机绑定该端口)
+     *
+     * @param port
+     * @return
+     */
+    private static boolean isBindable(int port) {
+        ServerSocket serverSocket = null;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(false);
+            serverSocket.bind(new InetSocketAddress("127.0.0.1", port));
+            return true;
+        } catch (IOException e) {
+            CommonUtils.logInfo("本地端口已被占用: " + port);
+            return false;
+        } finally {
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    // 关闭时出错不需要处理
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package net.socket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by taro on 16/3/23.
+ * 发送队列中等待发送的帧,包括普通消息及心跳等带标识的消息
+ *
+ * @author taro
+ */
+final class SendFrame {
+    // 消息类型,见FrameCodec
+    final byte type;
+    // 消息标识,只有带标识的消息类型有效
+    final long id;
+    // 消息内容
+    final String msg;
+
+    private SendFrame(byte type, long id, String msg) {
+        this.type = type;
+        this.id = id;
+        this.msg = msg;
+    }
+
+    /**
+     * 创建普通的字符串消息帧
+     *
+     * @param msg
+     * @return
+     */
+    static SendFrame data(String msg) {
+        return new SendFrame(FrameCodec.TYPE_DATA, 0, msg);
+    }
+
+    /**
+     * 创建带标识的消息帧
+     *
+     * @param type
+     * @param id
+     * @param msg
+     * @return
+     */
+    static SendFrame withId(byte type, long id, String msg) {
+        return new SendFrame(type, id, msg);
+    }
+
+    /**
+     * 是否为需要回调发送消息处理的字符串消息(心跳消息不回调)
+     *
+     * @return
+     */
+    boolean isUserMsg() {
+        return type != FrameCodec.TYPE_PING && type != FrameCodec.TYPE_PONG;
+    }
+
+    /**
+     * 编码为完整的帧
+     *
+     * @return
+     */
+    ByteBuffer encode() {
+        if (FrameCodec.hasId(type)) {
+            return FrameCodec.encode(type, id, msg);
+        } else {
+            return FrameCodec.encode(type, msg);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package net.socket;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by taro on 16/3/21.
+ * 单个连接的发送消息队列,队列已满时根据设置的策略处理新的消息,同时统计队列深度及丢弃的消息数量,
+ * 用于根据实际数据调整队列大小<br/>
+ * 队列分为控制消息(心跳/停止/状态查询等)与普通消息两个通道,控制消息优先发送;
+ * 连续发送{@link #CONTROL_BURST_LIMIT}条控制消息后若存在普通消息,则先发送一条普通消息,保证普通消息不会被饿死
+ *
+ * @author taro
+ */
+public class SendMsgQueue {
+    /**
+     * 队列已满策略:阻塞等待,超过等待时间后放弃
+     */
+    public static final int OVERFLOW_BLOCK_TIMEOUT = 0;
+    /**
+     * 队列已满策略:丢弃新的消息
+     */
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+    /**
+     * 队列已满策略:丢弃队列中最旧的消息,保留新的消息
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 2;
+    /**
+     * 队列已满策略:立即返回失败
+     */
+    public static final int OVERFLOW_FAIL_FAST = 3;
+
+    /**
+     * 消息优先级:控制消息,优先于普通消息发送
+     */
+    public static final int PRIORITY_CONTROL = 0;
+    /**
+     * 消息优先级:普通消息
+     */
+    public static final int PRIORITY_BULK = 1;
+    /**
+     * 存在普通消息等待时,最多连续发送的控制消息数量
+     */
+    public static final int CONTROL_BURST_LIMIT = 8;
+
+    /**
+     * 消息加入队列结果:成功
+     */
+    public static final int RESULT_SUCCESS = 0;
+    /**
+     * 消息加入队列结果:成功,但队列中最旧的消息被丢弃
+     */
+    public static final int RESULT_DROPPED_OLDEST = 1;
+    /**
+     * 消息加入队列结果:队列已满,消息被丢弃
+     */
+    public static final int RESULT_DROPPED_NEWEST = 2;
+    /**
+     * 消息加入队列结果:队列已满,拒绝加入
+     */
+    public static final int RESULT_REJECTED = 3;
+    /**
+     * 消息加入队列结果:等待超时
+     */
+    public static final int RESULT_TIMEOUT = 4;
+    /**
+     * 消息加入队列结果:消息无效或连接不可用
+     */
+    public static final int RESULT_INVALID = 5;
+
+    /**
+     * 默认的队列容量
+     */
+    public static final int DEFAULT_CAPACITY = 100;
+    /**
+     * 默认的阻塞等待时间(毫秒)
+     */
+    public static final long DEFAULT_BLOCK_TIMEOUT = 3000;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    // 控制消息通道
+    private final ArrayDeque<SendFrame> mControlQueue;
+    // 普通消息通道
+    private final ArrayDeque<SendFrame> mBulkQueue;
+    // 每个通道的容量
+    private final int mCapacity;
+    // 普通消息等待时已连续取出的控制消息数量
+    private int mControlBurstCount = 0;
+    private volatile int mOverflowPolicy = OVERFLOW_BLOCK_TIMEOUT;
+    private volatile long mBlockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    // 连接关闭后不再接收消息,新的连接建立时重新打开;只在持有锁时修改
+    private volatile boolean mIsClosed = false;
+
+    // 统计数据
+    private volatile int mQueueDepth = 0;
+    private volatile int mMaxQueueDepth = 0;
+    private final AtomicLong mEnqueuedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mTimeoutCount = new AtomicLong();
+
+    public SendMsgQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 创建发送消息队列
+     *
+     * @param capacity 队列容量,控制消息与普通消息通道各自使用此容量
+     */
+    public SendMsgQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new RuntimeException("队列容量必须大于0");
+        }
+        mCapacity = capacity;
+        mControlQueue = new ArrayDeque<SendFrame>();
+        mBulkQueue = new ArrayDeque<SendFrame>(capacity);
+    }
+
+    /**
+     * 设置队列已满时的处理策略
+     *
+     * @param policy       {@link #OVERFLOW_BLOCK_TIMEOUT}/{@link #OVERFLOW_DROP_NEWEST}/
+     *                     {@link #OVERFLOW_DROP_OLDEST}/{@link #OVERFLOW_FAIL_FAST}
+     * @param blockTimeout 阻塞等待策略的最长等待时间(毫秒),其它策略忽略
+     */
+    public void setOverflowPolicy(int policy, long blockTimeout) {
+        if (policy < OVERFLOW_BLOCK_TIMEOUT || policy > OVERFLOW_FAIL_FAST) {
+            throw new RuntimeException("不支持的队列策略: " + policy);
+        }
+        mOverflowPolicy = policy;
+        mBlockTimeout = blockTimeout < 0 ? 0 : blockTimeout;
+    }
+
+    /**
+     * 获取队列已满时的处理策略
+     *
+     * @return
+     */
+    public int getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * 获取阻塞等待策略的最长等待时间(毫秒)
+     *
+     * @return
+     */
+    public long getBlockTimeout() {
+        return mBlockTimeout;
+    }
+
+    /**
+     * 将普通消息加入队列,队列已满时按设置的策略处理
+     *
+     * @param msg
+     * @return {@link #RESULT_SUCCESS}/{@link #RESULT_DROPPED_OLDEST}/{@link #RESULT_DROPPED_NEWEST}/
+     * {@link #RESULT_REJECTED}/{@link #RESULT_TIMEOUT}/{@link #RESULT_INVALID}
+     */
+    public int offer(String msg) {
+        return offer(msg, PRIORITY_BULK);
+    }
+
+    /**
+     * 将消息加入对应优先级的通道,通道已满时按设置的策略处理
+     *
+     * @param msg
+     * @param priority {@link #PRIORITY_CONTROL}/{@link #PRIORITY_BULK}
+     * @return {@link #RESULT_SUCCESS}/{@link #RESULT_DROPPED_OLDEST}/{@link #RESULT_DROPPED_NEWEST}/
+     * {@link #RESULT_REJECTED}/{@link #RESULT_TIMEOUT}/{@link #RESULT_INVALID}
+     */
+    public int offer(String msg, int priority) {
+        if (msg == null) {
+            return RESULT_INVALID;
+        }
+        return offerFrame(SendFrame.data(msg), priority, true);
+    }
+
+    /**
+     * 将帧加入对应优先级的通道
+     *
+     * @param frame
+     * @param priority    {@link #PRIORITY_CONTROL}/{@link #PRIORITY_BULK}
+     * @param isAllowWait 通道已满时是否按设置的策略处理;为false时直接丢弃,用于心跳等不能阻塞调用线程的消息
+     * @return 队列已关闭时返回{@link #RESULT_INVALID}
+     */
+    int offerFrame(SendFrame frame, int priority, boolean isAllowWait) {
+        ArrayDeque<SendFrame> queue = priority == PRIORITY_CONTROL ? mControlQueue : mBulkQueue;
+        int result = RESULT_SUCCESS;
+        mLock.lock();
+        try {
+            if (mIsClosed) {
+                return RESULT_INVALID;
+            }
+            if (queue.size() >= mCapacity) {
+                if (!isAllowWait) {
+                    mDroppedCount.incrementAndGet();
+                    return RESULT_DROPPED_NEWEST;
+                }
+                switch (mOverflowPolicy) {
+                    case OVERFLOW_DROP_NEWEST:
+                        mDroppedCount.incrementAndGet();
+                        return RESULT_DROPPED_NEWEST;
+                    case OVERFLOW_DROP_OLDEST:
+                        queue.pollFirst();
+                        mDroppedCount.incrementAndGet();
+                        result = RESULT_DROPPED_OLDEST;
+                        break;
+                    case OVERFLOW_FAIL_FAST:
+                        mRejectedCount.incrementAndGet();
+                        return RESULT_REJECTED;
+                    default:
+                        long waitNanos = TimeUnit.MILLISECONDS.toNanos(mBlockTimeout);
+                        while (queue.size() >= mCapacity) {
+                            if (waitNanos <= 0) {
+                                mTimeoutCount.incrementAndGet();
+                                return RESULT_TIMEOUT;
+                            }
+                            waitNanos = mNotFull.awaitNanos(waitNanos);
+                            if (mIsClosed) {
+                                // 等待期间连接已关闭
+                                return RESULT_INVALID;
+                            }
+                        }
+                        break;
+                }
+            }
+            queue.offerLast(frame);
+            updateDepth();
+            mEnqueuedCount.incrementAndGet();
+            mNotEmpty.signal();
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return RESULT_INVALID;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 阻塞获取队列中的帧,直到有帧为止
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    SendFrame take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mControlQueue.isEmpty() && mBulkQueue.isEmpty()) {
+                mNotEmpty.await();
+            }
+            SendFrame frame = pollNext();
+            updateDepth();
+            mNotFull.signalAll();
+            return frame;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 按发送顺序取出下一条消息,必须在持有锁时调用
+     *
+     * @return 队列为空时返回null
+     */
+    private SendFrame pollNext() {
+        if (mBulkQueue.isEmpty()) {
+            mControlBurstCount = 0;
+            return mControlQueue.pollFirst();
+        }
+        if (!mControlQueue.isEmpty() && mControlBurstCount < CONTROL_BURST_LIMIT) {
+            mControlBurstCount++;
+            return mControlQueue.pollFirst();
+        }
+        // 已连续发送足够多的控制消息,发送一条普通消息
+        mControlBurstCount = 0;
+        return mBulkQueue.pollFirst();
+    }
+
+    /**
+     * 按发送顺序取出队列中所有的帧,控制消息在前
+     *
+     * @param outputList 保存取出的帧
+     * @return 取出的帧数量
+     */
+    int drainTo(List<SendFrame> outputList) {
+        return drainTo(outputList, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 按发送顺序取出队列中最多指定数量的帧,控制消息在前
+     *
+     * @param outputList 保存取出的帧
+     * @param maxCount   最多取出的帧数量
+     * @return 取出的帧数量
+     */
+    int drainTo(List<SendFrame> outputList, int maxCount) {
+        mLock.lock();
+        try {
+            int count = 0;
+            SendFrame frame = null;
+            while (count < maxCount && (frame = pollNext()) != null) {
+                outputList.add(frame);
+                count++;
+            }
+            if (count > 0) {
+                updateDepth();
+                mNotFull.signalAll();
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 关闭队列,清除所有的消息;等待加入队列的线程及之后加入的消息均返回{@link #RESULT_INVALID}
+     */
+    public void close() {
+        mLock.lock();
+        try {
+            mIsClosed = true;
+            clear();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 重新打开已关闭的队列,连接重新建立时调用
+     */
+    public void open() {
+        mLock.lock();
+        try {
+            mIsClosed = false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * 清除队列中所有的消息,等待加入队列的线程将被唤醒
+     */
+    public void clear() {
+        mLock.lock();
+        try {
+            mControlQueue.clear();
+            mBulkQueue.clear();
+            mControlBurstCount = 0;
+            updateDepth();
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 更新队列深度统计,必须在持有锁时调用
+     */
+    private void updateDepth() {
+        int depth = mControlQueue.size() + mBulkQueue.size();
+        mQueueDepth = depth;
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    /**
+     * 获取指定优先级通道中的消息数量
+     *
+     * @param priority {@link #PRIORITY_CONTROL}/{@link #PRIORITY_BULK}
+     * @return
+     */
+    public int getQueueDepth(int priority) {
+        mLock.lock();
+        try {
+            return priority == PRIORITY_CONTROL ? mControlQueue.size() : mBulkQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 获取每个通道的容量
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * 获取当前队列中所有通道的消息数量
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * 获取队列曾经达到的最大消息数量
+     *
+     * @return
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * 获取成功加入队列的消息数量
+     *
+     * @return
+     */
+    public long getEnqueuedCount() {
+        return mEnqueuedCount.get();
+    }
+
+    /**
+     * 获取因队列已满被丢弃的消息数量(包括丢弃新消息及丢弃旧消息)
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * 获取因队列已满被拒绝的消息数量
+     *
+     * @return
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * 获取等待超时的消息数量
+     *
+     * @return
+     */
+    public long getTimeoutCount() {
+        return mTimeoutCount.get();
+    }
+}
@@ -2,13 +2,18 @@ package net.socket;
 
 import net.interfaces.OnConnectionChangedListener;
 import net.interfaces.OnInfoChangedListener;
+import net.interfaces.OnRequestReceivedListener;
 import net.manager.IMsgParseMgrAction;
 import net.utils.AdbUtils;
 import net.utils.CommonUtils;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
 
 
 /**
@@ -17,10 +22,29 @@ import java.net.SocketException;
  * @author taro
  */
 public class SocketConnect implements ISocketAction {
+    /**
+     * 客户端建立连接的最长等待时间(毫秒),转发端口在此时间内未能连接即放弃
+     */
+    public static final long CONNECT_TIMEOUT = 3000;
+    // 连接失败后重试的初始间隔及最大间隔(毫秒)
+    private static final long CONNECT_RETRY_INITIAL_DELAY = 10;
+    private static final long CONNECT_RETRY_MAX_DELAY = 200;
+
     private DeviceInfo mDeviceInfo = null;
-    private ClientHandleThread mClientThread = null;
+    private IClientTransport mClientTransport = null;
+    // 使用NIO方式收发消息时的事件循环,为null时使用每个连接独立线程的方式
+    private NioSelectorLoop mSelectorLoop = null;
     private IMsgParseMgrAction mMsgParseAction = null;
     private OnConnectionChangedListener mOnConnectionChangedListener = null;
+    // 发送消息队列,重新连接时继续使用同一个队列(保留统计数据)
+    private SendMsgQueue mSendMsgQueue = null;
+    // 等待回复的请求
+    private final PendingRequestTable mPendingRequests = new PendingRequestTable();
+    private OnRequestReceivedListener mOnRequestReceivedListener = null;
+    // 最近一次心跳的往返时间及平滑往返时间(微秒),未测量时为-1
+    private volatile long mRoundTripTime = -1;
+    private volatile long mSmoothedRoundTripTime = -1;
+    private final DeviceLoad mDeviceLoad = new DeviceLoad();
 
     /**
      * 创建服务端专用的连接及消息
@@ -41,8 +65,9 @@ public class SocketConnect implements ISocketAction {
      */
     private SocketConnect(String clientTag, Socket client) {
         mDeviceInfo = DeviceInfo.createServerDeviceInfo(this, clientTag);
+        mSendMsgQueue = new SendMsgQueue();
         // 创建客户端线程
-        mClientThread = new ClientHandleThread(this, client);
+        mClientTransport = new ClientHandleThread(this, client);
     }
 
     /**
@@ -55,6 +80,60 @@ public class SocketConnect implements ISocketAction {
             throw new RuntimeException("设备标识码不能为null");
         }
         mDeviceInfo = DeviceInfo.createClientDeviceInfo(this, deviceToken);
+        mSendMsgQueue = new SendMsgQueue();
+    }
+
+    /**
+     * 设置NIO方式收发消息使用的事件循环,需要在建立连接前设置;为null时使用每个连接独立线程的方式
+     *
+     * @param loop
+     */
+    public void setSelectorLoop(NioSelectorLoop loop) {
+        mSelectorLoop = loop;
+    }
+
+    /**
+     * 获取NIO方式收发消息使用的事件循环
+     *
+     * @return
+     */
+    public NioSelectorLoop getSelectorLoop() {
+        return mSelectorLoop;
+    }
+
+    /**
+     * 创建新的NIO socket通道,以阻塞方式建立连接
+     *
+     * @param host 连接的主机地址
+     * @param port 使用的端口号
+     * @return
+     */
+    public static SocketChannel createNewSocketChannel(String host, int port) {
+        return createNewSocketChannel(host, port, 0);
+    }
+
+    /**
+     * 创建新的NIO socket通道,以阻塞方式建立连接;连接失败时以递增的间隔重试,直到成功或超过等待时间
+     *
+     * @param host    连接的主机地址
+     * @param port    使用的端口号
+     * @param timeout 最长等待时间(毫秒),为0时只尝试一次
+     * @return 超时仍未连接成功时返回null
+     */
+    public static SocketChannel createNewSocketChannel(String host, int port, long timeout) {
+        checkHostAndPort(host, port);
+        long deadline = System.currentTimeMillis() + timeout;
+        long delay = CONNECT_RETRY_INITIAL_DELAY;
+        while (true) {
+            try {
+                return SocketChannel.open(new InetSocketAddress(host, port));
+            } catch (IOException e) {
+                delay = waitForRetry(e, deadline, delay);
+                if (delay < 0) {
+                    return null;
+                }
+            }
+        }
     }
 
     /**
@@ -65,21 +144,63 @@ public class SocketConnect implements ISocketAction {
      * @return
      */
     public static Socket createNewSocket(String host, int port) {
+        return createNewSocket(host, port, 0);
+    }
+
+    /**
+     * 创建新的socket连接;连接失败时以递增的间隔重试,直到成功或超过等待时间
+     *
+     * @param host    连接的主机地址
+     * @param port    使用的端口号
+     * @param timeout 最长等待时间(毫秒),为0时只尝试一次
+     * @return 超时仍未连接成功时返回null
+     */
+    public static Socket createNewSocket(String host, int port, long timeout) {
+        checkHostAndPort(host, port);
+        long deadline = System.currentTimeMillis() + timeout;
+        long delay = CONNECT_RETRY_INITIAL_DELAY;
+        while (true) {
+            try {
+                // 不可以使用setReuseAddress,否则会出现bindException:Address is used
+                // 原因不明
+                return new Socket(host, port);
+            } catch (IOException e) {
+                delay = waitForRetry(e, deadline, delay);
+                if (delay < 0) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static void checkHostAndPort(String host, int port) {
         if (CommonUtils.isEmptyString(host) || port <= DeviceInfo.START_PORT || port > DeviceInfo.END_PORT) {
             throw new RuntimeException("创建socket时,host与port不可为null,port不可在不正常范围内: host = " + host + "/port = " + port);
         }
-        try {
-            // 不可以使用setReuseAddress,否则会出现bindException:Address is used
-            // 原因不明
-            Socket socket = new Socket(host, port);
-            return socket;
-        } catch (SocketException e) {
+    }
+
+    /**
+     * 连接失败后等待重试,转发端口刚建立时可能暂时无法连接
+     *
+     * @param e        本次连接失败的异常
+     * @param deadline 最后可重试的时间
+     * @param delay    本次等待的间隔
+     * @return 下一次等待的间隔, 超时或被中断时返回-1
+     */
+    private static long waitForRetry(IOException e, long deadline, long delay) {
+        long remain = deadline - System.currentTimeMillis();
+        if (remain <= 0) {
             CommonUtils.logError(e);
-            return null;
-        } catch (IOException e) {
+            return -1;
+        }
+        try {
+            Thread.sleep(Math.min(delay, remain));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
             CommonUtils.logError(e);
-            return null;
+            return -1;
         }
+        return Math.min(delay * 2, CONNECT_RETRY_MAX_DELAY);
     }
 
     @Override
@@ -115,22 +236,22 @@ public class SocketConnect implements ISocketAction {
     @Override
     public void setIMsgParseAction(IMsgParseMgrAction action) {
         mMsgParseAction = action;
-        if (mClientThread != null) {
-            mClientThread.setIMsgParseAction(action);
+        if (mClientTransport != null) {
+            mClientTransport.setIMsgParseAction(action);
         }
     }
 
     @Override
     public void setOnConnectionChangedListener(OnConnectionChangedListener listener) {
         mOnConnectionChangedListener = listener;
-        if (mClientThread != null) {
-            mClientThread.setOnConnectionChangedListener(listener);
+        if (mClientTransport != null) {
+            mClientTransport.setOnConnectionChangedListener(listener);
         }
     }
 
     @Override
     public boolean connectInClient(AdbUtils adbUtils) {
-        if (mClientThread != null && mClientThread.isClientAlive()) {
+        if (mClientTransport != null && mClientTransport.isClientAlive()) {
             startReceiveMsg();
             return true;
         } else {
@@ -142,21 +263,30 @@ public class SocketConnect implements ISocketAction {
             // 转发接口
             adbUtils.forwardPort(mDeviceInfo.getDeviceToken(), String.valueOf(mDeviceInfo.getLocalPort()),
                     String.valueOf(mDeviceInfo.getUsbPort()));
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                CommonUtils.logError(e);
-            }
             if (mDeviceInfo.isDeviceReady()) {
-                // 创建连接
-                Socket client = createNewSocket("127.0.0.1", mDeviceInfo.getLocalPort());
-                // 创建连接处理线程
-                mClientThread = new ClientHandleThread(this, client);
-                mClientThread.setIMsgParseAction(mMsgParseAction);
-                mClientThread.setOnConnectionChangedListener(mOnConnectionChangedListener);
+                // 转发端口可能尚未可用,连接失败时短暂等待后重试,不再固定等待
+                if (mSelectorLoop != null) {
+                    // 创建NIO连接,由事件循环处理读写
+                    SocketChannel channel = createNewSocketChannel("127.0.0.1", mDeviceInfo.getLocalPort(), CONNECT_TIMEOUT);
+                    if (channel == null) {
+                        return false;
+                    }
+                    mClientTransport = new NioClientHandle(this, channel, mSelectorLoop);
+                } else {
+                    // 创建连接
+                    Socket client = createNewSocket("127.0.0.1", mDeviceInfo.getLocalPort(), CONNECT_TIMEOUT);
+                    if (client == null) {
+                        return false;
+                    }
+                    // 创建连接处理线程
+                    mClientTransport = new ClientHandleThread(this, client);
+                }
+                mClientTransport.setIMsgParseAction(mMsgParseAction);
+                mClientTransport.setOnConnectionChangedListener(mOnConnectionChangedListener);
                 // 开启监听消息线程
                 startReceiveMsg();
+                // 客户端空闲时主动发送心跳,并检测连接是否超时
+                mClientTransport.startHeartbeatConnect();
                 return true;
             } else {
                 return false;
@@ -174,30 +304,51 @@ public class SocketConnect implements ISocketAction {
 
     @Override
     public boolean isClientAlive() {
-        return !(mClientThread == null || !mClientThread.isAlive() || !mClientThread.isClientAlive());
+        return !(mClientTransport == null || !mClientTransport.isTransportAlive() || !mClientTransport.isClientAlive());
     }
 
     @Override
     public void closeClient() {
-        if (mClientThread != null) {
-            mClientThread.closeClient();
-            mClientThread = null;
+        if (mClientTransport != null) {
+            mClientTransport.closeClient();
+            mClientTransport = null;
+        }
+    }
+
+    /**
+     * 当前线程是否为此连接的NIO事件循环线程,事件循环线程由多个连接共用,不能等待
+     *
+     * @return
+     */
+    public boolean inSelectorLoop() {
+        return mSelectorLoop != null && mSelectorLoop.inLoopThread();
+    }
+
+    /**
+     * 暂停/恢复读取此连接的数据,使用独立线程收发消息时不做任何操作(接收线程直接等待)
+     *
+     * @param isPaused
+     */
+    public void setReceivePaused(boolean isPaused) {
+        IClientTransport transport = mClientTransport;
+        if (transport != null) {
+            transport.setReceivePaused(isPaused);
         }
     }
 
     @Override
     public void startHeartbeatConnect() {
-        if (mClientThread != null && mClientThread.isClientAlive()) {
-            mClientThread.startHeartbeatConnect();
+        if (mClientTransport != null && mClientTransport.isClientAlive()) {
+            mClientTransport.startHeartbeatConnect();
         }
     }
 
     @Override
     public boolean startReceiveMsg() {
-        if (mClientThread != null && mClientThread.isClientAlive()) {
-            if (!mClientThread.isAlive()) {
-                mClientThread.setIMsgParseAction(mMsgParseAction);
-                mClientThread.start();
+        if (mClientTransport != null && mClientTransport.isClientAlive()) {
+            if (!mClientTransport.isTransportAlive()) {
+                mClientTransport.setIMsgParseAction(mMsgParseAction);
+                mClientTransport.startTransport();
             }
             return true;
         }
@@ -221,8 +372,151 @@ public class SocketConnect implements ISocketAction {
 
     @Override
     public void sendMsg(String output) {
-        if (!CommonUtils.isEmptyString(output) && mClientThread != null && mClientThread.isClientAlive()) {
-            mClientThread.sendMsg(output);
+        sendMsgForResult(output);
+    }
+
+    @Override
+    public int sendMsgForResult(String output) {
+        return sendMsgForResult(output, SendMsgQueue.PRIORITY_BULK);
+    }
+
+    @Override
+    public void sendMsg(String output, int priority) {
+        sendMsgForResult(output, priority);
+    }
+
+    @Override
+    public int sendMsgForResult(String output, int priority) {
+        if (!CommonUtils.isEmptyString(output) && mClientTransport != null && mClientTransport.isClientAlive()) {
+            int result = mClientTransport.sendMsgForResult(output, priority);
+            if (result == SendMsgQueue.RESULT_SUCCESS || result == SendMsgQueue.RESULT_DROPPED_OLDEST) {
+                mDeviceLoad.onSent();
+            }
+            return result;
+        }
+        return SendMsgQueue.RESULT_INVALID;
+    }
+
+    @Override
+    public CompletableFuture<String> sendRequest(String output, long timeout) {
+        return sendRequest(output, timeout, true);
+    }
+
+    @Override
+    public CompletableFuture<String> sendRequest(String output, long timeout, boolean isAllowWait) {
+        if (CommonUtils.isEmptyString(output) || mClientTransport == null || !mClientTransport.isClientAlive()) {
+            CompletableFuture<String> future = new CompletableFuture<String>();
+            future.completeExceptionally(new IOException("消息为空或连接不可用"));
+            return future;
+        }
+        PendingRequestTable.PendingRequest request = mPendingRequests.create(timeout);
+        mDeviceLoad.onRequestStarted();
+        request.future.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String result, Throwable throwable) {
+                mDeviceLoad.onRequestFinished();
+            }
+        });
+        int result = mClientTransport.sendFrame(SendFrame.withId(FrameCodec.TYPE_REQUEST, request.id, output),
+                SendMsgQueue.PRIORITY_BULK, isAllowWait);
+        if (result == SendMsgQueue.RESULT_DROPPED_NEWEST || result == SendMsgQueue.RESULT_REJECTED
+                || result == SendMsgQueue.RESULT_TIMEOUT) {
+            // 发送队列已满,请求没有发送,可以稍后重试
+            mPendingRequests.fail(request, new RejectedExecutionException("发送队列已满,请求未发送,结果: " + result));
+        } else if (result != SendMsgQueue.RESULT_SUCCESS && result != SendMsgQueue.RESULT_DROPPED_OLDEST) {
+            mPendingRequests.fail(request, new IOException("请求未能加入发送队列,结果: " + result));
+        } else {
+            mDeviceLoad.onSent();
+        }
+        return request.future;
+    }
+
+    @Override
+    public int sendResponse(long requestId, String output) {
+        if (mClientTransport == null || !mClientTransport.isClientAlive()) {
+            return SendMsgQueue.RESULT_INVALID;
+        }
+        int result = mClientTransport.sendFrame(SendFrame.withId(FrameCodec.TYPE_RESPONSE, requestId, output),
+                SendMsgQueue.PRIORITY_BULK, true);
+        if (result == SendMsgQueue.RESULT_SUCCESS || result == SendMsgQueue.RESULT_DROPPED_OLDEST) {
+            mDeviceLoad.onSent();
+        }
+        return result;
+    }
+
+    @Override
+    public void setOnRequestReceivedListener(OnRequestReceivedListener listener) {
+        mOnRequestReceivedListener = listener;
+    }
+
+    @Override
+    public int getPendingRequestCount() {
+        return mPendingRequests.size();
+    }
+
+    /**
+     * 接收到对端的请求,未设置请求监听时按普通消息处理
+     *
+     * @param requestId
+     * @param msg
+     */
+    void onRequestReceived(long requestId, String msg) {
+        OnRequestReceivedListener listener = mOnRequestReceivedListener;
+        if (listener != null) {
+            listener.onRequestReceived(this, requestId, msg);
+        } else if (mMsgParseAction != null) {
+            mMsgParseAction.onParseReceivedMsg(this, getDeviceToken(), getSocketWorkType(), msg);
+        }
+    }
+
+    /**
+     * 接收到请求的回复,结束对应的等待
+     *
+     * @param requestId
+     * @param msg
+     */
+    void onResponseReceived(long requestId, String msg) {
+        mPendingRequests.complete(requestId, msg);
+    }
+
+    /**
+     * 连接的收发处理已关闭,结束所有等待回复的请求
+     */
+    void onTransportClosed() {
+        mPendingRequests.failAll(new IOException("连接已关闭"));
+    }
+
+    @Override
+    public SendMsgQueue getSendMsgQueue() {
+        return mSendMsgQueue;
+    }
+
+    @Override
+    public long getRoundTripTime() {
+        return mRoundTripTime;
+    }
+
+    @Override
+    public long getSmoothedRoundTripTime() {
+        return mSmoothedRoundTripTime;
+    }
+
+    @Override
+    public DeviceLoad getDeviceLoad() {
+        return mDeviceLoad;
+    }
+
+    /**
+     * 更新心跳测量得到的往返时间,平滑往返时间按 srtt = 7/8 * srtt + 1/8 * rtt 计算
+     *
+     * @param rtt 往返时间(微秒)
+     */
+    synchronized void updateRoundTripTime(long rtt) {
+        mRoundTripTime = rtt;
+        if (mSmoothedRoundTripTime < 0) {
+            mSmoothedRoundTripTime = rtt;
+        } else {
+            mSmoothedRoundTripTime = mSmoothedRoundTripTime - (mSmoothedRoundTripTime >> 3) + (rtt >> 3);
         }
     }
 
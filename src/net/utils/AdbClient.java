@@ -0,0 +1,378 @@
+package net.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by taro on 16/3/25.
+ * 直接与本地adb server通信的客户端,使用adb的host协议,不需要为每个命令创建adb进程<br/>
+ * 协议格式:请求为[4位十六进制长度][请求内容],响应以OKAY或FAIL开始,FAIL之后为[4位十六进制长度][错误信息]<br/>
+ * adb server每个连接只处理一个服务请求(切换到设备的连接之后成为该服务的数据流),因此每次请求使用新的连接
+ *
+ * @author taro
+ */
+public class AdbClient {
+    /**
+     * 默认的adb server地址
+     */
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    /**
+     * 默认的adb server端口
+     */
+    public static final int DEFAULT_PORT = 5037;
+    /**
+     * 默认的连接及读取超时时间(毫秒)
+     */
+    public static final int DEFAULT_TIMEOUT = 5000;
+    /**
+     * 设备状态:设备已连接且可用
+     */
+    public static final String STATE_DEVICE = "device";
+    /**
+     * 流式传输时使用的缓冲区大小,传输的数据量再大内存占用也不变
+     */
+    public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final String STATUS_OKAY = "OKAY";
+    private static final String STATUS_FAIL = "FAIL";
+
+    private String mHost = DEFAULT_HOST;
+    private int mPort = DEFAULT_PORT;
+    private int mTimeout = DEFAULT_TIMEOUT;
+
+    public AdbClient() {
+        this(DEFAULT_HOST, DEFAULT_PORT);
+    }
+
+    /**
+     * 创建adb server客户端
+     *
+     * @param host adb server地址
+     * @param port adb server端口
+     */
+    public AdbClient(String host, int port) {
+        if (CommonUtils.isEmptyString(host) || port <= 0 || port > 65535) {
+            throw new RuntimeException("adb server地址或端口不正确: host = " + host + "/port = " + port);
+        }
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * 设置连接及读取超时时间
+     *
+     * @param timeout 超时时间(毫秒),为0时不超时
+     */
+    public void setTimeout(int timeout) {
+        mTimeout = timeout < 0 ? 0 : timeout;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    /**
+     * 查询所有设备及其状态
+     *
+     * @return 设备标识与状态(device/offline/unauthorized等)的对应关系,按adb返回的顺序
+     * @throws IOException
+     */
+    public Map<String, String> queryDeviceStates() throws IOException {
+        Socket socket = openHostService("host:devices");
+        try {
+            return parseDeviceStates(readLengthPrefixedString(socket.getInputStream()));
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * 获取所有可用(状态为device)的设备标识
+     *
+     * @return
+     * @throws IOException
+     */
+    public List<String> getDevices() throws IOException {
+        List<String> devices = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : queryDeviceStates().entrySet()) {
+            if (STATE_DEVICE.equals(entry.getValue())) {
+                devices.add(entry.getKey());
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * 设置转发端口
+     *
+     * @param serial    设备标识,为null时使用唯一连接的设备
+     * @param localPort 本地端口
+     * @param adbPort   设备端口
+     * @throws IOException
+     */
+    public void forward(String serial, String localPort, String adbPort) throws IOException {
+        String prefix = CommonUtils.isEmptyString(serial) ? "host" : "host-serial:" + serial;
+        Socket socket = openHostService(prefix + ":forward:tcp:" + localPort + ";tcp:" + adbPort);
+        try {
+            // 新版本的adb在设置成功后会再返回一次状态
+            readOptionalStatus(socket.getInputStream());
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * 移除所有的转发端口
+     *
+     * @throws IOException
+     */
+    public void removeAllForward() throws IOException {
+        Socket socket = openHostService("host:killforward-all");
+        try {
+            readOptionalStatus(socket.getInputStream());
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * 在设备上执行shell命令并读取所有输出
+     *
+     * @param serial  设备标识,为null时使用唯一连接的设备
+     * @param command shell命令
+     * @return 命令输出
+     * @throws IOException 连接adb server或切换到设备失败时为{@link CommandNotSentException}
+     */
+    public String shell(String serial, String command) throws IOException {
+        Socket socket = null;
+        try {
+            socket = connect();
+            sendRequest(socket, CommonUtils.isEmptyString(serial) ? "host:transport-any" : "host:transport:" + serial);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw new CommandNotSentException("无法连接设备: " + e.getMessage(), e);
+        }
+        try {
+            // 命令请求发送之后失败时命令可能已经执行
+            sendRequest(socket, "shell:" + command);
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int readSize = 0;
+            while ((readSize = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, readSize);
+            }
+            return new String(out.toByteArray(), CHARSET);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * 将数据源的数据全部写入目标通道,目标为文件时使用transferFrom,否则使用固定大小的缓冲区循环复制
+     *
+     * @param source 数据源,读取到末尾时结束
+     * @param target 目标通道
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    public static long transfer(ReadableByteChannel source, WritableByteChannel target) throws IOException {
+        long total = 0;
+        if (target instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) target;
+            long position = fileChannel.position();
+            long transferSize = 0;
+            // 阻塞的数据源只在读取到末尾时返回0
+            while ((transferSize = fileChannel.transferFrom(source, position + total, STREAM_BUFFER_SIZE)) > 0) {
+                total += transferSize;
+            }
+            // transferFrom不会更新文件的位置
+            fileChannel.position(position + total);
+            return total;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        while (source.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                total += target.write(buffer);
+            }
+            buffer.clear();
+        }
+        return total;
+    }
+
+    /**
+     * 建立连接并请求adb server本身处理的服务,返回成功后的连接
+     *
+     * @param service 如 host:devices
+     * @return 已收到OKAY的连接,由调用者关闭
+     * @throws IOException
+     */
+    public Socket openHostService(String service) throws IOException {
+        Socket socket = connect();
+        try {
+            sendRequest(socket, service);
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * 建立连接并切换到指定设备,之后请求设备上的服务,返回成功后的连接;连接之后的数据即为该服务的数据流
+     *
+     * @param serial  设备标识,为null时使用唯一连接的设备
+     * @param service 如 shell:ls
+     * @return 已收到OKAY的连接,由调用者关闭
+     * @throws IOException
+     */
+    public Socket openDeviceService(String serial, String service) throws IOException {
+        Socket socket = connect();
+        try {
+            sendRequest(socket, CommonUtils.isEmptyString(serial) ? "host:transport-any" : "host:transport:" + serial);
+            sendRequest(socket, service);
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(mHost, mPort), mTimeout);
+            socket.setSoTimeout(mTimeout);
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * 发送请求并读取状态,状态为FAIL时抛出异常
+     *
+     * @param socket
+     * @param request
+     * @throws IOException
+     */
+    private static void sendRequest(Socket socket, String request) throws IOException {
+        byte[] content = request.getBytes(CHARSET);
+        OutputStream out = socket.getOutputStream();
+        out.write(String.format("%04x", content.length).getBytes(CHARSET));
+        out.write(content);
+        out.flush();
+        String status = readString(socket.getInputStream(), 4);
+        checkStatus(socket.getInputStream(), status, request);
+    }
+
+    /**
+     * 读取可能存在的第二个状态,连接已关闭时视为成功
+     *
+     * @param in
+     * @throws IOException
+     */
+    private static void readOptionalStatus(InputStream in) throws IOException {
+        String status = null;
+        try {
+            status = readString(in, 4);
+        } catch (EOFException e) {
+            return;
+        }
+        checkStatus(in, status, null);
+    }
+
+    private static void checkStatus(InputStream in, String status, String request) throws IOException {
+        if (STATUS_OKAY.equals(status)) {
+            return;
+        }
+        if (STATUS_FAIL.equals(status)) {
+            throw new IOException("adb server 返回失败: " + readLengthPrefixedString(in)
+                    + (request != null ? " 请求: " + request : ""));
+        }
+        throw new IOException("adb server 返回未知状态: " + status);
+    }
+
+    /**
+     * 读取[4位十六进制长度][内容]格式的字符串
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static String readLengthPrefixedString(InputStream in) throws IOException {
+        String lengthStr = readString(in, 4);
+        int length = 0;
+        try {
+            length = Integer.parseInt(lengthStr, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("adb server 返回的长度不正确: " + lengthStr);
+        }
+        return readString(in, length);
+    }
+
+    private static String readString(InputStream in, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int readSize = in.read(buffer, offset, length - offset);
+            if (readSize < 0) {
+                throw new EOFException("adb server 连接已关闭");
+            }
+            offset += readSize;
+        }
+        return new String(buffer, CHARSET);
+    }
+
+    /**
+     * 解析设备列表,每行为 设备标识\t状态
+     *
+     * @param content
+     * @return
+     */
+    static Map<String, String> parseDeviceStates(String content) {
+        Map<String, String> deviceStates = new LinkedHashMap<String, String>();
+        if (content == null) {
+            return deviceStates;
+        }
+        for (String line : content.split("\n")) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length >= 2 && !CommonUtils.isEmptyString(parts[0])) {
+                deviceStates.put(parts[0], parts[1]);
+            }
+        }
+        return deviceStates;
+    }
+
+    static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 关闭时出错不需要处理
+            }
+        }
+    }
+}
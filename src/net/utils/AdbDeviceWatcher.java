@@ -0,0 +1,199 @@
+package net.utils;
+
+import net.interfaces.OnDeviceChangedListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Created by taro on 16/3/25.
+ * 基于adb server的 host:track-devices 的设备监听,adb server在设备变化时主动推送完整的设备列表,
+ * 与上一次的列表比较后通知设备的接入与断开,不需要定时执行adb devices<br/>
+ * 与adb server的连接断开(如adb server重启)时以递增的间隔自动重新连接
+ *
+ * @author taro
+ */
+public class AdbDeviceWatcher implements Runnable {
+    // 重新连接adb server的初始间隔及最大间隔(毫秒)
+    private static final long RECONNECT_INITIAL_DELAY = 500;
+    private static final long RECONNECT_MAX_DELAY = 5000;
+
+    private AdbClient mAdbClient = null;
+    private OnDeviceChangedListener mListener = null;
+    // 当前可用的设备,修改时替换为新的集合
+    private volatile Set<String> mLiveDevices = Collections.emptySet();
+    private volatile boolean mIsRunning = false;
+    // 当前的监听线程,停止后重新启动时旧的线程不再是当前线程,随即结束且不再修改设备列表
+    private volatile Thread mWatchThread = null;
+    private Socket mTrackSocket = null;
+
+    /**
+     * 创建设备监听
+     *
+     * @param adbClient adb server客户端
+     * @param listener  设备接入/断开监听,回调运行在监听线程中
+     */
+    public AdbDeviceWatcher(AdbClient adbClient, OnDeviceChangedListener listener) {
+        if (adbClient == null) {
+            throw new RuntimeException("adb server客户端不可为null");
+        }
+        mAdbClient = adbClient;
+        mListener = listener;
+    }
+
+    /**
+     * 开始监听设备变化,已启动时不做任何操作
+     */
+    public synchronized void start() {
+        if (mIsRunning) {
+            return;
+        }
+        mIsRunning = true;
+        mWatchThread = SocketThreadFactory.newThread(this, "adb-device-watcher");
+        mWatchThread.start();
+    }
+
+    /**
+     * 停止监听设备变化,不会通知设备断开
+     */
+    public synchronized void stop() {
+        if (!mIsRunning) {
+            return;
+        }
+        mIsRunning = false;
+        AdbClient.closeQuietly(mTrackSocket);
+        mTrackSocket = null;
+        if (mWatchThread != null) {
+            mWatchThread.interrupt();
+            mWatchThread = null;
+        }
+        // 监听停止后不再确定设备状态,清空设备列表;停止不是设备断开,不通知监听
+        mLiveDevices = Collections.emptySet();
+    }
+
+    /**
+     * 是否正在监听
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * 获取当前可用的设备标识
+     *
+     * @return 设备标识的快照, 修改不影响监听
+     */
+    public List<String> getDevices() {
+        return new ArrayList<String>(mLiveDevices);
+    }
+
+    /**
+     * 设备当前是否可用
+     *
+     * @param deviceToken
+     * @return
+     */
+    public boolean isDeviceAttached(String deviceToken) {
+        return mLiveDevices.contains(deviceToken);
+    }
+
+    @Override
+    public void run() {
+        long delay = RECONNECT_INITIAL_DELAY;
+        while (isCurrentThread()) {
+            Socket socket = null;
+            try {
+                socket = mAdbClient.openHostService("host:track-devices");
+                // 设备列表只在变化时推送,读取不能超时
+                socket.setSoTimeout(0);
+                synchronized (this) {
+                    if (!isCurrentThread()) {
+                        break;
+                    }
+                    mTrackSocket = socket;
+                }
+                InputStream in = socket.getInputStream();
+                delay = RECONNECT_INITIAL_DELAY;
+                while (isCurrentThread()) {
+                    updateDevices(AdbClient.parseDeviceStates(AdbClient.readLengthPrefixedString(in)));
+                }
+            } catch (IOException e) {
+                if (isCurrentThread()) {
+                    CommonUtils.logInfo("设备监听连接中断,稍后重新连接: " + e.getMessage());
+                }
+            } finally {
+                AdbClient.closeQuietly(socket);
+            }
+            if (!isCurrentThread()) {
+                break;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            delay = Math.min(delay * 2, RECONNECT_MAX_DELAY);
+        }
+    }
+
+    private boolean isCurrentThread() {
+        return mWatchThread == Thread.currentThread();
+    }
+
+    /**
+     * 与上一次的设备列表比较,通知接入及断开的设备
+     *
+     * @param deviceStates adb server推送的设备及状态
+     */
+    private void updateDevices(Map<String, String> deviceStates) {
+        Set<String> newDevices = new LinkedHashSet<String>();
+        for (Map.Entry<String, String> entry : deviceStates.entrySet()) {
+            if (AdbClient.STATE_DEVICE.equals(entry.getValue())) {
+                newDevices.add(entry.getKey());
+            }
+        }
+        Set<String> oldDevices = null;
+        synchronized (this) {
+            // 已停止的监听线程不能覆盖停止时清空的设备列表
+            if (!isCurrentThread()) {
+                return;
+            }
+            oldDevices = mLiveDevices;
+            mLiveDevices = Collections.unmodifiableSet(newDevices);
+        }
+        if (mListener == null) {
+            return;
+        }
+        for (String device : oldDevices) {
+            if (!newDevices.contains(device)) {
+                notifyChanged(device, false);
+            }
+        }
+        for (String device : newDevices) {
+            if (!oldDevices.contains(device)) {
+                notifyChanged(device, true);
+            }
+        }
+    }
+
+    private void notifyChanged(String deviceToken, boolean isAttached) {
+        try {
+            if (isAttached) {
+                mListener.onDeviceAttached(deviceToken);
+            } else {
+                mListener.onDeviceDetached(deviceToken);
+            }
+        } catch (Exception e) {
+            CommonUtils.logError(e);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package net.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by taro on 16/3/26.
+ * 单个设备的常驻shell会话,所有命令写入同一个shell执行,不需要为每个命令创建adb进程:<br/>
+ * 1.每个命令之后输出带有命令编号及退出码的结束标记,读取线程按标记切分输出,依次完成对应的命令<br/>
+ * 2.命令写入后不等待结果,可以同时有多个命令在执行队列中,shell按写入顺序依次执行<br/>
+ * 3.优先通过adb server的exec服务打开shell,失败时使用adb shell进程<br/>
+ * 4.shell结束(设备断开/adb server重启)时未完成的命令以异常结束,下一个命令重新打开shell<br/>
+ * 5.命令超时时只结束该命令,当前shell不再接收新的命令(新命令在新的shell中执行),已写入的命令继续执行,全部结束后关闭
+ *
+ * @author taro
+ */
+public class AdbShellSession {
+    /**
+     * 默认的命令超时时间(毫秒)
+     */
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    // 取得的shell在写入命令前结束时重新取得shell的次数
+    private static final int MAX_OPEN_ATTEMPTS = 3;
+    private static final AtomicInteger sSessionCount = new AtomicInteger();
+
+    private final AdbClient mAdbClient;
+    private final String mAdbPath;
+    private final String mSerial;
+    // 命令结束标记,每个会话不同,避免与命令输出混淆
+    private final String mEndMarker;
+    private final AtomicLong mCommandId = new AtomicLong();
+    private final Object mLock = new Object();
+    private ShellChannel mChannel = null;
+    private volatile boolean mIsClosed = false;
+    private volatile int mRestartCount = 0;
+
+    /**
+     * 创建shell会话,首次执行命令时打开shell
+     *
+     * @param adbClient adb server客户端,为null时只使用adb shell进程
+     * @param adbPath   adb程序所在目录
+     * @param serial    设备标识,为null时使用唯一连接的设备
+     */
+    public AdbShellSession(AdbClient adbClient, String adbPath, String serial) {
+        mAdbClient = adbClient;
+        mAdbPath = adbPath == null ? "" : adbPath;
+        mSerial = serial;
+        mEndMarker = "__adb_shell_end_" + sSessionCount.incrementAndGet() + "_" + Long.toHexString(System.nanoTime());
+    }
+
+    public String getSerial() {
+        return mSerial;
+    }
+
+    /**
+     * 执行命令,使用默认的超时时间
+     *
+     * @param command shell命令
+     * @return
+     */
+    public CompletableFuture<CommandExecutor.CommandResult> execute(String command) {
+        return execute(command, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * 执行命令,命令写入shell后立即返回;命令的标准输出与错误输出合并在结果的输出中
+     *
+     * @param command shell命令,不会读取标准输入
+     * @param timeout 超时时间(毫秒),超时后之后的命令在新的shell中执行
+     * @return 命令结束后完成; shell打开失败或命令写入失败时以{@link CommandNotSentException}结束,
+     * 命令写入后shell结束时以IOException结束,超时以TimeoutException结束
+     */
+    public CompletableFuture<CommandExecutor.CommandResult> execute(String command, long timeout) {
+        final ShellCommand shellCommand = new ShellCommand(mCommandId.incrementAndGet());
+        if (CommonUtils.isEmptyString(command)) {
+            shellCommand.mFuture.completeExceptionally(new IOException("命令不可为空"));
+            return shellCommand.mFuture;
+        }
+        String script = buildScript(shellCommand.mId, command);
+        // 会话锁只用于取得当前shell,打开shell及写入命令在锁外进行,避免阻塞的IO影响其它命令及超时处理
+        for (int i = 0; i < MAX_OPEN_ATTEMPTS; i++) {
+            ShellChannel channel = null;
+            synchronized (mLock) {
+                if (mIsClosed) {
+                    shellCommand.mFuture.completeExceptionally(new IOException("shell会话已关闭"));
+                    return shellCommand.mFuture;
+                }
+                channel = getAliveChannel();
+            }
+            try {
+                channel.ensureOpen();
+            } catch (IOException e) {
+                synchronized (mLock) {
+                    if (mChannel == channel) {
+                        mChannel = null;
+                    }
+                }
+                shellCommand.mFuture.completeExceptionally(new CommandNotSentException("无法打开shell: " + e.getMessage(), e));
+                return shellCommand.mFuture;
+            }
+            try {
+                if (!channel.trySend(shellCommand, script)) {
+                    // shell在取得之后结束或不再接收命令,重新取得shell
+                    continue;
+                }
+            } catch (IOException e) {
+                // 脚本的最后一行写入之前shell不会执行该命令,写入失败时命令一定没有执行;之前已写入的命令可能已经执行
+                shellCommand.mFuture.completeExceptionally(new CommandNotSentException("shell命令写入失败: " + e.getMessage(), e));
+                channel.close(e);
+                return shellCommand.mFuture;
+            }
+            scheduleTimeout(channel, shellCommand, timeout);
+            return shellCommand.mFuture;
+        }
+        shellCommand.mFuture.completeExceptionally(new CommandNotSentException("shell打开后立即结束", null));
+        return shellCommand.mFuture;
+    }
+
+    /**
+     * 关闭会话,未完成的命令以异常结束,之后不可再执行命令
+     */
+    public void close() {
+        ShellChannel channel = null;
+        synchronized (mLock) {
+            mIsClosed = true;
+            channel = mChannel;
+            mChannel = null;
+        }
+        if (channel != null) {
+            channel.close(new IOException("shell会话已关闭"));
+        }
+    }
+
+    public boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * shell重新打开的次数
+     *
+     * @return
+     */
+    public int getRestartCount() {
+        return mRestartCount;
+    }
+
+    /**
+     * 已写入但未完成的命令数量
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        ShellChannel channel = mChannel;
+        return channel == null ? 0 : channel.mPendingCommands.size();
+    }
+
+    /**
+     * 取得当前可用的shell,没有时创建新的shell(未打开,由调用者在锁外打开),只在持有会话锁时调用
+     *
+     * @return
+     */
+    private ShellChannel getAliveChannel() {
+        if (mChannel != null && mChannel.isAlive()) {
+            return mChannel;
+        }
+        if (mChannel != null) {
+            mRestartCount++;
+        }
+        mChannel = new ShellChannel();
+        return mChannel;
+    }
+
+    /**
+     * 创建写入shell的脚本:命令之后输出换行(保证结束标记独占一行)及[结束标记 编号 退出码]
+     *
+     * @param id
+     * @param command
+     * @return
+     */
+    private String buildScript(long id, String command) {
+        return "{ " + command + "\n} </dev/null 2>&1; __r=$?; echo; echo " + mEndMarker + " " + id + " $__r\n";
+    }
+
+    private void scheduleTimeout(final ShellChannel channel, final ShellCommand shellCommand, long timeout) {
+        if (timeout <= 0) {
+            return;
+        }
+        TimingWheel.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (shellCommand.mFuture.isDone()) {
+                    return;
+                }
+                // 命令未结束时当前shell无法执行之后的命令,新命令改为在新的shell中执行;
+                // 已写入的命令可能已经开始执行,不关闭当前shell,等待其结束或各自超时
+                channel.mIsRetired.compareAndSet(false, true);
+                shellCommand.mFuture.completeExceptionally(
+                        new TimeoutException("shell命令超时: " + mSerial + " 编号 " + shellCommand.mId));
+                // 在时间轮线程之外关闭shell,关闭进程/连接可能阻塞
+                CompletableFuture.runAsync(new Runnable() {
+                    @Override
+                    public void run() {
+                        channel.closeIfIdle();
+                    }
+                });
+            }
+        }, timeout);
+    }
+
+    /**
+     * 已写入shell的命令
+     */
+    private static class ShellCommand {
+        private final long mId;
+        private final long mStartTime = System.nanoTime();
+        private final CompletableFuture<CommandExecutor.CommandResult> mFuture =
+                new CompletableFuture<CommandExecutor.CommandResult>();
+        // 只在读取线程中访问
+        private final StringBuilder mOutput = new StringBuilder();
+
+        ShellCommand(long id) {
+            mId = id;
+        }
+    }
+
+    /**
+     * 一次打开的shell,读取线程按结束标记切分输出
+     */
+    private class ShellChannel implements Runnable {
+        // 打开shell时设置
+        private volatile Socket mSocket;
+        private volatile Process mProcess;
+        private volatile InputStream mInput;
+        private volatile OutputStream mOutput;
+        private volatile boolean mIsOpened = false;
+        private final Object mOpenLock = new Object();
+        private final Object mWriteLock = new Object();
+        private final ConcurrentLinkedQueue<ShellCommand> mPendingCommands = new ConcurrentLinkedQueue<ShellCommand>();
+        private volatile boolean mIsAlive = true;
+        // 有命令超时后不再接收新的命令
+        private final AtomicBoolean mIsRetired = new AtomicBoolean(false);
+
+        boolean isAlive() {
+            Process process = mProcess;
+            return mIsAlive && !mIsRetired.get() && (process == null || process.isAlive());
+        }
+
+        /**
+         * 打开shell并启动读取线程,同时使用同一个shell的命令只打开一次
+         *
+         * @throws IOException
+         */
+        void ensureOpen() throws IOException {
+            synchronized (mOpenLock) {
+                if (mIsOpened) {
+                    return;
+                }
+                if (!mIsAlive) {
+                    throw new IOException("shell已关闭");
+                }
+                open();
+                mIsOpened = true;
+                SocketThreadFactory.newThread(this, "adb-shell-" + (mSerial == null ? "any" : mSerial)).start();
+            }
+            // 打开过程中会话被关闭时,关闭时还没有可关闭的连接/进程
+            if (!mIsAlive) {
+                close(new IOException("shell会话已关闭"));
+            }
+        }
+
+        private void open() throws IOException {
+            if (mAdbClient != null) {
+                try {
+                    Socket socket = mAdbClient.openDeviceService(mSerial, "exec:sh");
+                    // shell长时间空闲时读取不能超时
+                    socket.setSoTimeout(0);
+                    mInput = socket.getInputStream();
+                    mOutput = socket.getOutputStream();
+                    mSocket = socket;
+                    return;
+                } catch (IOException e) {
+                    CommonUtils.logInfo("adb server 打开shell失败,使用adb命令执行: " + e.getMessage());
+                }
+            }
+            List<String> cmdList = new ArrayList<String>();
+            cmdList.add(mAdbPath + "adb");
+            if (!CommonUtils.isEmptyString(mSerial)) {
+                cmdList.add("-s");
+                cmdList.add(mSerial);
+            }
+            cmdList.add("shell");
+            Process process = new ProcessBuilder(cmdList).redirectErrorStream(true).start();
+            mInput = process.getInputStream();
+            mOutput = process.getOutputStream();
+            mProcess = process;
+        }
+
+        /**
+         * 写入命令,写入锁保证命令的写入顺序与执行队列一致
+         *
+         * @param shellCommand
+         * @param script
+         * @return shell已结束或不再接收新命令时返回false, 命令未写入
+         * @throws IOException 写入失败
+         */
+        boolean trySend(ShellCommand shellCommand, String script) throws IOException {
+            synchronized (mWriteLock) {
+                if (!isAlive()) {
+                    return false;
+                }
+                mPendingCommands.offer(shellCommand);
+                mOutput.write(script.getBytes(CHARSET));
+                mOutput.flush();
+                return true;
+            }
+        }
+
+        @Override
+        public void run() {
+            IOException cause = new IOException("shell已结束");
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(mInput, CHARSET));
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(mEndMarker)) {
+                        onCommandEnd(line);
+                    } else {
+                        ShellCommand shellCommand = mPendingCommands.peek();
+                        if (shellCommand != null) {
+                            shellCommand.mOutput.append(line).append('\n');
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                cause = e;
+            }
+            close(cause);
+        }
+
+        /**
+         * 解析结束标记[结束标记 编号 退出码],完成对应的命令
+         *
+         * @param line
+         */
+        private void onCommandEnd(String line) {
+            String[] parts = line.substring(mEndMarker.length()).trim().split("\\s+");
+            long id = -1;
+            int exitCode = -1;
+            try {
+                id = Long.parseLong(parts[0]);
+                exitCode = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+            } catch (NumberFormatException e) {
+                CommonUtils.logError("无法解析shell命令结束标记: " + line);
+            }
+            ShellCommand shellCommand = null;
+            // 命令按写入顺序结束,编号较小的命令已被超时处理时直接跳过
+            while ((shellCommand = mPendingCommands.poll()) != null && shellCommand.mId < id) {
+                shellCommand.mFuture.completeExceptionally(new IOException("shell命令未返回结束标记"));
+            }
+            if (shellCommand == null) {
+                return;
+            }
+            StringBuilder output = shellCommand.mOutput;
+            // 去掉命令之后为结束标记添加的换行
+            if (output.length() > 0) {
+                output.setLength(output.length() - 1);
+            }
+            String result = output.toString();
+            long costTime = (System.nanoTime() - shellCommand.mStartTime) / 1000000;
+            // 已超时的命令不会再次完成
+            shellCommand.mFuture.complete(new CommandExecutor.CommandResult(exitCode, result, "",
+                    false, costTime, result.getBytes(CHARSET).length));
+            closeIfIdle();
+        }
+
+        /**
+         * 不再接收新命令的shell在所有已写入的命令都结束(完成或超时)后关闭,
+         * 超时的命令一直没有结束时在最后一个命令超时后关闭
+         */
+        void closeIfIdle() {
+            if (!mIsRetired.get() || !mIsAlive) {
+                return;
+            }
+            for (ShellCommand shellCommand : mPendingCommands) {
+                if (!shellCommand.mFuture.isDone()) {
+                    return;
+                }
+            }
+            close(new IOException("shell命令超时,关闭shell"));
+        }
+
+        /**
+         * 关闭shell,未完成的命令以异常结束
+         *
+         * @param cause
+         */
+        void close(IOException cause) {
+            mIsAlive = false;
+            Socket socket = mSocket;
+            if (socket != null) {
+                AdbClient.closeQuietly(socket);
+            }
+            Process process = mProcess;
+            if (process != null) {
+                process.destroyForcibly();
+            }
+            ShellCommand shellCommand = null;
+            while ((shellCommand = mPendingCommands.poll()) != null) {
+                shellCommand.mFuture.completeExceptionally(cause);
+            }
+        }
+    }
+}
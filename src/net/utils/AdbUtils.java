@@ -1,8 +1,20 @@
 package net.utils;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,6 +51,14 @@ public class AdbUtils {
 	 * adb命令:单击指定坐标
 	 */
 	public static final String ADB_CMD_INPUT = "adb shell input tap %s %s";
+	/**
+	 * 截图命令,输出为png格式的二进制数据
+	 */
+	public static final String DEVICE_CMD_SCREENCAP = "screencap -p";
+	/**
+	 * 流式输出命令的默认超时时间(毫秒)
+	 */
+	public static final long STREAM_TIMEOUT = 60000;
 	/**
 	 * 默认字符串编码
 	 */
@@ -57,11 +77,195 @@ public class AdbUtils {
 	 */
 	public static final String ACTION_STOP_SERVICE = "bestapp.us.orderbyebye.STOP_SOCKET";
 
+	/**
+	 * 命令执行方式:直接与本地adb server通信,失败时(如adb server未启动)使用adb进程执行
+	 */
+	public static final int BACKEND_ADB_SERVER = 0;
+	/**
+	 * 命令执行方式:每个命令创建adb进程执行
+	 */
+	public static final int BACKEND_EXEC = 1;
+
+	// adb server客户端
+	private AdbClient mAdbClient = null;
+	private volatile int mBackend = BACKEND_ADB_SERVER;
+	// 每个设备的常驻shell会话,设备标识为null时使用空字符串
+	private ConcurrentHashMap<String, AdbShellSession> mShellSessions = new ConcurrentHashMap<String, AdbShellSession>();
+	private volatile boolean mIsUseShellSession = true;
+
 	public AdbUtils(String adbPath) {
+		this(adbPath, new AdbClient());
+	}
+
+	/**
+	 * 创建adb工具
+	 *
+	 * @param adbPath
+	 *            adb程序所在目录,adb server不可用时使用
+	 * @param adbClient
+	 *            adb server客户端,为null时只使用adb进程执行命令
+	 */
+	public AdbUtils(String adbPath, AdbClient adbClient) {
 		if (CommonUtils.isEmptyString(adbPath)) {
 			throw new RuntimeException("路径不可为空!");
 		}
 		ADB_PATH = adbPath;
+		mAdbClient = adbClient;
+	}
+
+	/**
+	 * 设置命令执行方式
+	 *
+	 * @param backend
+	 *            {@link #BACKEND_ADB_SERVER}/{@link #BACKEND_EXEC}
+	 */
+	public void setBackend(int backend) {
+		if (backend != BACKEND_ADB_SERVER && backend != BACKEND_EXEC) {
+			throw new RuntimeException("不支持的命令执行方式: " + backend);
+		}
+		mBackend = backend;
+	}
+
+	/**
+	 * 获取命令执行方式
+	 *
+	 * @return
+	 */
+	public int getBackend() {
+		return mBackend;
+	}
+
+	/**
+	 * 获取adb server客户端
+	 *
+	 * @return
+	 */
+	public AdbClient getAdbClient() {
+		return mAdbClient;
+	}
+
+	/**
+	 * 设置是否使用常驻shell会话执行广播/点击等shell命令,关闭时同时关闭所有已打开的会话
+	 *
+	 * @param isUseShellSession
+	 */
+	public void setUseShellSession(boolean isUseShellSession) {
+		mIsUseShellSession = isUseShellSession;
+		if (!isUseShellSession) {
+			closeAllShellSessions();
+		}
+	}
+
+	public boolean isUseShellSession() {
+		return mIsUseShellSession;
+	}
+
+	/**
+	 * 获取设备的常驻shell会话,不存在时创建
+	 *
+	 * @param deviceToken
+	 *            设备标识，若只有一台设备，可置为null
+	 * @return
+	 */
+	public AdbShellSession getShellSession(String deviceToken) {
+		String key = deviceToken == null ? "" : deviceToken;
+		AdbShellSession session = mShellSessions.get(key);
+		if (session == null || session.isClosed()) {
+			AdbShellSession newSession = new AdbShellSession(mBackend == BACKEND_ADB_SERVER ? mAdbClient : null,
+					ADB_PATH, deviceToken);
+			if (session == null) {
+				session = mShellSessions.putIfAbsent(key, newSession);
+			} else {
+				session = mShellSessions.replace(key, session, newSession) ? null : mShellSessions.get(key);
+			}
+			if (session == null) {
+				session = newSession;
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * 在设备的常驻shell会话中异步执行命令,多个命令可以同时等待结果
+	 *
+	 * @param deviceToken
+	 *            设备标识，若只有一台设备，可置为null
+	 * @param command
+	 *            shell命令
+	 * @return
+	 */
+	public CompletableFuture<CommandExecutor.CommandResult> shellAsync(String deviceToken, String command) {
+		return getShellSession(deviceToken).execute(command);
+	}
+
+	/**
+	 * 在设备的常驻shell会话中执行命令并等待输出
+	 *
+	 * @param deviceToken
+	 *            设备标识，若只有一台设备，可置为null
+	 * @param command
+	 *            shell命令
+	 * @return 命令输出(标准输出与错误输出合并)
+	 * @throws IOException
+	 *             shell无法打开/已结束或命令超时;命令未发送到设备时为CommandNotSentException
+	 */
+	public String shell(String deviceToken, String command) throws IOException {
+		try {
+			return shellAsync(deviceToken, command).join().getOutput();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * 关闭设备的常驻shell会话,设备断开时调用
+	 *
+	 * @param deviceToken
+	 */
+	public void closeShellSession(String deviceToken) {
+		AdbShellSession session = mShellSessions.remove(deviceToken == null ? "" : deviceToken);
+		if (session != null) {
+			session.close();
+		}
+	}
+
+	/**
+	 * 关闭所有设备的常驻shell会话
+	 */
+	public void closeAllShellSessions() {
+		for (String key : mShellSessions.keySet()) {
+			closeShellSession(key);
+		}
+	}
+
+	/**
+	 * 是否使用adb server执行命令
+	 *
+	 * @return
+	 */
+	private boolean isUseAdbServer() {
+		return mBackend == BACKEND_ADB_SERVER && mAdbClient != null;
+	}
+
+	/**
+	 * adb server执行失败,记录原因后使用adb进程执行
+	 *
+	 * @param e
+	 */
+	private void logFallback(IOException e) {
+		CommonUtils.logInfo("adb server 执行失败,使用adb命令执行: " + e.getMessage());
+	}
+
+	/**
+	 * 命令已发送到设备后失败(超时/连接断开),命令可能已经执行,不能再换用其它方式重新执行,
+	 * 记录原因后与adb进程执行失败时相同返回空字符串
+	 *
+	 * @param e
+	 * @return
+	 */
+	private String logCommandFailed(IOException e) {
+		CommonUtils.logError("设备命令执行失败: " + e.getMessage());
+		return "";
 	}
 
 	/**
@@ -79,6 +283,14 @@ public class AdbUtils {
 		if (CommonUtils.isEmptyString(localPort) || CommonUtils.isEmptyString(adbPort)) {
 			return "";
 		}
+		if (isUseAdbServer()) {
+			try {
+				mAdbClient.forward(deviceToken, localPort, adbPort);
+				return "";
+			} catch (IOException e) {
+				logFallback(e);
+			}
+		}
 		try {
 			String command = null;
 			// 检测是否需要指定设备进行设置端口
@@ -102,18 +314,42 @@ public class AdbUtils {
 	/**
 	 * 移除所有的转发接口
 	 *
-	 * @return
+	 * @return 移除转发接口的adb命令
 	 */
 	public String removeAllForwardPort() {
 		return ADB_PATH + ADB_CMD_FORWARD_REMOVE;
 	}
 
+	/**
+	 * 执行移除所有的转发接口
+	 */
+	public void removeAllForward() {
+		if (isUseAdbServer()) {
+			try {
+				mAdbClient.removeAllForward();
+				return;
+			} catch (IOException e) {
+				logFallback(e);
+			}
+		}
+		CommonUtils.execCommand(removeAllForwardPort(), false, DEFAULT_CHARSET, null);
+	}
+
 	/**
 	 * 获取与PC连接的设备标识
 	 *
 	 * @return 设备标识list
 	 */
 	public List<String> getDevices() {
+		if (isUseAdbServer()) {
+			try {
+				List<String> devices = mAdbClient.getDevices();
+				System.out.println("匹配设备:" + devices);
+				return devices;
+			} catch (IOException e) {
+				logFallback(e);
+			}
+		}
 		// 执行命令
 		String resultStr = CommonUtils.execCommand(ADB_PATH + ADB_CMD_DEVICE, true, DEFAULT_CHARSET, null);
 		System.out.println("设备信息:" + resultStr);
@@ -155,18 +391,60 @@ public class AdbUtils {
 		if (CommonUtils.isEmptyString(action)) {
 			return "";
 		}
-		// 默认为指定设备的发送广播
-		String command = ADB_CMD_BROADCAST_FORMAT;
-		StringBuilder sBuilder = new StringBuilder();
+		String args = buildBroadcastExtras(strExtra, intExtra, booleanExtra);
+		if (mIsUseShellSession) {
+			try {
+				return shell(deviceToken, "am broadcast -a " + action + " " + args);
+			} catch (CommandNotSentException e) {
+				logFallback(e);
+			} catch (IOException e) {
+				return logCommandFailed(e);
+			}
+		}
+		if (isUseAdbServer()) {
+			try {
+				return mAdbClient.shell(deviceToken, "am broadcast -a " + action + " " + args);
+			} catch (CommandNotSentException e) {
+				logFallback(e);
+			} catch (IOException e) {
+				return logCommandFailed(e);
+			}
+		}
+		String command = null;
 		// 根据设备标识确定执行命令为简单版还是格式化命令
 		if (CommonUtils.isEmptyString(deviceToken)) {
 			command = String.format(ADB_CMD_BROADCAST_SIMPLE, action);
 		} else {
 			command = String.format(ADB_CMD_BROADCAST_FORMAT, deviceToken, action);
 		}
-		sBuilder.append(ADB_PATH);
-		sBuilder.append(command);
-		// 添加extra参数
+		// 创建命令
+		command = ADB_PATH + command + args;
+		// 执行命令
+		return CommonUtils.execCommand(command, true, DEFAULT_CHARSET, new OnBreakReadCmdResultListener() {
+
+			@Override
+			public boolean onBreadReadCmdResult(String result) {
+				// 广播的中止回调判断,出现completed则不再监听返回的信息
+				if (result != null && result.contains("completed")) {
+					return true;
+				} else {
+					return false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * 创建广播的extra参数
+	 *
+	 * @param strExtra
+	 * @param intExtra
+	 * @param booleanExtra
+	 * @return
+	 */
+	private String buildBroadcastExtras(Map<String, String> strExtra, Map<String, Integer> intExtra,
+			Map<String, Boolean> booleanExtra) {
+		StringBuilder sBuilder = new StringBuilder();
 		// 添加String extra
 		if (strExtra != null && strExtra.size() > 0) {
 			sBuilder.append(" --es ");
@@ -196,21 +474,7 @@ public class AdbUtils {
 				sBuilder.append(booleanExtra.get(key));
 			}
 		}
-		// 创建命令
-		command = sBuilder.toString();
-		// 执行命令
-		return CommonUtils.execCommand(command, true, DEFAULT_CHARSET, new OnBreakReadCmdResultListener() {
-
-			@Override
-			public boolean onBreadReadCmdResult(String result) {
-				// 广播的中止回调判断,出现completed则不再监听返回的信息
-				if (result != null && result.contains("completed")) {
-					return true;
-				} else {
-					return false;
-				}
-			}
-		});
+		return sBuilder.toString();
 	}
 
 	/**
@@ -221,7 +485,149 @@ public class AdbUtils {
 	 * @return
 	 */
 	public String inputTap(int x, int y) {
+		if (mIsUseShellSession) {
+			try {
+				return shell(null, "input tap " + x + " " + y);
+			} catch (CommandNotSentException e) {
+				logFallback(e);
+			} catch (IOException e) {
+				return logCommandFailed(e);
+			}
+		}
+		if (isUseAdbServer()) {
+			try {
+				return mAdbClient.shell(null, "input tap " + x + " " + y);
+			} catch (CommandNotSentException e) {
+				logFallback(e);
+			} catch (IOException e) {
+				return logCommandFailed(e);
+			}
+		}
 		String command = ADB_PATH + String.format(ADB_CMD_INPUT, String.valueOf(x), String.valueOf(y));
 		return CommonUtils.execCommand(command, false, DEFAULT_CHARSET, null);
 	}
+
+	/**
+	 * 在设备上执行命令,标准输出直接写入输出流(二进制安全,输出不保存在内存中)
+	 *
+	 * @param deviceToken
+	 *            设备标识，若只有一台设备，可置为null
+	 * @param command
+	 *            设备上执行的命令
+	 * @param out
+	 *            输出流,由调用者关闭
+	 * @return 写入的字节数
+	 * @throws IOException
+	 */
+	public long execOut(String deviceToken, String command, OutputStream out) throws IOException {
+		return execOut(deviceToken, command, Channels.newChannel(out));
+	}
+
+	/**
+	 * 在设备上执行命令,标准输出直接写入通道(二进制安全,输出不保存在内存中);
+	 * 优先通过adb server的exec服务读取,连接adb server失败时使用 adb exec-out 进程执行
+	 *
+	 * @param deviceToken
+	 *            设备标识，若只有一台设备，可置为null
+	 * @param command
+	 *            设备上执行的命令
+	 * @param target
+	 *            输出写入的通道,由调用者关闭
+	 * @return 写入的字节数
+	 * @throws IOException
+	 */
+	public long execOut(String deviceToken, String command, WritableByteChannel target) throws IOException {
+		if (CommonUtils.isEmptyString(command) || target == null) {
+			throw new IOException("命令或输出通道不可为空");
+		}
+		if (isUseAdbServer()) {
+			Socket socket = null;
+			try {
+				socket = mAdbClient.openDeviceService(deviceToken, "exec:" + command);
+			} catch (IOException e) {
+				logFallback(e);
+			}
+			if (socket != null) {
+				// 已开始输出后失败不能再使用adb进程重新执行,否则输出会重复
+				try {
+					return AdbClient.transfer(Channels.newChannel(socket.getInputStream()), target);
+				} finally {
+					AdbClient.closeQuietly(socket);
+				}
+			}
+		}
+		List<String> cmdList = new ArrayList<String>();
+		cmdList.add(ADB_PATH + "adb");
+		if (!CommonUtils.isEmptyString(deviceToken)) {
+			cmdList.add("-s");
+			cmdList.add(deviceToken);
+		}
+		cmdList.add("exec-out");
+		cmdList.addAll(Arrays.asList(command.trim().split("\\s+")));
+		CommandExecutor.CommandResult result = null;
+		try {
+			result = CommandExecutor.getInstance().executeToChannel(cmdList, STREAM_TIMEOUT, target).join();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		if (result.isTimeout() || result.getExitCode() != 0) {
+			throw new IOException("执行命令失败: " + cmdList + " " + result);
+		}
+		return result.getOutputLength();
+	}
+
+	/**
+	 * 在设备上执行命令,标准输出写入文件,文件已存在时覆盖
+	 *
+	 * @param deviceToken
+	 *            设备标识，若只有一台设备，可置为null
+	 * @param command
+	 *            设备上执行的命令
+	 * @param file
+	 *            保存输出的文件
+	 * @return 写入的字节数
+	 * @throws IOException
+	 */
+	public long execOutToFile(String deviceToken, String command, File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			return execOut(deviceToken, command, channel);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * 截图并保存为png文件
+	 *
+	 * @param deviceToken
+	 *            设备标识，若只有一台设备，可置为null
+	 * @param file
+	 *            保存截图的文件
+	 * @return 文件大小
+	 * @throws IOException
+	 */
+	public long screencap(String deviceToken, File file) throws IOException {
+		return execOutToFile(deviceToken, DEVICE_CMD_SCREENCAP, file);
+	}
+
+	/**
+	 * 将设备上的文件保存到本地,通过 cat 输出文件内容,无读取权限的文件无法获取
+	 *
+	 * @param deviceToken
+	 *            设备标识，若只有一台设备，可置为null
+	 * @param remotePath
+	 *            设备上的文件路径,不可包含空格
+	 * @param file
+	 *            保存的本地文件
+	 * @return 文件大小
+	 * @throws IOException
+	 */
+	public long pullFile(String deviceToken, String remotePath, File file) throws IOException {
+		if (CommonUtils.isEmptyString(remotePath)) {
+			throw new IOException("设备文件路径不可为空");
+		}
+		return execOutToFile(deviceToken, "cat " + remotePath, file);
+	}
 }
@@ -0,0 +1,583 @@
+package net.utils;
+
+import net.interfaces.OnBreakReadCmdResultListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by taro on 16/3/25.
+ * 异步执行外部命令(主要是adb命令),使用ProcessBuilder创建进程:<br/>
+ * 1.标准输出与错误输出同时读取,避免输出过多时进程阻塞<br/>
+ * 2.每个命令都有超时时间,超时后强制结束进程;命令结束后等待进程退出,不会留下僵尸进程<br/>
+ * 3.同时运行的进程数量有上限,超过时命令在队列中等待,不占用线程<br/>
+ * 4.按命令类型统计执行次数/耗时/超时数量
+ *
+ * @author taro
+ */
+public class CommandExecutor {
+    /**
+     * 默认的命令超时时间(毫秒)
+     */
+    public static final long DEFAULT_TIMEOUT = 10000;
+    /**
+     * 默认的同时运行的最大进程数量
+     */
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+    /**
+     * 命令超时被强制结束时的退出码
+     */
+    public static final int EXIT_CODE_TIMEOUT = -1;
+    /**
+     * 命令无法启动时的退出码
+     */
+    public static final int EXIT_CODE_START_FAILED = -2;
+    /**
+     * 进程已结束但输出未能在等待时间内读取完毕(如子进程仍持有输出流)时的退出码,输出不完整
+     */
+    public static final int EXIT_CODE_OUTPUT_INCOMPLETE = -3;
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    // 进程结束后等待输出读取完毕的最长时间(毫秒)
+    private static final long DRAIN_TIMEOUT = 1000;
+
+    private static CommandExecutor mCommandExecutor = null;
+
+    // 等待进程及读取输出的线程,进程数量由mProcessPermits限制,取得名额后才提交到线程池
+    private ExecutorService mExecutor = null;
+    private Semaphore mProcessPermits = null;
+    // 等待名额的命令
+    private final ConcurrentLinkedQueue<Runnable> mWaitingCommands = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger mWaitingCount = new AtomicInteger();
+    private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+    // 按命令类型统计的数据
+    private ConcurrentHashMap<String, CommandMetrics> mMetricsMap = new ConcurrentHashMap<String, CommandMetrics>();
+
+    /**
+     * 获取命令执行工具
+     */
+    public synchronized static CommandExecutor getInstance() {
+        if (mCommandExecutor == null) {
+            mCommandExecutor = new CommandExecutor(DEFAULT_MAX_CONCURRENT);
+        }
+        return mCommandExecutor;
+    }
+
+    /**
+     * 创建命令执行工具
+     *
+     * @param maxConcurrent 同时运行的最大进程数量
+     */
+    public CommandExecutor(int maxConcurrent) {
+        if (maxConcurrent <= 0) {
+            throw new RuntimeException("同时运行的进程数量必须大于0");
+        }
+        mMaxConcurrent = maxConcurrent;
+        mProcessPermits = new Semaphore(maxConcurrent);
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "command-executor-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 获取同时运行的最大进程数量
+     *
+     * @return
+     */
+    public int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    /**
+     * 获取当前正在运行的进程数量
+     *
+     * @return
+     */
+    public int getRunningCount() {
+        return mMaxConcurrent - mProcessPermits.availablePermits();
+    }
+
+    /**
+     * 获取正在排队等待运行的命令数量
+     *
+     * @return
+     */
+    public int getWaitingCount() {
+        return mWaitingCount.get();
+    }
+
+    /**
+     * 异步执行命令,命令以空白字符分隔参数(与Runtime.exec(String)相同)
+     *
+     * @param command 命令
+     * @param timeout 超时时间(毫秒)
+     * @return
+     */
+    public CompletableFuture<CommandResult> execute(String command, long timeout) {
+        return execute(splitCommand(command), timeout, null, null);
+    }
+
+    /**
+     * 异步执行命令
+     *
+     * @param command     命令及参数
+     * @param timeout     超时时间(毫秒),超时后强制结束进程
+     * @param charsetName 输出字符串使用的编码,为null时使用UTF-8
+     * @param listener    每次读取到标准输出时回调,返回true时认为输出已完整,不再等待进程自行结束;可为null
+     * @return 命令结束(包括超时)后完成, 无法启动时以{@link #EXIT_CODE_START_FAILED}完成
+     */
+    public CompletableFuture<CommandResult> execute(List<String> command, long timeout,
+                                                    String charsetName, OnBreakReadCmdResultListener listener) {
+        return submit(command, timeout, Charset.forName(charsetName == null ? "UTF-8" : charsetName), listener, null);
+    }
+
+    /**
+     * 异步执行命令,标准输出直接写入指定的通道(二进制安全,不保存在内存中),适用于截图/拉取文件等输出较大的命令
+     *
+     * @param command 命令及参数
+     * @param timeout 超时时间(毫秒),超时后强制结束进程
+     * @param target  标准输出写入的通道,由调用者关闭
+     * @return 命令结束后完成, 结果中的标准输出为空, 输出长度为写入通道的字节数; 写入通道失败时以IOException结束
+     */
+    public CompletableFuture<CommandResult> executeToChannel(List<String> command, long timeout,
+                                                             WritableByteChannel target) {
+        if (target == null) {
+            throw new RuntimeException("输出通道不可为null");
+        }
+        return submit(command, timeout, Charset.forName("UTF-8"), null, target);
+    }
+
+    private CompletableFuture<CommandResult> submit(final List<String> command, final long timeout, final Charset charset,
+                                                    final OnBreakReadCmdResultListener listener,
+                                                    final WritableByteChannel target) {
+        final CompletableFuture<CommandResult> future = new CompletableFuture<CommandResult>();
+        if (command == null || command.isEmpty()) {
+            future.complete(new CommandResult(EXIT_CODE_START_FAILED, "", "命令为空", false, 0, 0));
+            return future;
+        }
+        mWaitingCommands.offer(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(runCommand(command, timeout, charset, listener, target));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    mProcessPermits.release();
+                    runWaitingCommands();
+                }
+            }
+        });
+        mWaitingCount.incrementAndGet();
+        runWaitingCommands();
+        return future;
+    }
+
+    /**
+     * 有空闲名额时按加入顺序将等待中的命令提交到线程池;加入命令及命令结束后都会调用,不会遗漏等待中的命令
+     */
+    private void runWaitingCommands() {
+        while (!mWaitingCommands.isEmpty() && mProcessPermits.tryAcquire()) {
+            Runnable task = mWaitingCommands.poll();
+            if (task == null) {
+                mProcessPermits.release();
+                continue;
+            }
+            mWaitingCount.decrementAndGet();
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * 执行命令并等待结束,运行在执行线程中,调用前已取得名额
+     *
+     * @return
+     * @throws InterruptedException
+     * @throws IOException 标准输出写入通道失败
+     */
+    private CommandResult runCommand(List<String> command, long timeout, Charset charset,
+                                     OnBreakReadCmdResultListener listener, WritableByteChannel target)
+            throws InterruptedException, IOException {
+        String metricKey = getMetricKey(command);
+        long startTime = System.nanoTime();
+        Process process = null;
+        try {
+            try {
+                process = new ProcessBuilder(command).start();
+            } catch (IOException e) {
+                CommonUtils.logError(e);
+                getMetrics(metricKey).record(System.nanoTime() - startTime, false, true);
+                return new CommandResult(EXIT_CODE_START_FAILED, "", e.getMessage(), false, 0, 0);
+            }
+            // 不需要向进程输入数据
+            try {
+                process.getOutputStream().close();
+            } catch (IOException e) {
+                // 关闭失败不影响执行
+            }
+            StreamDrainer stdout = new StreamDrainer(process, process.getInputStream(), charset, listener, target);
+            StreamDrainer stderr = new StreamDrainer(process, process.getErrorStream(), charset, null, null);
+            CompletableFuture<Void> drainFuture = CompletableFuture.allOf(
+                    CompletableFuture.runAsync(stdout, mExecutor), CompletableFuture.runAsync(stderr, mExecutor));
+            boolean isExited = process.waitFor(timeout, TimeUnit.MILLISECONDS);
+            // 输出回调要求中止时进程已被结束,不算超时
+            boolean isTimeout = !isExited && !stdout.isBreakRequested();
+            if (!isExited) {
+                process.destroyForcibly();
+                process.waitFor();
+            }
+            boolean isOutputIncomplete = false;
+            try {
+                // 进程结束后输出很快读取完毕;若子进程仍持有输出流,不再继续等待,输出不完整
+                drainFuture.get(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                isOutputIncomplete = true;
+                stdout.close();
+                stderr.close();
+            }
+            long costTime = System.nanoTime() - startTime;
+            getMetrics(metricKey).record(costTime, isTimeout, stdout.getWriteError() != null || isOutputIncomplete);
+            if (stdout.getWriteError() != null) {
+                throw stdout.getWriteError();
+            }
+            int exitCode = isTimeout ? EXIT_CODE_TIMEOUT : process.exitValue();
+            if (!isTimeout && isOutputIncomplete && !stdout.isBreakRequested()) {
+                // 输出(或写入的文件)被截断,不能作为成功的结果
+                CommonUtils.logError("命令输出未读取完毕: " + command);
+                exitCode = EXIT_CODE_OUTPUT_INCOMPLETE;
+            }
+            return new CommandResult(exitCode, stdout.getOutput(), stderr.getOutput(), isTimeout,
+                    TimeUnit.NANOSECONDS.toMillis(costTime), stdout.getLength());
+        } finally {
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * 以空白字符分隔命令参数
+     *
+     * @param command
+     * @return
+     */
+    public static List<String> splitCommand(String command) {
+        List<String> args = new ArrayList<String>();
+        if (command != null) {
+            StringTokenizer tokenizer = new StringTokenizer(command);
+            while (tokenizer.hasMoreTokens()) {
+                args.add(tokenizer.nextToken());
+            }
+        }
+        return args;
+    }
+
+    /**
+     * 获取命令的统计类型,为程序名称及第一个非选项参数,如 adb forward/adb shell
+     *
+     * @param command
+     * @return
+     */
+    static String getMetricKey(List<String> command) {
+        String program = new File(command.get(0)).getName();
+        for (int i = 1; i < command.size(); i++) {
+            String arg = command.get(i);
+            if (arg.startsWith("-")) {
+                // adb -s 设备 的设备参数不作为类型
+                if (arg.equals("-s")) {
+                    i++;
+                }
+                continue;
+            }
+            return program + " " + arg;
+        }
+        return program;
+    }
+
+    private CommandMetrics getMetrics(String key) {
+        CommandMetrics metrics = mMetricsMap.get(key);
+        if (metrics == null) {
+            CommandMetrics newMetrics = new CommandMetrics();
+            metrics = mMetricsMap.putIfAbsent(key, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * 获取按命令类型统计的数据
+     *
+     * @return 命令类型(如 adb forward)与统计数据的对应关系, 为快照
+     */
+    public Map<String, CommandMetrics> getMetrics() {
+        return new HashMap<String, CommandMetrics>(mMetricsMap);
+    }
+
+    /**
+     * 读取进程的输出流直到结束,输出保存在内存中或直接写入指定的通道
+     */
+    private static class StreamDrainer implements Runnable {
+        private final Process mProcess;
+        private final InputStream mInput;
+        private final Charset mCharset;
+        private final OnBreakReadCmdResultListener mListener;
+        private final WritableByteChannel mTarget;
+        private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+        private volatile boolean mIsBreakRequested = false;
+        private volatile long mLength = 0;
+        private volatile IOException mWriteError = null;
+
+        StreamDrainer(Process process, InputStream input, Charset charset, OnBreakReadCmdResultListener listener,
+                      WritableByteChannel target) {
+            mProcess = process;
+            mInput = input;
+            mCharset = charset;
+            mListener = listener;
+            mTarget = target;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            ByteBuffer wrapBuffer = ByteBuffer.wrap(buffer);
+            try {
+                int readSize = 0;
+                while ((readSize = mInput.read(buffer)) >= 0) {
+                    mLength += readSize;
+                    if (mTarget != null) {
+                        if (!writeToTarget(wrapBuffer, readSize)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    synchronized (mOutput) {
+                        mOutput.write(buffer, 0, readSize);
+                    }
+                    if (mListener != null && mListener.onBreadReadCmdResult(new String(buffer, 0, readSize, mCharset))) {
+                        // 已读取到需要的输出,不再等待进程自行结束
+                        mIsBreakRequested = true;
+                        mProcess.destroyForcibly();
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // 进程被强制结束时流会被关闭
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * 将读取到的数据全部写入通道,写入失败时结束进程
+         *
+         * @return 是否写入成功
+         */
+        private boolean writeToTarget(ByteBuffer wrapBuffer, int length) {
+            wrapBuffer.clear();
+            wrapBuffer.limit(length);
+            try {
+                while (wrapBuffer.hasRemaining()) {
+                    mTarget.write(wrapBuffer);
+                }
+                return true;
+            } catch (IOException e) {
+                mWriteError = e;
+                mProcess.destroyForcibly();
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                mInput.close();
+            } catch (IOException e) {
+                // 关闭失败不需要处理
+            }
+        }
+
+        boolean isBreakRequested() {
+            return mIsBreakRequested;
+        }
+
+        long getLength() {
+            return mLength;
+        }
+
+        IOException getWriteError() {
+            return mWriteError;
+        }
+
+        String getOutput() {
+            synchronized (mOutput) {
+                return new String(mOutput.toByteArray(), mCharset);
+            }
+        }
+    }
+
+    /**
+     * 命令执行结果
+     */
+    public static class CommandResult {
+        private final int mExitCode;
+        private final String mOutput;
+        private final String mError;
+        private final boolean mIsTimeout;
+        private final long mCostTime;
+        private final long mOutputLength;
+
+        CommandResult(int exitCode, String output, String error, boolean isTimeout, long costTime, long outputLength) {
+            mExitCode = exitCode;
+            mOutput = output;
+            mError = error;
+            mIsTimeout = isTimeout;
+            mCostTime = costTime;
+            mOutputLength = outputLength;
+        }
+
+        /**
+         * 标准输出的字节数,输出写入通道时即为写入的字节数
+         *
+         * @return
+         */
+        public long getOutputLength() {
+            return mOutputLength;
+        }
+
+        /**
+         * 进程退出码,超时为{@link #EXIT_CODE_TIMEOUT},无法启动为{@link #EXIT_CODE_START_FAILED}
+         *
+         * @return
+         */
+        public int getExitCode() {
+            return mExitCode;
+        }
+
+        /**
+         * 标准输出
+         *
+         * @return
+         */
+        public String getOutput() {
+            return mOutput;
+        }
+
+        /**
+         * 错误输出
+         *
+         * @return
+         */
+        public String getError() {
+            return mError;
+        }
+
+        public boolean isTimeout() {
+            return mIsTimeout;
+        }
+
+        /**
+         * 从获得运行许可到进程结束的时间(毫秒)
+         *
+         * @return
+         */
+        public long getCostTime() {
+            return mCostTime;
+        }
+
+        @Override
+        public String toString() {
+            return "exitCode=" + mExitCode + ", timeout=" + mIsTimeout + ", cost=" + mCostTime + "ms";
+        }
+    }
+
+    /**
+     * 单个命令类型的统计数据
+     */
+    public static class CommandMetrics {
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTimeoutCount = new AtomicLong();
+        private final AtomicLong mFailedCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(long nanos, boolean isTimeout, boolean isFailed) {
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            long max = mMaxNanos.get();
+            while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+                max = mMaxNanos.get();
+            }
+            if (isTimeout) {
+                mTimeoutCount.incrementAndGet();
+            }
+            if (isFailed) {
+                mFailedCount.incrementAndGet();
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getTimeoutCount() {
+            return mTimeoutCount.get();
+        }
+
+        public long getFailedCount() {
+            return mFailedCount.get();
+        }
+
+        /**
+         * 平均耗时(毫秒)
+         *
+         * @return
+         */
+        public double getAverageMillis() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mTotalNanos.get() / 1000000.0 / count;
+        }
+
+        /**
+         * 最大耗时(毫秒)
+         *
+         * @return
+         */
+        public double getMaxMillis() {
+            return mMaxNanos.get() / 1000000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, timeout=%d, failed=%d, avg=%.2fms, max=%.2fms",
+                    getCount(), getTimeoutCount(), getFailedCount(), getAverageMillis(), getMaxMillis());
+        }
+    }
+}
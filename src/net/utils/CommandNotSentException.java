@@ -0,0 +1,18 @@
+package net.utils;
+
+import java.io.IOException;
+
+/**
+ * Created by taro on 16/3/30.
+ * 命令未发送到设备(shell无法打开/连接adb server失败/写入命令失败)时抛出,此时命令一定没有执行,
+ * 可以换用其它方式重新执行;其它IOException表示命令可能已经执行,不可重新执行
+ *
+ * @author taro
+ */
+public class CommandNotSentException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CommandNotSentException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
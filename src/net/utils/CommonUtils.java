@@ -2,10 +2,9 @@ package net.utils;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
 
 import net.interfaces.OnBreakReadCmdResultListener;
 
@@ -47,42 +46,6 @@ public class CommonUtils {
 		}
 	}
 
-	/**
-	 * 发送字符串到流,该方法为阻塞方法,直到发送完该字符串为止
-	 *
-	 * @param out
-	 *            输出流
-	 * @param output
-	 *            输出字符串
-	 * @param isCloseStream
-	 *            是否关闭该流,在发送成功或者失败之后
-	 * @return
-	 */
-	public static boolean sendStringToOutputStream(OutputStream out, String output, boolean isCloseStream)
-			throws IOException {
-		if (isEmptyString(output) || out == null) {
-			return false;
-		} else {
-			// 获取字符串对应的字节内容
-			byte[] buffer = output.getBytes(Charset.forName("UTF-8"));
-			try {
-				// 输出到流
-				out.write(buffer);
-				out.flush();
-				return true;
-			} finally {
-				// 尝试关闭流
-				if (out != null && isCloseStream) {
-					try {
-						out.close();
-					} catch (IOException e) {
-						logError(e);
-					}
-				}
-			}
-		}
-	}
-
 	/**
 	 * 根据输入的流将内容转成指定编码的字符串,该方法为阻塞方法,直到读取数据完毕或者换行才会退出循环
 	 *
@@ -177,7 +140,7 @@ public class CommonUtils {
 	}
 
 	/**
-	 * 执行命令,读取数据命令最多不能超过10秒,否则作超时处理
+	 * 执行命令并等待命令结束,命令最多执行{@link CommandExecutor#DEFAULT_TIMEOUT}毫秒,超时后强制结束
 	 *
 	 * @param command
 	 *            命令
@@ -186,7 +149,7 @@ public class CommonUtils {
 	 * @param charsetName
 	 *            返回结果字符串需要使用的编码
 	 * @param listener
-	 *            多次读取数据时中止读取操作的回调,若此参数为null,只最多只读取一次数据
+	 *            读取到输出时的回调,返回true时不再等待命令自行结束,可为null
 	 * @return
 	 */
 	public static String execCommand(String command, boolean isNeedToGetResult, String charsetName,
@@ -195,25 +158,38 @@ public class CommonUtils {
 			return "";
 		}
 		try {
-			System.out.println("执行命令:" + command);
-			Process process = Runtime.getRuntime().exec(command);
-			InputStream in = process.getInputStream();
-			if (isNeedToGetResult) {
-				// 不存在退出监听事件,只读取消息一次
-				if (listener == null) {
-					return readOnceStrFromInputStream(in, null, null, true);
-				} else {
-					return readStrFromInputStream(in, true, listener);
-				}
-			} else {
-				return "";
+			CommandExecutor.CommandResult result = execCommandAsync(command, CommandExecutor.DEFAULT_TIMEOUT,
+					charsetName, listener).join();
+			if (result.isTimeout()) {
+				logInfo("命令执行超时: " + command);
 			}
+			return isNeedToGetResult ? result.getOutput() : "";
 		} catch (Exception e) {
 			logError(e);
 			return "";
 		}
 	}
 
+	/**
+	 * 异步执行命令,见{@link CommandExecutor}
+	 *
+	 * @param command
+	 *            命令,以空白字符分隔参数
+	 * @param timeout
+	 *            超时时间(毫秒),超时后强制结束进程
+	 * @param charsetName
+	 *            返回结果字符串需要使用的编码
+	 * @param listener
+	 *            读取到输出时的回调,返回true时不再等待命令自行结束,可为null
+	 * @return 退出码及输出
+	 */
+	public static CompletableFuture<CommandExecutor.CommandResult> execCommandAsync(String command, long timeout,
+			String charsetName, OnBreakReadCmdResultListener listener) {
+		System.out.println("执行命令:" + command);
+		return CommandExecutor.getInstance().execute(CommandExecutor.splitCommand(command), timeout, charsetName,
+				listener);
+	}
+
 	/**
 	 * 打印异常消息
 	 *
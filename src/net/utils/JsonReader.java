@@ -0,0 +1,567 @@
+package net.utils;
+
+/**
+ * Created by taro on 16/3/28.
+ * 流式读取JSON消息,每次调用{@link #next()}读取下一个标记:<br/>
+ * 1.直接读取消息字符(String/StringBuilder/CharBuffer),名称/字符串/数字只记录位置,需要时才创建对象<br/>
+ * 2.可用{@link #seekName(String)}定位到需要的字段,不需要的字段用{@link #skipValue()}跳过,跳过时不创建任何对象<br/>
+ * 3.可通过{@link #reset(CharSequence)}重复使用同一个对象读取多个消息<br/>
+ * 格式错误时抛出IllegalStateException
+ * <pre>
+ * JsonReader reader = new JsonReader(msg);
+ * reader.beginObject();
+ * while (reader.hasNext()) {
+ *     reader.nextName();
+ *     if (reader.nameEquals("id")) {
+ *         id = reader.nextLong();
+ *     } else {
+ *         reader.skipValue();
+ *     }
+ * }
+ * reader.endObject();
+ * </pre>
+ *
+ * @author taro
+ */
+public class JsonReader {
+    public static final int TOKEN_BEGIN_OBJECT = 1;
+    public static final int TOKEN_END_OBJECT = 2;
+    public static final int TOKEN_BEGIN_ARRAY = 3;
+    public static final int TOKEN_END_ARRAY = 4;
+    public static final int TOKEN_NAME = 5;
+    public static final int TOKEN_STRING = 6;
+    public static final int TOKEN_NUMBER = 7;
+    public static final int TOKEN_TRUE = 8;
+    public static final int TOKEN_FALSE = 9;
+    public static final int TOKEN_NULL = 10;
+    public static final int TOKEN_END_DOCUMENT = 11;
+
+    private static final int TOKEN_NONE = 0;
+
+    // 当前所在位置的状态
+    private static final int CTX_DOCUMENT_START = 0;
+    private static final int CTX_DOCUMENT_END = 1;
+    // 对象开始,下一个为名称或'}'
+    private static final int CTX_OBJECT_EMPTY = 2;
+    // 读取名称后,下一个为':'及值
+    private static final int CTX_OBJECT_VALUE = 3;
+    // 读取值后,下一个为','或'}'
+    private static final int CTX_OBJECT_NEXT = 4;
+    // 数组开始,下一个为值或']'
+    private static final int CTX_ARRAY_EMPTY = 5;
+    // 读取值后,下一个为','或']'
+    private static final int CTX_ARRAY_NEXT = 6;
+
+    private CharSequence mSrc = null;
+    private int mPos = 0;
+    private int mEnd = 0;
+    private int[] mStack = new int[16];
+    private int mDepth = 0;
+    private int mPeeked = TOKEN_NONE;
+    // 当前名称/字符串/数字在消息中的位置,字符串不包括引号
+    private int mTokenStart = 0;
+    private int mTokenEnd = 0;
+    private boolean mIsTokenEscaped = false;
+
+    public JsonReader(CharSequence src) {
+        reset(src);
+    }
+
+    /**
+     * 读取新的消息,重复使用当前对象
+     *
+     * @param src
+     */
+    public void reset(CharSequence src) {
+        if (src == null) {
+            throw new IllegalStateException("JSON消息不可为null");
+        }
+        mSrc = src;
+        mPos = 0;
+        mEnd = src.length();
+        mDepth = 0;
+        mStack[mDepth++] = CTX_DOCUMENT_START;
+        mPeeked = TOKEN_NONE;
+        mTokenStart = 0;
+        mTokenEnd = 0;
+        mIsTokenEscaped = false;
+    }
+
+    /**
+     * 获取下一个标记的类型,不移动读取位置
+     *
+     * @return TOKEN_*
+     */
+    public int peek() {
+        if (mPeeked == TOKEN_NONE) {
+            mPeeked = readToken();
+        }
+        return mPeeked;
+    }
+
+    /**
+     * 读取下一个标记
+     *
+     * @return TOKEN_*
+     */
+    public int next() {
+        int token = peek();
+        mPeeked = TOKEN_NONE;
+        return token;
+    }
+
+    /**
+     * 当前对象/数组中是否还有下一个元素
+     *
+     * @return
+     */
+    public boolean hasNext() {
+        int token = peek();
+        return token != TOKEN_END_OBJECT && token != TOKEN_END_ARRAY && token != TOKEN_END_DOCUMENT;
+    }
+
+    public void beginObject() {
+        expect(TOKEN_BEGIN_OBJECT);
+    }
+
+    public void endObject() {
+        expect(TOKEN_END_OBJECT);
+    }
+
+    public void beginArray() {
+        expect(TOKEN_BEGIN_ARRAY);
+    }
+
+    public void endArray() {
+        expect(TOKEN_END_ARRAY);
+    }
+
+    /**
+     * 读取字段名称,不创建字符串,可用{@link #nameEquals(String)}比较或{@link #getString()}获取
+     */
+    public void nextName() {
+        expect(TOKEN_NAME);
+    }
+
+    /**
+     * 读取字符串值
+     *
+     * @return 值为null时返回null
+     */
+    public String nextString() {
+        int token = next();
+        if (token == TOKEN_NULL) {
+            return null;
+        }
+        if (token != TOKEN_STRING && token != TOKEN_NUMBER) {
+            throw unexpected(TOKEN_STRING, token);
+        }
+        return getString();
+    }
+
+    /**
+     * 读取整数值,数字为字符串形式时同样解析
+     *
+     * @return
+     */
+    public long nextLong() {
+        int token = next();
+        if (token != TOKEN_NUMBER && token != TOKEN_STRING) {
+            throw unexpected(TOKEN_NUMBER, token);
+        }
+        return getLong();
+    }
+
+    public int nextInt() {
+        long value = nextLong();
+        if (value != (int) value) {
+            throw new IllegalStateException("数字超出int范围: " + value);
+        }
+        return (int) value;
+    }
+
+    public double nextDouble() {
+        int token = next();
+        if (token != TOKEN_NUMBER && token != TOKEN_STRING) {
+            throw unexpected(TOKEN_NUMBER, token);
+        }
+        return getDouble();
+    }
+
+    public boolean nextBoolean() {
+        int token = next();
+        if (token == TOKEN_TRUE) {
+            return true;
+        } else if (token == TOKEN_FALSE) {
+            return false;
+        }
+        throw unexpected(TOKEN_TRUE, token);
+    }
+
+    /**
+     * 跳过下一个值,值为对象/数组时跳过其中所有内容;不创建任何对象
+     */
+    public void skipValue() {
+        int depth = 0;
+        do {
+            int token = next();
+            if (token == TOKEN_BEGIN_OBJECT || token == TOKEN_BEGIN_ARRAY) {
+                depth++;
+            } else if (token == TOKEN_END_OBJECT || token == TOKEN_END_ARRAY) {
+                depth--;
+            } else if (token == TOKEN_END_DOCUMENT) {
+                throw new IllegalStateException("JSON消息不完整");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * 在当前对象中向后查找指定名称的字段,跳过之前的其它字段;找到时读取位置在该字段的值之前
+     *
+     * @param name 字段名称
+     * @return 找到返回true, 当前对象已读取完返回false(读取位置在'}'之前)
+     */
+    public boolean seekName(String name) {
+        while (peek() == TOKEN_NAME) {
+            next();
+            if (nameEquals(name)) {
+                return true;
+            }
+            skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * 当前名称/字符串是否与指定的字符串相同,没有转义字符时不创建对象
+     *
+     * @param value
+     * @return
+     */
+    public boolean nameEquals(String value) {
+        if (mIsTokenEscaped) {
+            return getString().equals(value);
+        }
+        int length = mTokenEnd - mTokenStart;
+        if (value == null || value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mSrc.charAt(mTokenStart + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 获取当前名称/字符串/数字的内容
+     *
+     * @return
+     */
+    public String getString() {
+        if (!mIsTokenEscaped) {
+            return mSrc.subSequence(mTokenStart, mTokenEnd).toString();
+        }
+        StringBuilder builder = new StringBuilder(mTokenEnd - mTokenStart);
+        for (int i = mTokenStart; i < mTokenEnd; i++) {
+            char c = mSrc.charAt(i);
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            c = mSrc.charAt(++i);
+            switch (c) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= mTokenEnd) {
+                        throw syntaxError("转义字符不完整");
+                    }
+                    int code = 0;
+                    for (int j = 1; j <= 4; j++) {
+                        int digit = Character.digit(mSrc.charAt(i + j), 16);
+                        if (digit < 0) {
+                            throw syntaxError("转义字符不正确");
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    builder.append((char) code);
+                    i += 4;
+                    break;
+                default:
+                    // '"' '\\' '/'
+                    builder.append(c);
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 获取当前数字的整数值,只包含整数部分时不创建对象
+     *
+     * @return
+     */
+    public long getLong() {
+        int length = mTokenEnd - mTokenStart;
+        int i = mTokenStart;
+        boolean isNegative = length > 0 && mSrc.charAt(i) == '-';
+        if (isNegative) {
+            i++;
+        }
+        // 18位以内的整数不会溢出
+        if (i < mTokenEnd && mTokenEnd - i <= 18) {
+            long value = 0;
+            for (; i < mTokenEnd; i++) {
+                char c = mSrc.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+            }
+            if (i == mTokenEnd) {
+                return isNegative ? -value : value;
+            }
+        }
+        String number = getString().trim();
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            double value = parseDouble(number);
+            if (value != (long) value) {
+                throw syntaxError("数字不是整数: " + number);
+            }
+            return (long) value;
+        }
+    }
+
+    public double getDouble() {
+        return parseDouble(getString().trim());
+    }
+
+    /**
+     * 当前读取位置
+     *
+     * @return
+     */
+    public int getPosition() {
+        return mPos;
+    }
+
+    private double parseDouble(String number) {
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw syntaxError("数字格式不正确: " + number);
+        }
+    }
+
+    private void expect(int expected) {
+        int token = next();
+        if (token != expected) {
+            throw unexpected(expected, token);
+        }
+    }
+
+    private int readToken() {
+        int context = mStack[mDepth - 1];
+        int c = nextNonWhitespace();
+        switch (context) {
+            case CTX_OBJECT_EMPTY:
+            case CTX_OBJECT_NEXT:
+                if (c == '}') {
+                    mDepth--;
+                    return TOKEN_END_OBJECT;
+                }
+                if (context == CTX_OBJECT_NEXT) {
+                    if (c != ',') {
+                        throw syntaxError("缺少','或'}'");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("缺少字段名称");
+                }
+                readString();
+                mStack[mDepth - 1] = CTX_OBJECT_VALUE;
+                return TOKEN_NAME;
+            case CTX_OBJECT_VALUE:
+                if (c != ':') {
+                    throw syntaxError("缺少':'");
+                }
+                mStack[mDepth - 1] = CTX_OBJECT_NEXT;
+                return readValue(nextNonWhitespace());
+            case CTX_ARRAY_EMPTY:
+            case CTX_ARRAY_NEXT:
+                if (c == ']') {
+                    mDepth--;
+                    return TOKEN_END_ARRAY;
+                }
+                if (context == CTX_ARRAY_NEXT) {
+                    if (c != ',') {
+                        throw syntaxError("缺少','或']'");
+                    }
+                    c = nextNonWhitespace();
+                }
+                mStack[mDepth - 1] = CTX_ARRAY_NEXT;
+                return readValue(c);
+            case CTX_DOCUMENT_START:
+                mStack[mDepth - 1] = CTX_DOCUMENT_END;
+                return readValue(c);
+            default:
+                if (c != -1) {
+                    throw syntaxError("消息结束后存在多余内容");
+                }
+                // 保持在结束位置,重复读取时同样返回结束
+                mPos = mEnd;
+                return TOKEN_END_DOCUMENT;
+        }
+    }
+
+    private int readValue(int c) {
+        switch (c) {
+            case '{':
+                push(CTX_OBJECT_EMPTY);
+                return TOKEN_BEGIN_OBJECT;
+            case '[':
+                push(CTX_ARRAY_EMPTY);
+                return TOKEN_BEGIN_ARRAY;
+            case '"':
+                readString();
+                return TOKEN_STRING;
+            case 't':
+                readLiteral("true");
+                return TOKEN_TRUE;
+            case 'f':
+                readLiteral("false");
+                return TOKEN_FALSE;
+            case 'n':
+                readLiteral("null");
+                return TOKEN_NULL;
+            case -1:
+                throw syntaxError("JSON消息不完整");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber();
+                    return TOKEN_NUMBER;
+                }
+                throw syntaxError("无法识别的字符'" + (char) c + "'");
+        }
+    }
+
+    private void push(int context) {
+        if (mDepth == mStack.length) {
+            int[] stack = new int[mDepth * 2];
+            System.arraycopy(mStack, 0, stack, 0, mDepth);
+            mStack = stack;
+        }
+        mStack[mDepth++] = context;
+    }
+
+    /**
+     * 读取字符串的位置,调用前已读取开始的引号
+     */
+    private void readString() {
+        mTokenStart = mPos;
+        mIsTokenEscaped = false;
+        while (mPos < mEnd) {
+            char c = mSrc.charAt(mPos++);
+            if (c == '"') {
+                mTokenEnd = mPos - 1;
+                return;
+            } else if (c == '\\') {
+                mIsTokenEscaped = true;
+                mPos++;
+            }
+        }
+        throw syntaxError("字符串缺少结束的引号");
+    }
+
+    /**
+     * 读取数字的位置,调用前已读取第一个字符
+     */
+    private void readNumber() {
+        mTokenStart = mPos - 1;
+        mIsTokenEscaped = false;
+        while (mPos < mEnd) {
+            char c = mSrc.charAt(mPos);
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '-' || c == '+') {
+                mPos++;
+            } else {
+                break;
+            }
+        }
+        mTokenEnd = mPos;
+    }
+
+    private void readLiteral(String literal) {
+        int start = mPos - 1;
+        if (start + literal.length() > mEnd) {
+            throw syntaxError("JSON消息不完整");
+        }
+        for (int i = 1; i < literal.length(); i++) {
+            if (mSrc.charAt(start + i) != literal.charAt(i)) {
+                throw syntaxError("无法识别的值,应为" + literal);
+            }
+        }
+        mPos = start + literal.length();
+    }
+
+    private int nextNonWhitespace() {
+        while (mPos < mEnd) {
+            char c = mSrc.charAt(mPos++);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private IllegalStateException unexpected(int expected, int actual) {
+        return syntaxError("应为" + tokenName(expected) + ",实际为" + tokenName(actual));
+    }
+
+    private IllegalStateException syntaxError(String msg) {
+        return new IllegalStateException("JSON格式错误(位置" + mPos + "): " + msg);
+    }
+
+    private static String tokenName(int token) {
+        switch (token) {
+            case TOKEN_BEGIN_OBJECT:
+                return "'{'";
+            case TOKEN_END_OBJECT:
+                return "'}'";
+            case TOKEN_BEGIN_ARRAY:
+                return "'['";
+            case TOKEN_END_ARRAY:
+                return "']'";
+            case TOKEN_NAME:
+                return "字段名称";
+            case TOKEN_STRING:
+                return "字符串";
+            case TOKEN_NUMBER:
+                return "数字";
+            case TOKEN_TRUE:
+            case TOKEN_FALSE:
+                return "布尔值";
+            case TOKEN_NULL:
+                return "null";
+            default:
+                return "消息结束";
+        }
+    }
+}
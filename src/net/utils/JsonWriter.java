@@ -0,0 +1,263 @@
+package net.utils;
+
+/**
+ * Created by taro on 16/3/28.
+ * 流式写入JSON消息,按顺序写入名称及值,自动添加','及':'并转义字符串;
+ * 可通过{@link #reset()}重复使用同一个对象及其缓存创建多个消息<br/>
+ * 写入顺序不正确时抛出IllegalStateException
+ * <pre>
+ * String msg = new JsonWriter().beginObject()
+ *         .name("type").value("order")
+ *         .name("id").value(123)
+ *         .endObject().toString();
+ * </pre>
+ *
+ * @author taro
+ */
+public class JsonWriter {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // 当前所在位置的状态
+    private static final int CTX_DOCUMENT = 0;
+    private static final int CTX_OBJECT_EMPTY = 1;
+    private static final int CTX_OBJECT_NAME = 2;
+    private static final int CTX_OBJECT_NEXT = 3;
+    private static final int CTX_ARRAY_EMPTY = 4;
+    private static final int CTX_ARRAY_NEXT = 5;
+    private static final int CTX_DOCUMENT_END = 6;
+
+    private final StringBuilder mBuilder;
+    private int[] mStack = new int[16];
+    private int mDepth = 0;
+
+    public JsonWriter() {
+        this(256);
+    }
+
+    /**
+     * @param capacity 初始缓存大小
+     */
+    public JsonWriter(int capacity) {
+        mBuilder = new StringBuilder(capacity);
+        reset();
+    }
+
+    /**
+     * 清除已写入的内容,保留缓存
+     *
+     * @return
+     */
+    public JsonWriter reset() {
+        mBuilder.setLength(0);
+        mDepth = 0;
+        mStack[mDepth++] = CTX_DOCUMENT;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        mBuilder.append('{');
+        push(CTX_OBJECT_EMPTY);
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        int context = mStack[mDepth - 1];
+        if (context != CTX_OBJECT_EMPTY && context != CTX_OBJECT_NEXT) {
+            throw new IllegalStateException("当前不在对象中或字段缺少值");
+        }
+        mDepth--;
+        mBuilder.append('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        mBuilder.append('[');
+        push(CTX_ARRAY_EMPTY);
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        int context = mStack[mDepth - 1];
+        if (context != CTX_ARRAY_EMPTY && context != CTX_ARRAY_NEXT) {
+            throw new IllegalStateException("当前不在数组中");
+        }
+        mDepth--;
+        mBuilder.append(']');
+        return this;
+    }
+
+    /**
+     * 写入字段名称,之后需要写入该字段的值
+     *
+     * @param name
+     * @return
+     */
+    public JsonWriter name(String name) {
+        if (name == null) {
+            throw new IllegalStateException("字段名称不可为null");
+        }
+        int context = mStack[mDepth - 1];
+        if (context == CTX_OBJECT_NEXT) {
+            mBuilder.append(',');
+        } else if (context != CTX_OBJECT_EMPTY) {
+            throw new IllegalStateException("当前不在对象中或上一个字段缺少值");
+        }
+        mStack[mDepth - 1] = CTX_OBJECT_NAME;
+        appendString(name);
+        mBuilder.append(':');
+        return this;
+    }
+
+    /**
+     * 写入字符串值
+     *
+     * @param value 为null时写入null
+     * @return
+     */
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        appendString(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        mBuilder.append(value);
+        return this;
+    }
+
+    public JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalStateException("JSON不支持的数字: " + value);
+        }
+        beforeValue();
+        mBuilder.append(value);
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        mBuilder.append(value);
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        beforeValue();
+        mBuilder.append("null");
+        return this;
+    }
+
+    /**
+     * 写入已经是JSON格式的内容作为值,不做转义
+     *
+     * @param json
+     * @return
+     */
+    public JsonWriter rawValue(CharSequence json) {
+        beforeValue();
+        mBuilder.append(json);
+        return this;
+    }
+
+    /**
+     * 是否已写入一个完整的值(所有对象/数组都已结束)
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return mDepth == 1 && mStack[0] == CTX_DOCUMENT_END;
+    }
+
+    /**
+     * 已写入的内容长度
+     *
+     * @return
+     */
+    public int length() {
+        return mBuilder.length();
+    }
+
+    /**
+     * 获取已写入的内容,不检查是否完整
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        return mBuilder.toString();
+    }
+
+    private void beforeValue() {
+        int context = mStack[mDepth - 1];
+        switch (context) {
+            case CTX_DOCUMENT:
+                mStack[mDepth - 1] = CTX_DOCUMENT_END;
+                break;
+            case CTX_OBJECT_NAME:
+                mStack[mDepth - 1] = CTX_OBJECT_NEXT;
+                break;
+            case CTX_ARRAY_EMPTY:
+                mStack[mDepth - 1] = CTX_ARRAY_NEXT;
+                break;
+            case CTX_ARRAY_NEXT:
+                mBuilder.append(',');
+                break;
+            case CTX_DOCUMENT_END:
+                throw new IllegalStateException("JSON消息只能有一个根元素");
+            default:
+                throw new IllegalStateException("对象中的值之前需要写入字段名称");
+        }
+    }
+
+    private void push(int context) {
+        if (mDepth == mStack.length) {
+            int[] stack = new int[mDepth * 2];
+            System.arraycopy(mStack, 0, stack, 0, mDepth);
+            mStack = stack;
+        }
+        mStack[mDepth++] = context;
+    }
+
+    private void appendString(String value) {
+        StringBuilder builder = mBuilder;
+        builder.append('"');
+        int length = value.length();
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement = null;
+            if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\\') {
+                replacement = "\\\\";
+            } else if (c == '\n') {
+                replacement = "\\n";
+            } else if (c == '\r') {
+                replacement = "\\r";
+            } else if (c == '\t') {
+                replacement = "\\t";
+            } else if (c >= 0x20 && c != 0x2028 && c != 0x2029) {
+                continue;
+            }
+            // 只复制需要转义的字符之前的部分,不逐个字符添加
+            builder.append(value, last, i);
+            if (replacement != null) {
+                builder.append(replacement);
+            } else {
+                builder.append("\\u")
+                        .append(HEX_DIGITS[(c >> 12) & 0xf])
+                        .append(HEX_DIGITS[(c >> 8) & 0xf])
+                        .append(HEX_DIGITS[(c >> 4) & 0xf])
+                        .append(HEX_DIGITS[c & 0xf]);
+            }
+            last = i + 1;
+        }
+        builder.append(value, last, length);
+        builder.append('"');
+    }
+}
@@ -0,0 +1,96 @@
+package net.utils;
+
+import java.lang.reflect.Method;
+
+/**
+ * Created by taro on 16/3/22.
+ * 连接相关后台线程(接收/发送/心跳/服务端监听)的创建工具,可以在普通的后台线程与虚拟线程之间切换;
+ * 虚拟线程需要运行在支持虚拟线程的JDK上,不支持时自动使用普通的后台线程
+ */
+public class SocketThreadFactory {
+    /**
+     * 线程模式:普通的后台线程(daemon),每个线程占用一个系统线程
+     */
+    public static final int MODE_PLATFORM = 0;
+    /**
+     * 线程模式:虚拟线程,阻塞的socket读写不会占用系统线程
+     */
+    public static final int MODE_VIRTUAL = 1;
+
+    private static volatile int sThreadMode = MODE_PLATFORM;
+    // 创建虚拟线程的方法,通过反射获取以兼容不支持虚拟线程的JDK
+    private static Method sOfVirtualMethod = null;
+    private static Method sBuilderNameMethod = null;
+    private static Method sBuilderUnstartedMethod = null;
+    private static boolean sIsVirtualSupported = false;
+
+    static {
+        try {
+            sOfVirtualMethod = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            sBuilderNameMethod = builderClass.getMethod("name", String.class);
+            sBuilderUnstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+            // 部分JDK中虚拟线程为预览特性,调用时才会抛出异常
+            sOfVirtualMethod.invoke(null);
+            sIsVirtualSupported = true;
+        } catch (Exception e) {
+            sIsVirtualSupported = false;
+        }
+    }
+
+    private SocketThreadFactory() {
+    }
+
+    /**
+     * 当前运行的JDK是否支持虚拟线程
+     *
+     * @return
+     */
+    public static boolean isVirtualThreadSupported() {
+        return sIsVirtualSupported;
+    }
+
+    /**
+     * 设置线程模式,只影响之后创建的线程;设置为虚拟线程但JDK不支持时,仍使用普通的后台线程
+     *
+     * @param mode {@link #MODE_PLATFORM}/{@link #MODE_VIRTUAL}
+     */
+    public static void setThreadMode(int mode) {
+        if (mode == MODE_VIRTUAL && !sIsVirtualSupported) {
+            CommonUtils.logError("当前JDK不支持虚拟线程,使用普通的后台线程");
+            mode = MODE_PLATFORM;
+        }
+        sThreadMode = mode;
+    }
+
+    /**
+     * 获取当前的线程模式
+     *
+     * @return {@link #MODE_PLATFORM}/{@link #MODE_VIRTUAL}
+     */
+    public static int getThreadMode() {
+        return sThreadMode;
+    }
+
+    /**
+     * 按当前的线程模式创建线程,线程未启动
+     *
+     * @param runnable 线程执行的任务
+     * @param name     线程名称
+     * @return
+     */
+    public static Thread newThread(Runnable runnable, String name) {
+        if (sThreadMode == MODE_VIRTUAL) {
+            try {
+                Object builder = sOfVirtualMethod.invoke(null);
+                builder = sBuilderNameMethod.invoke(builder, name);
+                return (Thread) sBuilderUnstartedMethod.invoke(builder, runnable);
+            } catch (Exception e) {
+                CommonUtils.logError(e);
+            }
+        }
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,305 @@
+package net.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by taro on 16/3/23.
+ * 哈希时间轮定时器,所有连接的心跳发送/超时检测/请求超时等定时任务共用一个后台线程;
+ * 添加及取消任务均为O(1),到期精度为一个刻度时间<br/>
+ * 定时任务在时间轮线程中执行,不可执行耗时或可能阻塞的操作
+ *
+ * @author taro
+ */
+public class TimingWheel implements Runnable {
+    /**
+     * 默认的刻度时间(毫秒)
+     */
+    public static final long DEFAULT_TICK_DURATION = 100;
+    /**
+     * 默认的刻度数量,需为2的幂
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static TimingWheel mTimingWheel = null;
+
+    // 每个刻度的时间(纳秒)
+    private final long mTickDuration;
+    private final Bucket[] mWheel;
+    private final int mMask;
+    // 新加入的任务,由时间轮线程在每个刻度开始时放入对应的槽中
+    private final ConcurrentLinkedQueue<Timeout> mPendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final String mName;
+    private Thread mWorkerThread = null;
+    private volatile boolean mIsRunning = false;
+    // 时间轮启动的时间(纳秒)
+    private long mStartTime = 0;
+    // 已经走过的刻度数
+    private long mTick = 0;
+
+    /**
+     * 获取所有连接共用的时间轮,首次获取时启动
+     *
+     * @return
+     */
+    public synchronized static TimingWheel getInstance() {
+        if (mTimingWheel == null) {
+            mTimingWheel = new TimingWheel("timing-wheel", DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+            mTimingWheel.start();
+        }
+        return mTimingWheel;
+    }
+
+    /**
+     * 创建时间轮
+     *
+     * @param name         时间轮线程名称
+     * @param tickDuration 每个刻度的时间(毫秒)
+     * @param wheelSize    刻度数量,会调整为不小于此值的2的幂
+     */
+    public TimingWheel(String name, long tickDuration, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new RuntimeException("时间轮刻度时间及刻度数量必须大于0");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        mName = name;
+        mTickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        mMask = size - 1;
+        mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * 启动时间轮线程,已启动时不做任何操作
+     */
+    public synchronized void start() {
+        if (mIsRunning) {
+            return;
+        }
+        mIsRunning = true;
+        mWorkerThread = new Thread(this, mName);
+        mWorkerThread.setDaemon(true);
+        mWorkerThread.start();
+    }
+
+    /**
+     * 停止时间轮,未到期的任务不再执行
+     */
+    public synchronized void stop() {
+        if (!mIsRunning) {
+            return;
+        }
+        mIsRunning = false;
+        if (mWorkerThread != null) {
+            mWorkerThread.interrupt();
+            mWorkerThread = null;
+        }
+    }
+
+    /**
+     * 时间轮是否正在运行
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * 添加定时任务,任务到期时在时间轮线程中执行一次
+     *
+     * @param task  定时任务
+     * @param delay 延迟时间(毫秒)
+     * @return 可用于取消任务的对象
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (task == null) {
+            throw new RuntimeException("定时任务不可为null");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)));
+        mPendingTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        mStartTime = System.nanoTime();
+        mTick = 0;
+        while (mIsRunning) {
+            if (!waitForNextTick()) {
+                break;
+            }
+            transferPendingTimeouts();
+            mWheel[(int) (mTick & mMask)].expireTimeouts();
+            mTick++;
+        }
+        mPendingTimeouts.clear();
+    }
+
+    /**
+     * 等待到下一个刻度
+     *
+     * @return 线程被中止时返回false
+     */
+    private boolean waitForNextTick() {
+        long deadline = mStartTime + mTickDuration * (mTick + 1);
+        while (true) {
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos <= 0) {
+                return true;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (!mIsRunning) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 将新加入的任务放入对应的槽中
+     */
+    private void transferPendingTimeouts() {
+        Timeout timeout = null;
+        while ((timeout = mPendingTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = (timeout.mDeadline - mStartTime) / mTickDuration;
+            // 已过期的任务放在当前刻度执行
+            long ticks = Math.max(calculated, mTick);
+            timeout.mRemainingRounds = (ticks - mTick) / mWheel.length;
+            mWheel[(int) (ticks & mMask)].add(timeout);
+        }
+    }
+
+    /**
+     * 定时任务,可用于取消未执行的任务
+     */
+    public static class Timeout {
+        private static final int STATE_INIT = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final Runnable mTask;
+        private final long mDeadline;
+        private volatile int mState = STATE_INIT;
+        // 以下字段只在时间轮线程中访问
+        private long mRemainingRounds = 0;
+        private Timeout mPrev = null;
+        private Timeout mNext = null;
+
+        private Timeout(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * 取消任务,任务已执行时不做任何操作;取消的任务在所在刻度到达时移除
+         *
+         * @return 是否成功取消
+         */
+        public synchronized boolean cancel() {
+            if (mState != STATE_INIT) {
+                return false;
+            }
+            mState = STATE_CANCELLED;
+            return true;
+        }
+
+        /**
+         * 任务是否已被取消
+         *
+         * @return
+         */
+        public boolean isCancelled() {
+            return mState == STATE_CANCELLED;
+        }
+
+        /**
+         * 任务是否已到期执行
+         *
+         * @return
+         */
+        public boolean isExpired() {
+            return mState == STATE_EXPIRED;
+        }
+
+        private synchronized boolean expire() {
+            if (mState != STATE_INIT) {
+                return false;
+            }
+            mState = STATE_EXPIRED;
+            return true;
+        }
+    }
+
+    /**
+     * 时间轮的槽,以双向链表保存任务,移除任务为O(1)
+     */
+    private static class Bucket {
+        private Timeout mHead = null;
+        private Timeout mTail = null;
+
+        void add(Timeout timeout) {
+            if (mHead == null) {
+                mHead = mTail = timeout;
+            } else {
+                mTail.mNext = timeout;
+                timeout.mPrev = mTail;
+                mTail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.mNext;
+            if (timeout.mPrev != null) {
+                timeout.mPrev.mNext = next;
+            }
+            if (next != null) {
+                next.mPrev = timeout.mPrev;
+            }
+            if (timeout == mHead) {
+                mHead = next;
+            }
+            if (timeout == mTail) {
+                mTail = timeout.mPrev;
+            }
+            timeout.mPrev = null;
+            timeout.mNext = null;
+            return next;
+        }
+
+        /**
+         * 执行槽中所有已到期的任务,移除已取消的任务,其余任务剩余圈数减一
+         */
+        void expireTimeouts() {
+            Timeout timeout = mHead;
+            while (timeout != null) {
+                if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                } else if (timeout.mRemainingRounds <= 0) {
+                    Timeout next = remove(timeout);
+                    if (timeout.expire()) {
+                        try {
+                            timeout.mTask.run();
+                        } catch (Exception e) {
+                            CommonUtils.logError(e);
+                        }
+                    }
+                    timeout = next;
+                } else {
+                    timeout.mRemainingRounds--;
+                    timeout = timeout.mNext;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package pc;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.utils.JsonReader;
+import net.utils.JsonWriter;
+
+/**
+ * 设备消息解析对比测试:从订单查询结果中取出id/state/result三个字段,
+ * 流式读取({@link JsonReader},跳过其它字段)与先解析为完整的Map/List树再取字段对比,
+ * 以及{@link JsonWriter}与字符串拼接创建消息对比,统计每条消息的耗时及内存分配<br/>
+ * java pc.JsonParseBenchmark 500000
+ */
+public class JsonParseBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+
+    private static long sBlackhole = 0;
+
+    public static void main(String[] args) {
+        int msgCount = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        String msg = createMessage(20);
+        System.out.println("消息长度: " + msg.length() + ", 消息数量: " + msgCount);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runStreaming(msg, msgCount);
+            runTree(msg, msgCount);
+            runWriter(msgCount);
+            runConcat(msgCount);
+        }
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            report("JsonReader", msgCount, runStreaming(msg, msgCount));
+            report("完整解析", msgCount, runTree(msg, msgCount));
+            report("JsonWriter", msgCount, runWriter(msgCount));
+            report("字符串拼接", msgCount, runConcat(msgCount));
+        }
+        System.out.println("(" + sBlackhole + ")");
+    }
+
+    /**
+     * 模拟设备返回的订单查询结果
+     *
+     * @param itemCount 订单数量
+     * @return
+     */
+    private static String createMessage(int itemCount) {
+        JsonWriter writer = new JsonWriter();
+        writer.beginObject()
+                .name("type").value("orderQuery")
+                .name("device").beginObject()
+                .name("model").value("MI 4LTE").name("battery").value(86).name("charging").value(false)
+                .endObject()
+                .name("orders").beginArray();
+        for (int i = 0; i < itemCount; i++) {
+            writer.beginObject()
+                    .name("orderId").value("2016032800" + i)
+                    .name("amount").value(12.5 + i)
+                    .name("title").value("订单\"" + i + "\"")
+                    .name("paid").value(i % 2 == 0)
+                    .endObject();
+        }
+        return writer.endArray()
+                .name("id").value(1234567)
+                .name("state").value(2)
+                .name("result").value("ok")
+                .endObject().toString();
+    }
+
+    private static long[] runStreaming(String msg, int msgCount) {
+        JsonReader reader = new JsonReader(msg);
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < msgCount; i++) {
+            reader.reset(msg);
+            long id = 0;
+            long state = 0;
+            boolean isOk = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                reader.nextName();
+                if (reader.nameEquals("id")) {
+                    id = reader.nextLong();
+                } else if (reader.nameEquals("state")) {
+                    state = reader.nextLong();
+                } else if (reader.nameEquals("result")) {
+                    reader.next();
+                    isOk = reader.nameEquals("ok");
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            sBlackhole += id + state + (isOk ? 1 : 0);
+        }
+        return new long[]{System.nanoTime() - startTime, allocatedBytes() - startBytes};
+    }
+
+    private static long[] runTree(String msg, int msgCount) {
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < msgCount; i++) {
+            Map<?, ?> root = (Map<?, ?>) new TreeParser(msg).parseValue();
+            long id = ((Number) root.get("id")).longValue();
+            long state = ((Number) root.get("state")).longValue();
+            boolean isOk = "ok".equals(root.get("result"));
+            sBlackhole += id + state + (isOk ? 1 : 0);
+        }
+        return new long[]{System.nanoTime() - startTime, allocatedBytes() - startBytes};
+    }
+
+    private static long[] runWriter(int msgCount) {
+        JsonWriter writer = new JsonWriter();
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < msgCount; i++) {
+            writer.reset().beginObject()
+                    .name("type").value("placeOrder")
+                    .name("orderId").value(i)
+                    .name("title").value("测试订单")
+                    .name("amount").value(99)
+                    .endObject();
+            sBlackhole += writer.toString().length();
+        }
+        return new long[]{System.nanoTime() - startTime, allocatedBytes() - startBytes};
+    }
+
+    private static long[] runConcat(int msgCount) {
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < msgCount; i++) {
+            String msg = "{\"type\":\"placeOrder\",\"orderId\":" + i + ",\"title\":\"" + "测试订单"
+                    + "\",\"amount\":" + 99 + "}";
+            sBlackhole += msg.length();
+        }
+        return new long[]{System.nanoTime() - startTime, allocatedBytes() - startBytes};
+    }
+
+    private static void report(String name, int count, long[] result) {
+        System.out.println(String.format("%-12s %8.1f ns/op  %8.1f B/op", name,
+                result[0] / (double) count, result[1] / (double) count));
+    }
+
+    /**
+     * 当前线程累计分配的内存,不支持时返回0
+     *
+     * @return
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * 解析为完整的Map/List树,与常见的JSON库的树形解析方式相同,用于对比
+     */
+    private static class TreeParser {
+        private final String mSrc;
+        private int mPos = 0;
+
+        TreeParser(String src) {
+            mSrc = src;
+        }
+
+        Object parseValue() {
+            skipWhitespace();
+            char c = mSrc.charAt(mPos);
+            if (c == '{') {
+                mPos++;
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                skipWhitespace();
+                if (mSrc.charAt(mPos) == '}') {
+                    mPos++;
+                    return map;
+                }
+                while (true) {
+                    skipWhitespace();
+                    String name = parseString();
+                    skipWhitespace();
+                    mPos++;
+                    map.put(name, parseValue());
+                    skipWhitespace();
+                    if (mSrc.charAt(mPos++) == '}') {
+                        return map;
+                    }
+                }
+            } else if (c == '[') {
+                mPos++;
+                List<Object> list = new ArrayList<Object>();
+                skipWhitespace();
+                if (mSrc.charAt(mPos) == ']') {
+                    mPos++;
+                    return list;
+                }
+                while (true) {
+                    list.add(parseValue());
+                    skipWhitespace();
+                    if (mSrc.charAt(mPos++) == ']') {
+                        return list;
+                    }
+                }
+            } else if (c == '"') {
+                return parseString();
+            } else if (mSrc.startsWith("true", mPos)) {
+                mPos += 4;
+                return Boolean.TRUE;
+            } else if (mSrc.startsWith("false", mPos)) {
+                mPos += 5;
+                return Boolean.FALSE;
+            } else if (mSrc.startsWith("null", mPos)) {
+                mPos += 4;
+                return null;
+            }
+            int start = mPos;
+            while (mPos < mSrc.length() && "+-.eE0123456789".indexOf(mSrc.charAt(mPos)) >= 0) {
+                mPos++;
+            }
+            String number = mSrc.substring(start, mPos);
+            if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+                return Double.valueOf(number);
+            }
+            return Long.valueOf(number);
+        }
+
+        private String parseString() {
+            StringBuilder builder = new StringBuilder();
+            mPos++;
+            while (true) {
+                char c = mSrc.charAt(mPos++);
+                if (c == '"') {
+                    return builder.toString();
+                } else if (c == '\\') {
+                    c = mSrc.charAt(mPos++);
+                    if (c == 'u') {
+                        builder.append((char) Integer.parseInt(mSrc.substring(mPos, mPos + 4), 16));
+                        mPos += 4;
+                    } else {
+                        builder.append(c == 'n' ? '\n' : c == 't' ? '\t' : c == 'r' ? '\r' : c);
+                    }
+                } else {
+                    builder.append(c);
+                }
+            }
+        }
+
+        private void skipWhitespace() {
+            while (mPos < mSrc.length() && Character.isWhitespace(mSrc.charAt(mPos))) {
+                mPos++;
+            }
+        }
+    }
+}
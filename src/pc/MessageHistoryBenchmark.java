@@ -0,0 +1,151 @@
+package pc;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.manager.MessageInfo;
+
+/**
+ * 消息缓存对比测试:原来基于LinkedList的消息缓存与环形缓存({@link MessageInfo}),
+ * 按MessageManager的调用方式每条消息添加后检测清除,统计每条消息的耗时及内存分配,
+ * 以及获取消息列表并遍历(界面刷新)的耗时<br/>
+ * java pc.MessageHistoryBenchmark 2000000
+ */
+public class MessageHistoryBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final int SNAPSHOT_COUNT = 100000;
+
+    public static void main(String[] args) {
+        int msgCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        // 消息内容预先创建,只统计缓存本身的内存分配
+        String[] msgs = new String[1024];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = "{\"type\":\"order\",\"id\":" + i + "}";
+        }
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runLegacy(msgs, msgCount);
+            runRingBuffer(msgs, msgCount);
+        }
+        System.out.println("消息数量: " + msgCount);
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            report("LinkedList", msgCount, runLegacy(msgs, msgCount));
+            report("RingBuffer", msgCount, runRingBuffer(msgs, msgCount));
+        }
+        report("LinkedList遍历", SNAPSHOT_COUNT, runLegacySnapshot(msgs));
+        report("RingBuffer快照", SNAPSHOT_COUNT, runRingBufferSnapshot(msgs));
+    }
+
+    private static long[] runLegacy(String[] msgs, int msgCount) {
+        LegacyMessageList list = new LegacyMessageList();
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < msgCount; i++) {
+            list.appendMsg(msgs[i & 1023]);
+            list.cleanMsg();
+        }
+        return new long[]{System.nanoTime() - startTime, allocatedBytes() - startBytes};
+    }
+
+    private static long[] runRingBuffer(String[] msgs, int msgCount) {
+        MessageInfo info = new MessageInfo("benchmark");
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < msgCount; i++) {
+            info.appendMsg(msgs[i & 1023], MessageInfo.MSG_FOR_RECEIVE);
+            info.cleanMsg(MessageInfo.MSG_FOR_RECEIVE);
+        }
+        return new long[]{System.nanoTime() - startTime, allocatedBytes() - startBytes};
+    }
+
+    private static long[] runLegacySnapshot(String[] msgs) {
+        LegacyMessageList list = new LegacyMessageList();
+        for (int i = 0; i < 200; i++) {
+            list.appendMsg(msgs[i]);
+        }
+        long length = 0;
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < SNAPSHOT_COUNT; i++) {
+            for (String msg : list.mMsgList) {
+                length += msg.length();
+            }
+        }
+        long[] result = new long[]{System.nanoTime() - startTime, allocatedBytes() - startBytes};
+        System.out.println("(" + length + ")");
+        return result;
+    }
+
+    private static long[] runRingBufferSnapshot(String[] msgs) {
+        MessageInfo info = new MessageInfo("benchmark");
+        for (int i = 0; i < 200; i++) {
+            info.appendMsg(msgs[i], MessageInfo.MSG_FOR_RECEIVE);
+        }
+        long length = 0;
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < SNAPSHOT_COUNT; i++) {
+            for (String msg : info.getMsgListByFrom(MessageInfo.MSG_FOR_RECEIVE)) {
+                length += msg.length();
+            }
+        }
+        long[] result = new long[]{System.nanoTime() - startTime, allocatedBytes() - startBytes};
+        System.out.println("(" + length + ")");
+        return result;
+    }
+
+    private static void report(String name, int count, long[] result) {
+        System.out.println(String.format("%-16s %8.1f ns/op  %8.1f B/op", name,
+                result[0] / (double) count, result[1] / (double) count));
+    }
+
+    /**
+     * 当前线程累计分配的内存,不支持时返回0
+     *
+     * @return
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * 原来的消息缓存实现,用于对比
+     */
+    private static class LegacyMessageList {
+        private static final int MSG_CACHE_COUNT = 200;
+        private List<String> mMsgList = new LinkedList<String>();
+
+        void appendMsg(String msg) {
+            mMsgList.add(msg);
+        }
+
+        int cleanMsg() {
+            int saveCount = 0;
+            List<String> oldMsgList = mMsgList;
+            if (oldMsgList.size() > MSG_CACHE_COUNT) {
+                int remainCount = (int) (MSG_CACHE_COUNT * 0.2);
+                saveCount = oldMsgList.size() - remainCount;
+                LinkedList<String> newMsgList = new LinkedList<String>();
+                if (remainCount < saveCount) {
+                    for (int i = 0; i < remainCount; i++) {
+                        newMsgList.add(newMsgList.size(), oldMsgList.get(0));
+                        oldMsgList.remove(0);
+                    }
+                } else {
+                    for (int i = 0; i < saveCount; i++) {
+                        newMsgList.add(oldMsgList.remove(oldMsgList.size() - 1));
+                    }
+                    newMsgList = (LinkedList<String>) oldMsgList;
+                }
+                mMsgList = newMsgList;
+            }
+            return saveCount;
+        }
+    }
+}
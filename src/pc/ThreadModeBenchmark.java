@@ -0,0 +1,122 @@
+package pc;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.socket.SocketConnect;
+import net.utils.SocketThreadFactory;
+
+/**
+ * 连接线程模式对比测试:创建指定数量的本地连接,每个连接两端均启动接收/发送线程,
+ * 统计使用普通后台线程与虚拟线程时的线程数量及内存占用<br/>
+ * 每种模式需要单独运行一次,保证统计数据互不影响:<br/>
+ * java pc.ThreadModeBenchmark platform 500<br/>
+ * java pc.ThreadModeBenchmark virtual 500
+ */
+public class ThreadModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "platform";
+        int connectCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        if ("virtual".equals(mode)) {
+            SocketThreadFactory.setThreadMode(SocketThreadFactory.MODE_VIRTUAL);
+        } else {
+            SocketThreadFactory.setThreadMode(SocketThreadFactory.MODE_PLATFORM);
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        int baseThreadCount = threadBean.getThreadCount();
+        long baseHeap = usedHeap();
+        long baseRss = readRssKb();
+
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress("127.0.0.1", 0), connectCount);
+        List<SocketConnect> connects = new ArrayList<SocketConnect>(connectCount * 2);
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < connectCount; i++) {
+            Socket client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+            Socket accepted = serverSocket.accept();
+            // 两端都作为已建立的连接处理,各自启动接收线程,发送消息后启动发送线程
+            SocketConnect clientSide = SocketConnect.createServerConnect("client-" + i, client);
+            SocketConnect serverSide = SocketConnect.createServerConnect("server-" + i, accepted);
+            clientSide.connectInServer();
+            serverSide.connectInServer();
+            clientSide.sendMsg("hello " + i);
+            serverSide.sendMsg("hello " + i);
+            connects.add(clientSide);
+            connects.add(serverSide);
+        }
+        long setupTime = System.currentTimeMillis() - startTime;
+        // 等待所有线程启动并进入阻塞状态
+        Thread.sleep(2000);
+
+        int aliveCount = 0;
+        for (SocketConnect connect : connects) {
+            if (connect.isClientAlive()) {
+                aliveCount++;
+            }
+        }
+        System.out.println("线程模式: " + (SocketThreadFactory.getThreadMode() == SocketThreadFactory.MODE_VIRTUAL
+                ? "virtual" : "platform"));
+        System.out.println("连接数量: " + connectCount + " (存活连接对象: " + aliveCount + ")");
+        System.out.println("建立连接耗时(ms): " + setupTime);
+        System.out.println("系统线程数量: " + threadBean.getThreadCount() + " (基准: " + baseThreadCount + ", 峰值: "
+                + threadBean.getPeakThreadCount() + ")");
+        System.out.println("堆内存增长(KB): " + (usedHeap() - baseHeap) / 1024);
+        if (baseRss > 0) {
+            System.out.println("进程常驻内存增长(KB): " + (readRssKb() - baseRss));
+        }
+
+        // 逐个关闭连接需要等待发送线程结束,测试结束直接退出进程释放所有连接
+        serverSocket.close();
+        System.exit(0);
+    }
+
+    /**
+     * 获取GC后已使用的堆内存
+     *
+     * @return
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 读取进程的常驻内存(仅linux),无法读取时返回-1
+     *
+     * @return
+     */
+    private static long readRssKb() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/status"));
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (Exception e) {
+            // 非linux系统不统计
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    // 忽略
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -16,6 +16,10 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public class OrderHelperPC extends JFrame implements OnMessageChangedListener, OnInfoChangedListener {
     private ClientSocketManager mSocketMgr = null;
@@ -332,12 +336,35 @@ public class OrderHelperPC extends JFrame implements OnMessageChangedListener, O
         public void actionPerformed(ActionEvent e) {
             Object source = e.getSource();
             if (source.equals(btn_connect_all)) {
-                //全部连接
-                mSocketMgr.updateSocketClientConnect();
-                mSocketMgr.connectAllUsePresetListener();
-                updateDeviceList(mSocketMgr.getUSBDeviceToken());
-                updateDeviceInfoList(mCurrentDeviceToken);
-                updateButtonEnable(mCurrentDeviceToken);
+                //全部连接,查询设备及建立连接均在后台进行,完成后回到界面线程更新
+                btn_connect_all.setEnabled(false);
+                CompletableFuture.runAsync(new Runnable() {
+                    @Override
+                    public void run() {
+                        mSocketMgr.updateSocketClientConnect();
+                    }
+                }).thenCompose(new Function<Void, CompletableFuture<Map<String, Boolean>>>() {
+                    @Override
+                    public CompletableFuture<Map<String, Boolean>> apply(Void aVoid) {
+                        return mSocketMgr.connectAllUsePresetListener();
+                    }
+                }).whenComplete(new BiConsumer<Map<String, Boolean>, Throwable>() {
+                    @Override
+                    public void accept(Map<String, Boolean> resultMap, Throwable throwable) {
+                        if (throwable != null) {
+                            CommonUtils.logError("连接全部设备出错: " + throwable);
+                        }
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                btn_connect_all.setEnabled(true);
+                                updateDeviceList(mSocketMgr.getUSBDeviceToken());
+                                updateDeviceInfoList(mCurrentDeviceToken);
+                                updateButtonEnable(mCurrentDeviceToken);
+                            }
+                        });
+                    }
+                });
             } else if (source.equals(btn_disconnect_alll)) {
                 //全部断开
                 mSocketMgr.closeAll();